@@ -0,0 +1,52 @@
+package stocktrading;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Per-tick valuation and queries over many accounts with a few positions each
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountStoreBenchmarks {
+    @Param({ "10000", "1000000" })
+    public int accounts;
+
+    @Param({ "1", "4" })
+    public int parallelism;
+
+    private StockTradingPlatform.Market market;
+    private StockTradingPlatform.AccountStore store;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        market = Fixtures.newMarket(10000);
+        store = Fixtures.newAccountStore(market, accounts, 5);
+        store.setParallelism(parallelism);
+        market.step();
+        store.valueAll();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.setParallelism(1);
+    }
+
+    @Benchmark
+    public void valueAll() {
+        store.valueAll();
+    }
+
+    @Benchmark
+    public int[] top10ByPnl() {
+        return store.topByPnl(10);
+    }
+
+    @Benchmark
+    public int[] holdersOfOneTicker() {
+        return store.holdersOf(0);
+    }
+}
@@ -0,0 +1,41 @@
+package stocktrading;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Cost of folding one price event into the bars of four timeframes, and of a last-N query
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BarAggregatorBenchmarks {
+    @Param({ "100", "1000" })
+    public int symbols;
+
+    private StockTradingPlatform.BarAggregator bars;
+    private StockTradingPlatform.BarSeries series;
+    private long time;
+    private int symbol;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        bars = new StockTradingPlatform.BarAggregator("1s,1m,5m,1h", 500);
+        for (int i = 0; i < symbols * 100; i++)
+            onPrice();
+    }
+
+    @Benchmark
+    public void onPrice() {
+        time += 1_000_000; // a millisecond per event
+        symbol = symbol + 1 == symbols ? 0 : symbol + 1;
+        bars.onPrice(0, 0, time, symbol, 100.0 + (time & 1023) * 0.01, false);
+    }
+
+    @Benchmark
+    public StockTradingPlatform.BarSeries last100Bars() {
+        return series = bars.lastBars(symbol, 0, 100, series);
+    }
+}
@@ -0,0 +1,62 @@
+package stocktrading;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Portfolio load paths on a generated position file: the mapped CSV parser, the old
+// line/split loader it replaced, and the binary snapshot
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvLoadBenchmarks {
+    @Param({ "1000", "100000" })
+    public int rows;
+
+    private Path csv;
+    private Path snapshot;
+
+    @Setup
+    public void setup() throws IOException {
+        SplittableRandom r = new SplittableRandom(3L);
+        List<StockTradingPlatform.Holding> holdings = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++)
+            holdings.add(new StockTradingPlatform.Holding(String.format("S%07d", i), 1 + r.nextInt(10_000),
+                    Math.round((1.0 + r.nextDouble() * 5000.0) * 100.0) / 100.0));
+        csv = Files.createTempFile("positions", ".csv");
+        snapshot = Files.createTempFile("positions", StockTradingPlatform.PortfolioIO.SNAPSHOT_EXTENSION);
+        StockTradingPlatform.PortfolioIO.writeCsv(csv, 1_000_000.0, holdings);
+        StockTradingPlatform.PortfolioIO.writeSnapshot(snapshot,
+                StockTradingPlatform.MatchingEngine.toTicks(1_000_000.0), holdings, 0, 0);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(csv);
+        Files.deleteIfExists(snapshot);
+    }
+
+    @Benchmark
+    public Object loadCsvMapped() throws IOException {
+        return StockTradingPlatform.PortfolioIO.readCsv(csv);
+    }
+
+    @Benchmark
+    public Object loadCsvSplit() throws IOException {
+        return Fixtures.legacyLoad(csv);
+    }
+
+    @Benchmark
+    public Object loadSnapshot() throws IOException {
+        return StockTradingPlatform.PortfolioIO.readSnapshot(snapshot).toPortfolio();
+    }
+}
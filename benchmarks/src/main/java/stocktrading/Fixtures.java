@@ -0,0 +1,67 @@
+package stocktrading;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+// Deterministic inputs shared by the benchmarks
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    // the six default stocks plus synthetic S000006.. symbols priced 10..5000
+    static StockTradingPlatform.Market newMarket(int symbols) {
+        StockTradingPlatform.Market m = new StockTradingPlatform.Market(42L);
+        SplittableRandom r = new SplittableRandom(7L);
+        for (int i = m.size(); i < symbols; i++)
+            m.addStock(String.format("S%06d", i), "Synthetic " + i,
+                    Math.round((10.0 + r.nextDouble() * 4990.0) * 100.0) / 100.0);
+        return m;
+    }
+
+    // accounts with a deterministic spread of random positions
+    static StockTradingPlatform.AccountStore newAccountStore(StockTradingPlatform.Market market, int accounts,
+            int positions) {
+        StockTradingPlatform.AccountStore store = new StockTradingPlatform.AccountStore(market, 64);
+        SplittableRandom rnd = new SplittableRandom(7);
+        for (int a = 0; a < accounts; a++) {
+            int id = store.createAccount(1000000.0);
+            for (int k = 0; k < positions; k++) {
+                int sym = rnd.nextInt(market.size());
+                store.buy(id, sym, 1 + rnd.nextInt(10), market.getPrice(sym));
+            }
+        }
+        return store;
+    }
+
+    // MomentumStrategy instances with 100,000 each, trading 10-share lots on 0.5% moves
+    static StockTradingPlatform.StrategyRunner newStrategyRunner(StockTradingPlatform.Market market,
+            int strategies, int watch, int policy) {
+        StockTradingPlatform.StrategyRunner runner = new StockTradingPlatform.StrategyRunner(market, policy, 64);
+        for (int i = 0; i < strategies; i++)
+            runner.add(new StockTradingPlatform.MomentumStrategy(i, watch, 0.005, 10), 100000.0);
+        return runner;
+    }
+
+    // the line/split CSV loader PortfolioIO.readCsv replaced
+    static StockTradingPlatform.Portfolio legacyLoad(Path file) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(file.toFile()))) {
+            StockTradingPlatform.Portfolio loaded = new StockTradingPlatform.Portfolio(0.0);
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                String[] parts = line.split(",");
+                if (parts[0].equalsIgnoreCase("cash")) {
+                    loaded.setCash(Double.parseDouble(parts[1]));
+                } else {
+                    loaded.setHolding(new StockTradingPlatform.Holding(parts[0].trim().toUpperCase(),
+                            Integer.parseInt(parts[1]), Double.parseDouble(parts[2])));
+                }
+            }
+            return loaded;
+        }
+    }
+}
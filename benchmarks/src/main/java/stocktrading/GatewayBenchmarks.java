@@ -0,0 +1,79 @@
+package stocktrading;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Round trips through the MarketGateway over loopback from one blocking client: a ping, and a
+// one-share market order answered by its ack (buys and sells alternate)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GatewayBenchmarks {
+    private StockTradingPlatform.MarketGateway gateway;
+    private SocketChannel client;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer in = ByteBuffer.allocateDirect(64).order(ByteOrder.LITTLE_ENDIAN);
+    private boolean buy;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        StockTradingPlatform.Market market = Fixtures.newMarket(1000);
+        StockTradingPlatform.Portfolio portfolio = new StockTradingPlatform.Portfolio(1e9);
+        portfolio.attach(market);
+        gateway = new StockTradingPlatform.MarketGateway(new StockTradingPlatform.SimulationEngine(market, portfolio),
+                0);
+        gateway.start();
+        client = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), gateway.getPort()));
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        receive(5); // hello
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        gateway.close();
+    }
+
+    private void send() throws IOException {
+        out.flip();
+        while (out.hasRemaining())
+            client.write(out);
+        out.clear();
+    }
+
+    private ByteBuffer receive(int size) throws IOException {
+        in.clear().limit(size);
+        while (in.hasRemaining())
+            if (client.read(in) < 0)
+                throw new IOException("Gateway closed the connection");
+        in.flip();
+        return in;
+    }
+
+    @Benchmark
+    public long ping() throws IOException {
+        out.put(StockTradingPlatform.MarketGateway.PING).putLong(System.nanoTime());
+        send();
+        return receive(9).getLong(1);
+    }
+
+    @Benchmark
+    public long order() throws IOException {
+        out.put(StockTradingPlatform.MarketGateway.ORDER).putLong(0).putInt(0).put((byte) (buy ? 1 : 0)).putInt(1)
+                .putLong(StockTradingPlatform.MatchingEngine.MARKET);
+        buy = !buy;
+        send();
+        return receive(17).getLong(9);
+    }
+}
@@ -0,0 +1,38 @@
+package stocktrading;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Portfolio.recordHistory with a full history ring of the given length
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmarks {
+    @Param({ "500", "100000", "1000000" })
+    public int historyLength;
+
+    private StockTradingPlatform.Market market;
+    private StockTradingPlatform.Portfolio portfolio;
+
+    @Setup
+    public void setup() {
+        market = new StockTradingPlatform.Market(42L);
+        portfolio = new StockTradingPlatform.Portfolio(100000.0, historyLength);
+        portfolio.attach(market);
+        portfolio.buy(market.getTicker(0), 10, market.getPrice(0));
+        for (int i = 0; i < historyLength; i++) {
+            market.step();
+            portfolio.recordHistory(market);
+        }
+    }
+
+    @Benchmark
+    public void stepThenRecordHistory() {
+        market.step();
+        portfolio.recordHistory(market);
+    }
+}
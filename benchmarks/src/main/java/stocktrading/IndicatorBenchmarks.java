@@ -0,0 +1,48 @@
+package stocktrading;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// One tick of a large universe through the indicator engine: every changed symbol's price
+// as one batch, evaluated on 1 or several threads
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndicatorBenchmarks {
+    @Param({ "10000", "100000" })
+    public int symbols;
+
+    @Param({ "1", "4" })
+    public int parallelism;
+
+    private StockTradingPlatform.Market market;
+    private StockTradingPlatform.IndicatorEngine indicators;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        market = Fixtures.newMarket(symbols);
+        market.step();
+        indicators = new StockTradingPlatform.IndicatorEngine(20, 14);
+        indicators.setParallelism(parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        indicators.setParallelism(1);
+    }
+
+    // replays the same tick's changes; the cost does not depend on the values
+    @Benchmark
+    public void tick() {
+        int n = market.getChangedCount();
+        for (int i = 0; i < n; i++) {
+            int id = market.getChangedId(i);
+            indicators.onPrice(sequence++, 0, 0, id, market.getPrice(id), i == n - 1);
+        }
+    }
+}
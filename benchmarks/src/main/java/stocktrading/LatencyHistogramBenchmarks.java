@@ -0,0 +1,34 @@
+package stocktrading;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// What instrumenting a hot path costs: one recorded sample, with and without the clock reads.
+// Run with -t 4 to see the bucket counters under contention.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyHistogramBenchmarks {
+    private final StockTradingPlatform.LatencyHistogram histogram = new StockTradingPlatform.LatencyHistogram("bench");
+    private long value = 1;
+
+    @Benchmark
+    public void record() {
+        value = value * 6364136223846793005L + 1442695040888963407L;
+        histogram.record((value >>> 40) & 0xFFFFF);
+    }
+
+    @Benchmark
+    public void recordSince() {
+        histogram.recordSince(System.nanoTime());
+    }
+
+    @Benchmark
+    public long valueAtP99() {
+        return histogram.valueAtPercentile(99);
+    }
+}
@@ -0,0 +1,46 @@
+package stocktrading;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Market.step() over the whole symbol universe, per price model and step parallelism (the
+// throughput mode shows how ticks per second scale with cores)
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarketBenchmarks {
+    @Param({ "6", "10000", "100000" })
+    public int symbols;
+
+    @Param({ "uniform", "factor" })
+    public String model;
+
+    @Param({ "4" })
+    public int factors;
+
+    @Param({ "1", "2", "4", "8" })
+    public int parallelism;
+
+    private StockTradingPlatform.Market market;
+
+    @Setup
+    public void setup() {
+        market = Fixtures.newMarket(symbols);
+        market.setPriceModel(StockTradingPlatform.PriceModel.of(model, factors, 7L));
+        market.setParallelism(parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        market.setParallelism(1);
+    }
+
+    @Benchmark
+    public void step() {
+        market.step();
+    }
+}
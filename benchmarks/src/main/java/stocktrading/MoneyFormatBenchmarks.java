@@ -0,0 +1,32 @@
+package stocktrading;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// One displayed amount: the char-buffer formatter the UI paints from against the
+// DecimalFormat-and-concatenate path it replaced. The GC profiler shows the allocation.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoneyFormatBenchmarks {
+    private final StockTradingPlatform.MoneyFormat money = new StockTradingPlatform.MoneyFormat("Cash: ");
+    private final DecimalFormat decimal = new DecimalFormat("#,##0.00");
+    private long ticks = 12_345_678_901L;
+
+    @Benchmark
+    public int moneyFormat() {
+        ticks += 37;
+        return money.format(ticks);
+    }
+
+    @Benchmark
+    public String decimalFormat() {
+        ticks += 37;
+        return "Cash: ₹" + decimal.format(ticks / 100.0);
+    }
+}
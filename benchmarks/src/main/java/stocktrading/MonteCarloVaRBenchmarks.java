@@ -0,0 +1,40 @@
+package stocktrading;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// A full VaR run of 100,000 paths over 10 ticks on the common pool; scale by ten for the
+// million-path case
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonteCarloVaRBenchmarks {
+    @Param({ "6", "50" })
+    public int positions;
+
+    private StockTradingPlatform.MonteCarloVaR calc;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String[] tickers = new String[positions];
+        int[] qty = new int[positions];
+        double[] prices = new double[positions];
+        for (int i = 0; i < positions; i++) {
+            tickers[i] = "S" + i;
+            qty[i] = 100;
+            prices[i] = 100.0 + i;
+        }
+        calc = new StockTradingPlatform.MonteCarloVaR(tickers, qty, prices,
+                StockTradingPlatform.MonteCarloVaR.UNIFORM_WALK, 10, 42);
+    }
+
+    @Benchmark
+    public double run100kPaths() {
+        return calc.run(100_000, 0.99, ForkJoinPool.commonPool(), null).valueAtRisk;
+    }
+}
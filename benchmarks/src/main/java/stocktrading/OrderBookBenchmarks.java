@@ -0,0 +1,45 @@
+package stocktrading;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// One book, single-threaded: a mix of limit orders around the mid (50%), cancels of resting
+// orders (30%) and small market orders (20%), per operation. Up to 64k limit orders are
+// tracked; a new one cancels the order whose slot it takes, so the book stays bounded.
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderBookBenchmarks {
+    private StockTradingPlatform.MatchingEngine engine;
+    private final long[] resting = new long[1 << 16];
+    private final SplittableRandom r = new SplittableRandom(11L);
+    private long filled;
+    private int n;
+
+    @Setup
+    public void setup() {
+        engine = new StockTradingPlatform.MatchingEngine(1 << 20, (t, m, sym, buy, qty, px, to, mo) -> filled += qty);
+        engine.openBook(0, 100_000);
+    }
+
+    @Benchmark
+    public long mixed() {
+        int kind = r.nextInt(10);
+        boolean buy = r.nextBoolean();
+        if (kind < 5) {
+            int slot = n++ & (resting.length - 1);
+            engine.cancel(resting[slot]);
+            long px = 100_000 + (buy ? -r.nextInt(50) : r.nextInt(50));
+            return resting[slot] = engine.submit(0, buy, 1 + r.nextInt(100), px, StockTradingPlatform.USER);
+        }
+        if (kind < 8)
+            return engine.cancel(resting[r.nextInt(resting.length)]) ? 1 : 0;
+        return engine.submit(0, buy, 1 + r.nextInt(20), StockTradingPlatform.MatchingEngine.MARKET,
+                StockTradingPlatform.USER);
+    }
+}
@@ -0,0 +1,60 @@
+package stocktrading;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Portfolio trading and valuation against a market with one symbol per holding
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PortfolioBenchmarks {
+    @Param({ "10", "1000", "100000" })
+    public int holdings;
+
+    private StockTradingPlatform.Market market;
+    private StockTradingPlatform.Portfolio attached; // incremental valuation
+    private StockTradingPlatform.Portfolio detached; // walks every holding
+    private String ticker;
+    private double price;
+
+    @Setup(Level.Iteration) // fresh portfolios keep the transaction log from growing across iterations
+    public void setup() {
+        market = Fixtures.newMarket(Math.max(holdings, 6));
+        attached = new StockTradingPlatform.Portfolio(1e12);
+        attached.attach(market);
+        detached = new StockTradingPlatform.Portfolio(1e12);
+        for (int i = 0; i < holdings; i++) {
+            attached.buy(market.getTicker(i), 10, market.getPrice(i));
+            detached.buy(market.getTicker(i), 10, market.getPrice(i));
+        }
+        ticker = market.getTicker(0);
+        price = market.getPrice(0);
+    }
+
+    @Benchmark
+    public void buyThenSell() {
+        attached.buy(ticker, 1, price);
+        attached.sell(ticker, 1, price);
+    }
+
+    @Benchmark
+    public double marketValueFullWalk() {
+        return detached.getMarketValue(market);
+    }
+
+    // one tick of price moves followed by an incremental revaluation
+    @Benchmark
+    public double stepThenMarketValue() {
+        market.step();
+        return attached.getMarketValue(market);
+    }
+
+    @Benchmark
+    public double marketValueCached() {
+        return attached.getMarketValue(market);
+    }
+}
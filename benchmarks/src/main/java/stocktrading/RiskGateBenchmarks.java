@@ -0,0 +1,43 @@
+package stocktrading;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Pre-trade check latency: a reservation and its release, sampled so the percentiles show.
+// Run with -t 4 to see the CAS paths under contention.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RiskGateBenchmarks {
+    private StockTradingPlatform.RiskGate gate;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StockTradingPlatform.Market market = Fixtures.newMarket(1000);
+        StockTradingPlatform.Portfolio p = new StockTradingPlatform.Portfolio(1e12);
+        for (int i = 0; i < market.size(); i++)
+            p.buy(market.getTicker(i), 1_000_000, 1.0);
+        gate = new StockTradingPlatform.RiskGate();
+        gate.setMaxOrderQty(100_000);
+        gate.setMaxNotional(1e9);
+        gate.reset(p, market);
+    }
+
+    @Benchmark
+    public long reserveAndReleaseBuy() {
+        long r = gate.reserveBuy(7, 10, 12_345);
+        gate.releaseBuy(7, 10, 12_345);
+        return r;
+    }
+
+    @Benchmark
+    public long reserveAndReleaseSell() {
+        long r = gate.reserveSell(7, 10, 12_345);
+        gate.releaseSell(7, 10);
+        return r;
+    }
+}
@@ -0,0 +1,53 @@
+package stocktrading;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// One market step fanned out to every strategy watching a moved symbol, until all of them
+// have run: time per tick as the strategy count grows. Tick-to-order percentiles are
+// printed at the end of each trial.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StrategyRunnerBenchmarks {
+    @Param({ "100", "1000", "10000" })
+    public int strategies;
+
+    @Param({ "conflate", "queue" })
+    public String mailbox;
+
+    private StockTradingPlatform.Market market;
+    private StockTradingPlatform.StrategyRunner runner;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        market = Fixtures.newMarket(1000);
+        runner = Fixtures.newStrategyRunner(market, strategies, 10,
+                StockTradingPlatform.StrategyRunner.policy(mailbox));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        runner.close();
+        StockTradingPlatform.LatencyHistogram h = runner.getTickToOrder();
+        System.out.printf("%n%d strategies: %,d orders, tick-to-order p50 %.1f us, p99 %.1f us%n", strategies,
+                runner.getOrders(), h.valueAtPercentile(50) / 1e3, h.valueAtPercentile(99) / 1e3);
+    }
+
+    @Benchmark
+    public void tick() {
+        market.step();
+        long now = StockTradingPlatform.TradeJournal.epochNanos(Instant.now());
+        for (int i = 0, n = market.getChangedCount(); i < n; i++) {
+            int id = market.getChangedId(i);
+            runner.onPrice(sequence++, 0, now, id, market.getPrice(id), i == n - 1);
+        }
+        runner.awaitIdle(Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,41 @@
+package stocktrading;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// One keystroke of symbol search: the ten autocomplete suggestions, and every match as the
+// market table filter needs them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymbolIndexBenchmarks {
+    @Param({ "100000" })
+    public int symbols;
+
+    @Param({ "S", "S0012", "S00123", "bank" })
+    public String prefix;
+
+    private StockTradingPlatform.SymbolIndex index;
+    private final int[] suggestions = new int[10];
+    private int[] matches;
+
+    @Setup
+    public void setup() {
+        index = new StockTradingPlatform.SymbolIndex(Fixtures.newMarket(symbols));
+        matches = new int[index.size()];
+    }
+
+    @Benchmark
+    public int suggest() {
+        return index.search(prefix, suggestions, suggestions.length);
+    }
+
+    @Benchmark
+    public int filter() {
+        return index.search(prefix, matches, matches.length);
+    }
+}
@@ -0,0 +1,8387 @@
+package stocktrading;
+
+import javax.swing.*;
+import javax.swing.border.TitledBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.DecimalFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+public class StockTradingPlatform extends JFrame {
+    static final DateTimeFormatter TIME_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    // order owners in the matching engine
+    static final int HOUSE = 0; // synthetic market maker quoting around Market prices
+    static final int USER = 1;
+
+    private Market market;
+    private Portfolio portfolio;
+    private SimulationEngine simulation;
+    private TradeJournal journal; // null if the journal could not be opened
+
+    // GUI components
+    private MarketTableModel marketTableModel;
+    private JTable marketTable;
+    private DefaultTableModel portfolioTableModel;
+    private JTable portfolioTable;
+    private TransactionTableModel txnTableModel;
+    private JTable txnTable;
+    private MoneyLabel cashLabel;
+    private MoneyLabel marketValueLabel;
+    private DrawingPanel chartPanel;
+
+    // Controls
+    private JTextField tickerField;
+    private JTextField qtyField;
+    private JTextField limitField;
+    private JButton buyButton;
+    private JButton sellButton;
+    private JButton saveButton;
+    private JButton loadButton;
+    private JButton cancelButton;
+
+    // Samples the simulation at display rate
+    private javax.swing.Timer displayTimer;
+    private long lastShownVersion = -1;
+    private long lastFrameAt;
+    private int framesSinceDiagnostics;
+    // price bus subscribers
+    private CoalescingPriceView marketPrices;
+    private PriceBus.Subscription marketFeed;
+    private TickRecorder recorder;
+    private PriceBus.Subscription recorderFeed;
+    private BarAggregator bars;
+    private PriceBus.Subscription barFeed;
+    private IndicatorEngine indicators;
+    private PriceBus.Subscription indicatorFeed;
+    private CandlestickPanel candlePanel;
+    private DiagnosticsPanel diagnosticsPanel;
+    private MarketGateway gateway; // only with -Dgateway.port
+    private volatile SymbolIndex symbolIndex; // see symbolIndex()
+    private final AtomicBoolean indexing = new AtomicBoolean();
+
+    public StockTradingPlatform() {
+        super("Mini Stock Trading Platform");
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setSize(1100, 720);
+        setLocationRelativeTo(null);
+
+        market = new Market();
+        market.setParallelism(Integer.getInteger("market.parallelism", 1));
+        market.setPriceModel(PriceModel.of(System.getProperty("market.model", "uniform"),
+                Integer.getInteger("market.factors", 4), System.nanoTime()));
+        // the replay lists its symbols, so open it before the journal is replayed against the market
+        ReplayFeed replay = null;
+        String replayFile = System.getProperty("replay.file");
+        if (replayFile != null) {
+            try {
+                String speed = System.getProperty("replay.speed", "1");
+                replay = ReplayFeed.open(Paths.get(replayFile), market,
+                        speed.equals("max") ? 0 : Double.parseDouble(speed));
+            } catch (IOException ex) {
+                System.err.println("Replay unavailable, using the random walk: " + ex.getMessage());
+            }
+        }
+        portfolio = recoverPortfolio();
+        simulation = new SimulationEngine(market, portfolio);
+        simulation.setTickRate(Double.parseDouble(System.getProperty("tick.rate", "1")));
+        RiskGate risk = simulation.getRiskGate();
+        risk.setMaxOrderQty(Integer.getInteger("risk.maxOrderQty", Integer.MAX_VALUE));
+        risk.setDefaultPositionLimit(Long.getLong("risk.maxPosition", Long.MAX_VALUE));
+        String maxNotional = System.getProperty("risk.maxNotional");
+        if (maxNotional != null)
+            risk.setMaxNotional(Double.parseDouble(maxNotional));
+        if (replay != null)
+            simulation.setDataSource(replay);
+        bars = new BarAggregator(System.getProperty("bars.timeframes", "1s,1m,5m,1h"),
+                Integer.getInteger("bars.depth", 500));
+        simulation.addTradeListener(bars); // fills make up the bars' volume
+        indicators = new IndicatorEngine(Integer.getInteger("indicators.window", 20),
+                Integer.getInteger("indicators.rsiPeriod", 14));
+        indicators.setParallelism(Integer.getInteger("indicators.parallelism", market.getParallelism()));
+        simulation.addTradeListener(indicators); // VWAP
+        simulation.setErrorHandler(msg -> SwingUtilities.invokeLater(
+                () -> JOptionPane.showMessageDialog(this, msg, "Error", JOptionPane.ERROR_MESSAGE)));
+        Integer gatewayPort = Integer.getInteger("gateway.port");
+        if (gatewayPort != null) {
+            try {
+                gateway = new MarketGateway(simulation, gatewayPort);
+                gateway.start();
+            } catch (IOException ex) {
+                System.err.println("Gateway unavailable: " + ex.getMessage());
+            }
+        }
+
+        symbolIndex = new SymbolIndex(market);
+        initGUI();
+        txnTableModel.refresh(); // shows trades recovered from the journal
+        updatePortfolioTable();
+        updateSummary();
+        startMarketUpdates();
+    }
+
+    // Rebuilds the portfolio from the trade journal (journal.dir), or starts without one
+    private Portfolio recoverPortfolio() {
+        double initialCash = 100000.0; // start with ₹100,000 cash (or any currency)
+        try {
+            journal = new TradeJournal(Paths.get(System.getProperty("journal.dir", "trading-journal")));
+            return journal.recover(market, initialCash);
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Trade journal unavailable, trades will not be journaled: " + ex.getMessage());
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException ignored) {
+                }
+                journal = null;
+            }
+            Portfolio p = new Portfolio(initialCash);
+            p.attach(market);
+            return p;
+        }
+    }
+
+    private void initGUI() {
+        setLayout(new BorderLayout(8, 8));
+
+        // --- Left: Market + Buy/Sell ---
+        JPanel leftPanel = new JPanel(new BorderLayout(8, 8));
+        leftPanel.setPreferredSize(new Dimension(520, 700));
+
+        // Market table
+        marketPrices = new CoalescingPriceView(market);
+        marketTableModel = new MarketTableModel(marketPrices);
+        marketTable = new JTable(marketTableModel);
+        installMarketRenderers();
+        JScrollPane marketScroll = new JScrollPane(marketTable);
+        JCheckBox indicatorBox = new JCheckBox("Indicators");
+        indicatorBox.addActionListener(e -> {
+            marketTableModel.setShowIndicators(indicatorBox.isSelected());
+            installMarketRenderers();
+        });
+        JTextField searchField = new JTextField(12);
+        searchField.setToolTipText("Ticker or name prefix");
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                marketTableModel.setFilter(searchField.getText().trim());
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                marketTableModel.setFilter(searchField.getText().trim());
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        JPanel marketControls = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 2));
+        marketControls.add(new JLabel("Search:"));
+        marketControls.add(searchField);
+        marketControls.add(indicatorBox);
+        JPanel marketPanel = new JPanel(new BorderLayout());
+        marketPanel.setBorder(new TitledBorder("Market"));
+        marketPanel.add(marketControls, BorderLayout.NORTH);
+        marketPanel.add(marketScroll, BorderLayout.CENTER);
+        leftPanel.add(marketPanel, BorderLayout.CENTER);
+
+        // Buy/Sell panel
+        JPanel tradePanel = new JPanel(new GridBagLayout());
+        tradePanel.setBorder(new TitledBorder("Trade"));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(6, 6, 6, 6);
+        gbc.gridx = 0;
+        gbc.gridy = 0;
+        gbc.anchor = GridBagConstraints.WEST;
+        tradePanel.add(new JLabel("Ticker:"), gbc);
+        gbc.gridx = 1;
+        tickerField = new JTextField(8);
+        new TickerCompleter(tickerField);
+        tradePanel.add(tickerField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 1;
+        tradePanel.add(new JLabel("Quantity:"), gbc);
+        gbc.gridx = 1;
+        qtyField = new JTextField(8);
+        tradePanel.add(qtyField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 2;
+        tradePanel.add(new JLabel("Limit (blank = market):"), gbc);
+        gbc.gridx = 1;
+        limitField = new JTextField(8);
+        tradePanel.add(limitField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 3;
+        buyButton = new JButton("Buy");
+        tradePanel.add(buyButton, gbc);
+        gbc.gridx = 1;
+        sellButton = new JButton("Sell");
+        tradePanel.add(sellButton, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 4;
+        gbc.gridwidth = 2;
+        saveButton = new JButton("Save Portfolio");
+        loadButton = new JButton("Load Portfolio");
+        cancelButton = new JButton("Cancel Open Orders");
+        JPanel ioPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 8, 0));
+        ioPanel.add(saveButton);
+        ioPanel.add(loadButton);
+        ioPanel.add(cancelButton);
+        tradePanel.add(ioPanel, gbc);
+
+        leftPanel.add(tradePanel, BorderLayout.SOUTH);
+
+        add(leftPanel, BorderLayout.WEST);
+
+        // --- Right: Portfolio, Transactions, Chart ---
+        JPanel rightPanel = new JPanel(new BorderLayout(8, 8));
+
+        // Portfolio top
+        portfolioTableModel = new DefaultTableModel(
+                new Object[] { "Ticker", "Qty", "Avg Price", "Market Price", "Mkt Value" }, 0) {
+            public boolean isCellEditable(int r, int c) {
+                return false;
+            }
+        };
+        portfolioTable = new JTable(portfolioTableModel);
+        for (int c = 2; c <= 4; c++)
+            portfolioTable.getColumnModel().getColumn(c).setCellRenderer(new MoneyRenderer());
+        JScrollPane portfolioScroll = new JScrollPane(portfolioTable);
+        portfolioScroll.setBorder(new TitledBorder("Portfolio"));
+
+        // Summary (cash + market value)
+        JPanel summaryPanel = new JPanel(new GridLayout(2, 1, 4, 4));
+        cashLabel = new MoneyLabel("Cash: ");
+        cashLabel.set(portfolio.getCashTicks());
+        marketValueLabel = new MoneyLabel("Portfolio Market Value: ");
+        marketValueLabel.set(0);
+        summaryPanel.add(cashLabel);
+        summaryPanel.add(marketValueLabel);
+
+        JPanel topRight = new JPanel(new BorderLayout(6, 6));
+        topRight.add(portfolioScroll, BorderLayout.CENTER);
+        topRight.add(summaryPanel, BorderLayout.SOUTH);
+
+        rightPanel.add(topRight, BorderLayout.NORTH);
+
+        // Transaction log
+        txnTableModel = new TransactionTableModel();
+        txnTable = new JTable(txnTableModel);
+        txnTable.getColumnModel().getColumn(0).setCellRenderer(new TimeRenderer());
+        txnTable.getColumnModel().getColumn(4).setCellRenderer(new MoneyRenderer());
+        txnTable.getColumnModel().getColumn(5).setCellRenderer(new MoneyRenderer());
+        JScrollPane txnScroll = new JScrollPane(txnTable);
+        txnScroll.setBorder(new TitledBorder("Transactions"));
+        txnScroll.setPreferredSize(new Dimension(520, 180));
+
+        rightPanel.add(txnScroll, BorderLayout.CENTER);
+
+        // Chart panel
+        chartPanel = new DrawingPanel();
+        chartPanel.setPreferredSize(new Dimension(520, 220));
+        chartPanel.setBorder(new TitledBorder("Portfolio Value (Live)"));
+
+        // Candles of the symbol selected in the market table
+        candlePanel = new CandlestickPanel();
+        JComboBox<String> timeframeBox = new JComboBox<>();
+        for (int f = 0; f < bars.getTimeframeCount(); f++)
+            timeframeBox.addItem(bars.getTimeframeName(f));
+        timeframeBox.addActionListener(e -> candlePanel.setTimeframe(timeframeBox.getSelectedIndex()));
+        JPanel candleTab = new JPanel(new BorderLayout());
+        JPanel candleControls = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 2));
+        candleControls.add(new JLabel("Timeframe:"));
+        candleControls.add(timeframeBox);
+        candleTab.add(candleControls, BorderLayout.NORTH);
+        candleTab.add(candlePanel, BorderLayout.CENTER);
+        marketTable.getSelectionModel().addListSelectionListener(e -> {
+            int row = marketTable.getSelectedRow();
+            if (!e.getValueIsAdjusting() && row >= 0)
+                candlePanel.setSymbol(marketTableModel.getSymbolId(row));
+        });
+
+        JTabbedPane charts = new JTabbedPane();
+        charts.addTab("Portfolio Value", chartPanel);
+        charts.addTab("Candles", candleTab);
+        charts.addTab("Risk", new RiskPanel());
+        diagnosticsPanel = new DiagnosticsPanel();
+        charts.addTab("Diagnostics", diagnosticsPanel);
+        charts.setPreferredSize(new Dimension(520, 250));
+        rightPanel.add(charts, BorderLayout.SOUTH);
+
+        add(rightPanel, BorderLayout.CENTER);
+
+        // Fill initial market table from market
+        refreshMarketTable();
+
+        // Action listeners
+        buyButton.addActionListener(e -> handleTrade(true));
+        sellButton.addActionListener(e -> handleTrade(false));
+        saveButton.addActionListener(e -> savePortfolio());
+        loadButton.addActionListener(e -> loadPortfolio());
+        cancelButton.addActionListener(e -> {
+            int n = simulation.cancelAllOrders();
+            JOptionPane.showMessageDialog(this, n + " open order(s) cancelled", "Cancelled",
+                    JOptionPane.INFORMATION_MESSAGE);
+        });
+
+        // Double-click a market row to autofill ticker
+        marketTable.addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    int row = marketTable.getSelectedRow();
+                    if (row >= 0) {
+                        String t = (String) marketTableModel.getValueAt(row, 0);
+                        tickerField.setText(t);
+                    }
+                }
+            }
+        });
+    }
+
+    private void handleTrade(boolean isBuy) {
+        long start = Metrics.now();
+        try {
+            submitTrade(isBuy);
+        } finally {
+            Metrics.since(Metrics.TRADE, start);
+        }
+    }
+
+    private void submitTrade(boolean isBuy) {
+        String ticker = tickerField.getText().trim().toUpperCase();
+        if (ticker.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Enter ticker", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        int qty;
+        try {
+            qty = Integer.parseInt(qtyField.getText().trim());
+            if (qty <= 0)
+                throw new NumberFormatException();
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Enter a valid positive integer quantity", "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        long limitTicks = MatchingEngine.MARKET;
+        String limitText = limitField.getText().trim();
+        if (!limitText.isEmpty()) {
+            try {
+                limitTicks = MatchingEngine.toTicks(Double.parseDouble(limitText));
+                if (limitTicks <= 0)
+                    throw new NumberFormatException();
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Enter a valid positive limit price", "Error",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        }
+
+        int symbolId = market.idOf(ticker);
+        if (symbolId < 0) {
+            JOptionPane.showMessageDialog(this, "Ticker not found in market", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        // the risk gate reserves cash or holdings atomically; the portfolio is updated from the
+        // fills this order produces
+        long orderId = simulation.submitOrder(symbolId, isBuy, qty, limitTicks);
+        if (orderId == RiskGate.REJECT_CASH) {
+            double price = limitTicks == MatchingEngine.MARKET ? market.getPrice(symbolId)
+                    : MatchingEngine.toPrice(limitTicks);
+            JOptionPane.showMessageDialog(this,
+                    "Insufficient cash to buy: required " + MoneyFormat.toString(MatchingEngine.toTicks(price) * qty),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (orderId < 0) {
+            JOptionPane.showMessageDialog(this, RiskGate.describe(orderId), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        updatePortfolioTable();
+        updateSummary();
+        chartPanel.repaint();
+        clearTradeFields();
+    }
+
+    private void clearTradeFields() {
+        tickerField.setText("");
+        qtyField.setText("");
+        limitField.setText("");
+    }
+
+    // column structure changes drop the renderers
+    private void installMarketRenderers() {
+        javax.swing.table.TableColumnModel cols = marketTable.getColumnModel();
+        cols.getColumn(2).setCellRenderer(new MoneyRenderer());
+        cols.getColumn(3).setCellRenderer(new PercentRenderer());
+        if (cols.getColumnCount() > 4) {
+            for (int c = 4; c <= 9; c++)
+                cols.getColumn(c).setCellRenderer(c == 7 ? new DecimalRenderer() : new MoneyRenderer());
+            cols.getColumn(10).setCellRenderer(new PercentRenderer());
+        }
+    }
+
+    private void refreshMarketTable() {
+        marketTableModel.refresh();
+    }
+
+    // Rebuilt on a background thread once symbols were listed since the last build (a replay
+    // can add them); lookups use the previous build until it finishes.
+    private SymbolIndex symbolIndex() {
+        SymbolIndex index = symbolIndex;
+        if (index.size() != market.size() && indexing.compareAndSet(false, true)) {
+            Thread t = new Thread(() -> {
+                try {
+                    symbolIndex = new SymbolIndex(market);
+                } finally {
+                    indexing.set(false);
+                }
+                SwingUtilities.invokeLater(marketTableModel::refilter);
+            }, "symbol-index");
+            t.setDaemon(true);
+            t.start();
+        }
+        return index;
+    }
+
+    // rows are updated in place; amounts are paise rendered by MoneyRenderer
+    private void updatePortfolioTable() {
+        SwingUtilities.invokeLater(() -> {
+            List<Holding> holdings = portfolio.getHoldings();
+            int n = holdings.size();
+            if (portfolioTableModel.getRowCount() != n)
+                portfolioTableModel.setRowCount(n);
+            for (int r = 0; r < n; r++) {
+                Holding h = holdings.get(r);
+                int id = market.idOf(h.getTicker());
+                long mPrice = (id < 0) ? 0 : market.getPriceTicks(id);
+                setPortfolioCell(r, 0, h.getTicker());
+                setPortfolioCell(r, 1, h.getQty());
+                setPortfolioCell(r, 2, h.getAvgPriceTicks());
+                setPortfolioCell(r, 3, mPrice);
+                setPortfolioCell(r, 4, h.getQty() * mPrice);
+            }
+        });
+    }
+
+    // only changed cells fire an update
+    private void setPortfolioCell(int r, int c, Object value) {
+        if (!value.equals(portfolioTableModel.getValueAt(r, c)))
+            portfolioTableModel.setValueAt(value, r, c);
+    }
+
+    private void updateSummary() {
+        SwingUtilities.invokeLater(() -> {
+            cashLabel.set(portfolio.getCashTicks());
+            marketValueLabel.set(portfolio.getMarketValueTicks(market));
+        });
+    }
+
+    // The simulation ticks on its own thread; the UI only looks at it once per frame and
+    // redraws when ticks or fills have happened since the last look.
+    private void startMarketUpdates() {
+        PriceBus bus = simulation.getPriceBus();
+        marketFeed = bus.subscribe("ui", marketPrices, PriceBus.waitStrategy(System.getProperty("ui.wait", "block")),
+                false);
+        barFeed = bus.subscribe("bars", bars, new BlockingWait(), true);
+        indicatorFeed = bus.subscribe("indicators", indicators, new BlockingWait(), true);
+        String record = System.getProperty("record.file");
+        if (record != null) {
+            try {
+                recorder = new TickRecorder(Paths.get(record), market);
+                recorderFeed = bus.subscribe("recorder", recorder, new BlockingWait(), true);
+            } catch (IOException ex) {
+                System.err.println("Not recording ticks: " + ex.getMessage());
+            }
+        }
+        simulation.start();
+        int fps = Math.max(1, Integer.getInteger("display.fps", 30));
+        long period = 1_000_000_000L / fps;
+        displayTimer = new javax.swing.Timer(1000 / fps, e -> {
+            long start = System.nanoTime();
+            // a late timer means the EDT was busy for the frames in between
+            if (lastFrameAt != 0 && start - lastFrameAt > period + period / 2)
+                Metrics.DROPPED_FRAMES.add((start - lastFrameAt) / period - 1);
+            lastFrameAt = start;
+            if (diagnosticsPanel.isShowing() && ++framesSinceDiagnostics >= fps / 2) {
+                framesSinceDiagnostics = 0;
+                diagnosticsPanel.refresh();
+            }
+            long v = simulation.getVersion();
+            if (v == lastShownVersion)
+                return;
+            lastShownVersion = v;
+            refreshMarketTable();
+            txnTableModel.refresh();
+            updatePortfolioTable();
+            updateSummary();
+            chartPanel.repaint();
+            if (candlePanel.isShowing())
+                candlePanel.repaint();
+            Metrics.since(Metrics.FRAME, start);
+        });
+        displayTimer.start();
+    }
+
+    private void stopMarketUpdates() {
+        if (displayTimer != null)
+            displayTimer.stop();
+        lastFrameAt = 0; // the pause is not dropped frames
+        simulation.stop();
+        if (marketFeed != null)
+            marketFeed.close();
+        if (barFeed != null)
+            barFeed.close();
+        if (indicatorFeed != null)
+            indicatorFeed.close();
+        if (recorderFeed != null) {
+            recorderFeed.close();
+            try {
+                recorder.close();
+            } catch (IOException ex) {
+                System.err.println("Tick recording incomplete: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void savePortfolio() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Save portfolio CSV (" + PortfolioIO.SNAPSHOT_EXTENSION + " for binary snapshot)");
+        int ret = chooser.showSaveDialog(this);
+        if (ret != JFileChooser.APPROVE_OPTION)
+            return;
+        File f = chooser.getSelectedFile();
+        try {
+            if (f.getName().endsWith(PortfolioIO.SNAPSHOT_EXTENSION))
+                PortfolioIO.writeSnapshot(f.toPath(), portfolio.getCashTicks(), portfolio.getHoldings(), 0, 0);
+            else
+                PortfolioIO.writeCsv(f.toPath(), portfolio.getCash(), portfolio.getHoldings());
+            JOptionPane.showMessageDialog(this, "Portfolio saved to " + f.getAbsolutePath(), "Saved",
+                    JOptionPane.INFORMATION_MESSAGE);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Failed to save: " + ex.getMessage(), "Error",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void loadPortfolio() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Load portfolio (CSV or binary snapshot)");
+        int ret = chooser.showOpenDialog(this);
+        if (ret != JFileChooser.APPROVE_OPTION)
+            return;
+        File f = chooser.getSelectedFile();
+        try {
+            Portfolio loaded = PortfolioIO.load(f.toPath());
+            loaded.attach(market);
+            if (journal != null) {
+                // the loaded state becomes the new recovery baseline
+                loaded.setJournal(journal);
+                loaded.snapshotTo(journal, true);
+            }
+            simulation.setPortfolio(loaded); // also cancels the old portfolio's open orders
+            this.portfolio = loaded;
+            // attach portfolio to UI and clear txn log & history
+            txnTableModel.refresh();
+            portfolio.clearHistory();
+            JOptionPane.showMessageDialog(this, "Portfolio loaded from " + f.getAbsolutePath(), "Loaded",
+                    JOptionPane.INFORMATION_MESSAGE);
+            updatePortfolioTable();
+            updateSummary();
+            chartPanel.repaint();
+        } catch (Exception ex) {
+            JOptionPane.showMessageDialog(this, "Failed to load: " + ex.getMessage(), "Error",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // ---------------------------
+    // Model classes (OOP)
+    // ---------------------------
+    // Thin view over one row of the Market's price columns
+    static class Stock {
+        private final Market market;
+        private final int id;
+
+        Stock(Market market, int id) {
+            this.market = market;
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getTicker() {
+            return market.getTicker(id);
+        }
+
+        public String getName() {
+            return market.getName(id);
+        }
+
+        public double getPrice() {
+            return market.getPrice(id);
+        }
+
+        public long getPriceTicks() {
+            return market.getPriceTicks(id);
+        }
+
+        public void setPrice(double price) {
+            market.setPrice(id, price);
+        }
+
+        public double getChangePercent() {
+            return market.getChangePercent(id);
+        }
+    }
+
+    // Symbol dictionary (ticker -> dense int id) plus primitive price columns indexed by id.
+    // Prices are held in paise (MatchingEngine ticks), so every move is exact to the paisa.
+    // Symbols are grouped into fixed-size shards, each with its own SplittableRandom stream,
+    // so a given seed yields the same prices whether step() runs on one thread or many.
+    // addStock() may run on the engine thread (a replay listing new tickers) while other threads
+    // read: it fills the columns before publishing the id through the volatile size and the
+    // concurrent ticker map, so readers see a symbol either fully listed or not at all.
+    static class Market {
+        static final int SHARD_SIZE = 4096;
+
+        private final Map<String, Integer> symbolIds = new java.util.concurrent.ConcurrentHashMap<>();
+        private String[] tickers = new String[16];
+        private String[] names = new String[16];
+        private long[] prices = new long[16]; // paise
+        private long[] prevPrices = new long[16];
+        private Stock[] views = new Stock[16];
+        private volatile int size;
+        // ids whose price moved in the latest update (a step or a single setPrice), tagged by epoch
+        private int[] changed = new int[16];
+        private int changedCount;
+        private int[] changedMark = new int[16]; // batch that last listed each id
+        private int batch;
+        private int[] shardChanged = new int[0];
+        private volatile long epoch;
+        private final SplittableRandom seedRnd;
+        private SplittableRandom[] shardRnd = new SplittableRandom[0];
+        private volatile ForkJoinPool pool; // null = step on the calling thread; swapped under the lock
+        private volatile PriceModel model = UniformWalk.INSTANCE;
+
+        public Market() {
+            this(System.nanoTime());
+        }
+
+        public Market(long seed) {
+            seedRnd = new SplittableRandom(seed);
+            // initial selection of stocks
+            addStock("RELI", "Reliance Industries", 2500.0);
+            addStock("TCS", "Tata Consultancy", 3600.0);
+            addStock("INFY", "Infosys", 1450.0);
+            addStock("HDFC", "HDFC Bank", 1500.0);
+            addStock("ICIC", "ICICI Bank", 920.0);
+            addStock("HIND", "Hindustan Unilever", 2500.0);
+        }
+
+        // returns the symbol id; re-adding a known ticker just resets its price
+        public synchronized int addStock(String ticker, String name, double price) {
+            long ticks = MatchingEngine.toTicks(price);
+            Integer known = symbolIds.get(ticker);
+            if (known != null) {
+                prices[known] = ticks;
+                prevPrices[known] = ticks;
+                return known;
+            }
+            int id = size;
+            if (id == prices.length)
+                grow(id * 2);
+            if (id % SHARD_SIZE == 0) {
+                shardRnd = Arrays.copyOf(shardRnd, shardRnd.length + 1);
+                shardRnd[shardRnd.length - 1] = seedRnd.split();
+                shardChanged = Arrays.copyOf(shardChanged, shardRnd.length);
+            }
+            tickers[id] = ticker;
+            names[id] = name;
+            prices[id] = ticks;
+            prevPrices[id] = ticks;
+            views[id] = new Stock(this, id);
+            symbolIds.put(ticker, id);
+            size = id + 1;
+            return id;
+        }
+
+        private void grow(int capacity) {
+            tickers = Arrays.copyOf(tickers, capacity);
+            names = Arrays.copyOf(names, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            prevPrices = Arrays.copyOf(prevPrices, capacity);
+            views = Arrays.copyOf(views, capacity);
+            changed = Arrays.copyOf(changed, capacity);
+            changedMark = Arrays.copyOf(changedMark, capacity);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // threads <= 1 steps on the calling thread; waits for a running step() before retiring the old pool
+        public synchronized void setParallelism(int threads) {
+            if (pool != null)
+                pool.shutdown();
+            pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        }
+
+        public int getParallelism() {
+            ForkJoinPool p = pool;
+            return p == null ? 1 : p.getParallelism();
+        }
+
+        // takes effect from the next step()
+        public void setPriceModel(PriceModel model) {
+            if (model == null)
+                throw new IllegalArgumentException("Price model must not be null");
+            this.model = model;
+        }
+
+        public PriceModel getPriceModel() {
+            return model;
+        }
+
+        // -1 if the ticker is not listed
+        public int idOf(String ticker) {
+            Integer id = symbolIds.get(ticker);
+            return id == null ? -1 : id;
+        }
+
+        public Stock getStock(String ticker) {
+            int id = idOf(ticker);
+            return id < 0 ? null : views[id];
+        }
+
+        public Stock getStock(int id) {
+            return views[id];
+        }
+
+        public Collection<Stock> getAllStocks() {
+            return Collections.unmodifiableList(Arrays.asList(views).subList(0, size));
+        }
+
+        public String getTicker(int id) {
+            return tickers[id];
+        }
+
+        public String getName(int id) {
+            return names[id];
+        }
+
+        public double getPrice(int id) {
+            return MatchingEngine.toPrice(prices[id]);
+        }
+
+        public long getPriceTicks(int id) {
+            return prices[id];
+        }
+
+        public void setPrice(int id, double price) {
+            prevPrices[id] = prices[id];
+            prices[id] = MatchingEngine.toTicks(price);
+            changed[0] = id;
+            changedCount = 1;
+            epoch++;
+        }
+
+        // Batched external updates (e.g. a replay feed): beginUpdate(), applyPrice() per move,
+        // then endUpdate() publishes them as one epoch, like a step().
+        public void beginUpdate() {
+            changedCount = 0;
+            batch++;
+        }
+
+        public void applyPrice(int id, double price) {
+            applyPriceTicks(id, MatchingEngine.toTicks(price));
+        }
+
+        public void applyPriceTicks(int id, long ticks) {
+            if (ticks == prices[id])
+                return;
+            prevPrices[id] = prices[id];
+            prices[id] = ticks;
+            if (changedMark[id] != batch) {
+                changedMark[id] = batch;
+                changed[changedCount++] = id;
+            }
+        }
+
+        public void endUpdate() {
+            epoch++;
+        }
+
+        // bumped after every update; a reader that saw epoch e - 1 can catch up from the changed ids
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public int getChangedCount() {
+            return changedCount;
+        }
+
+        public int getChangedId(int i) {
+            return changed[i];
+        }
+
+        public double getChangePercent(int id) {
+            long prev = prevPrices[id];
+            if (prev == 0)
+                return 0;
+            return (double) (prices[id] - prev) / prev;
+        }
+
+        // moves every symbol by the price model; holds the lock so the pool can't be shut down mid-step
+        public synchronized void step() {
+            int shards = shardRnd.length;
+            PriceModel m = model;
+            m.beginStep(this);
+            ForkJoinPool p = pool;
+            if (p == null || shards == 1) {
+                for (int s = 0; s < shards; s++)
+                    stepShard(s, m);
+            } else {
+                p.invoke(new StepTask(0, shards, m));
+            }
+            // each shard listed its moves at the start of its own slice; pack them together
+            int n = shards == 0 ? 0 : shardChanged[0];
+            for (int s = 1; s < shards; s++) {
+                System.arraycopy(changed, s * SHARD_SIZE, changed, n, shardChanged[s]);
+                n += shardChanged[s];
+            }
+            changedCount = n;
+            epoch++;
+        }
+
+        private void stepShard(int shard, PriceModel m) {
+            SplittableRandom rnd = shardRnd[shard];
+            long[] px = prices;
+            long[] prev = prevPrices;
+            int[] moved = changed;
+            int start = shard * SHARD_SIZE;
+            int c = start;
+            for (int i = start, n = Math.min(size, start + SHARD_SIZE); i < n; i++) {
+                long p = px[i];
+                long newP = m.move(i, p, rnd);
+                if (newP <= 1)
+                    newP = p; // avoid zero/negative
+                prev[i] = p;
+                px[i] = newP;
+                if (newP != p)
+                    moved[c++] = i;
+            }
+            shardChanged[shard] = c - start;
+        }
+
+        // splits a shard range in halves until one shard is left
+        private class StepTask extends RecursiveAction {
+            private final int from, to;
+            private final PriceModel model;
+
+            StepTask(int from, int to, PriceModel model) {
+                this.from = from;
+                this.to = to;
+                this.model = model;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from == 1) {
+                    stepShard(from, model);
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new StepTask(from, mid, model), new StepTask(mid, to, model));
+            }
+        }
+    }
+
+    // How Market.step() moves a symbol. beginStep() runs once per step on the stepping thread;
+    // move() then runs for every symbol, from several threads when the market steps in parallel,
+    // and draws only from the shard's random stream so a seed replays the same prices.
+    interface PriceModel {
+        default void beginStep(Market market) {
+        }
+
+        // new price in paise; a result <= 1 keeps the old price
+        long move(int id, long priceTicks, SplittableRandom rnd);
+
+        // a copy with the same parameters and its own state, seeded from seed, for simulations
+        // that must not advance this model; stateless models return themselves
+        default PriceModel fork(Market market, long seed) {
+            return this;
+        }
+
+        // uniform | factor
+        static PriceModel of(String name, int factors, long seed) {
+            switch (name) {
+            case "uniform":
+                return UniformWalk.INSTANCE;
+            case "factor":
+                return new FactorModel(factors, seed);
+            default:
+                throw new IllegalArgumentException("Unknown price model " + name);
+            }
+        }
+    }
+
+    // independent moves between -1.5% and +1.5%, to the nearest paisa
+    static class UniformWalk implements PriceModel {
+        static final UniformWalk INSTANCE = new UniformWalk();
+
+        @Override
+        public long move(int id, long priceTicks, SplittableRandom rnd) {
+            double pct = (rnd.nextDouble() * 3.0) - 1.5;
+            return Math.round(priceTicks * (1 + pct / 100.0));
+        }
+    }
+
+    // Geometric Brownian motion correlated through a low-rank factor model. Each step draws one
+    // shock per factor (factor 0 is the market, the rest are sectors) and a symbol's log return is
+    //   mu - var/2 + sigma * (sum of beta_k * f_k + sqrt(1 - sum of beta_k^2) * e)
+    // with its own e from the shard stream, so a tick costs O(symbols x factors) rather than an
+    // n x n covariance. A two-state regime chain scales the factor shocks in stressed markets.
+    // Symbols get default volatility and loadings from the seed the first time they are stepped.
+    static class FactorModel implements PriceModel {
+        static final double STRESS_ENTER = 0.002, STRESS_EXIT = 0.02, STRESS_SCALE = 2.5;
+
+        private final int factors;
+        private final SplittableRandom shockRnd; // factor shocks and regime
+        private final SplittableRandom paramRnd; // defaults for new symbols, in id order
+        private final double[] shocks;
+        private double[] loadings = new double[0]; // factors per symbol, row by row
+        private double[] vol = new double[0]; // per step
+        private double[] drift = new double[0]; // per step
+        private double[] systematic = new double[0]; // sum of squared loadings
+        private int known;
+        private boolean stressed;
+        private double scale = 1;
+
+        FactorModel(int factors, long seed) {
+            if (factors < 1)
+                throw new IllegalArgumentException("A factor model needs at least one factor");
+            this.factors = factors;
+            SplittableRandom root = new SplittableRandom(seed);
+            shockRnd = root.split();
+            paramRnd = root.split();
+            shocks = new double[factors];
+        }
+
+        public int getFactorCount() {
+            return factors;
+        }
+
+        public synchronized boolean isStressed() {
+            return stressed;
+        }
+
+        // per-step standard deviation of the log return
+        public synchronized void setVolatility(int id, double sigma) {
+            if (!(sigma >= 0))
+                throw new IllegalArgumentException("Volatility must be >= 0");
+            ensure(id + 1);
+            vol[id] = sigma;
+        }
+
+        // per-step expected log return before the variance correction
+        public synchronized void setDrift(int id, double mu) {
+            ensure(id + 1);
+            drift[id] = mu;
+        }
+
+        public synchronized void setLoading(int id, int factor, double beta) {
+            if (factor < 0 || factor >= factors)
+                throw new IllegalArgumentException("No factor " + factor);
+            ensure(id + 1);
+            int i = id * factors + factor;
+            double sum = systematic[id] - loadings[i] * loadings[i] + beta * beta;
+            if (sum > 1)
+                throw new IllegalArgumentException("Squared loadings of symbol " + id + " exceed 1");
+            loadings[i] = beta;
+            systematic[id] = sum;
+        }
+
+        public synchronized double getVolatility(int id) {
+            ensure(id + 1);
+            return vol[id];
+        }
+
+        public synchronized double getLoading(int id, int factor) {
+            ensure(id + 1);
+            return loadings[id * factors + factor];
+        }
+
+        // defaults: 0.4% - 1.2% volatility, market beta 0.3 - 0.7 and one sector (id modulo the
+        // sector count) at 0.2 - 0.5
+        private void ensure(int n) {
+            if (n <= known)
+                return;
+            if (n > vol.length) {
+                int cap = Math.max(n, vol.length * 2);
+                loadings = Arrays.copyOf(loadings, cap * factors);
+                vol = Arrays.copyOf(vol, cap);
+                drift = Arrays.copyOf(drift, cap);
+                systematic = Arrays.copyOf(systematic, cap);
+            }
+            for (int id = known; id < n; id++) {
+                vol[id] = 0.004 + paramRnd.nextDouble() * 0.008;
+                double market = 0.3 + paramRnd.nextDouble() * 0.4;
+                loadings[id * factors] = market;
+                double sum = market * market;
+                if (factors > 1) {
+                    double sector = 0.2 + paramRnd.nextDouble() * 0.3;
+                    loadings[id * factors + 1 + id % (factors - 1)] = sector;
+                    sum += sector * sector;
+                }
+                systematic[id] = sum;
+            }
+            known = n;
+        }
+
+        @Override
+        public synchronized PriceModel fork(Market market, long seed) {
+            ensure(market.size());
+            FactorModel f = new FactorModel(factors, seed);
+            f.loadings = loadings.clone();
+            f.vol = vol.clone();
+            f.drift = drift.clone();
+            f.systematic = systematic.clone();
+            f.known = known;
+            f.stressed = stressed;
+            f.scale = scale;
+            return f;
+        }
+
+        @Override
+        public synchronized void beginStep(Market market) {
+            ensure(market.size());
+            stressed = shockRnd.nextDouble() < (stressed ? 1 - STRESS_EXIT : STRESS_ENTER);
+            scale = stressed ? STRESS_SCALE : 1;
+            for (int k = 0; k < factors; k++)
+                shocks[k] = scale * shockRnd.nextGaussian();
+        }
+
+        @Override
+        public long move(int id, long priceTicks, SplittableRandom rnd) {
+            double[] b = loadings;
+            int row = id * factors;
+            double common = 0;
+            for (int k = 0; k < factors; k++)
+                common += b[row + k] * shocks[k];
+            double sys = systematic[id], sigma = vol[id];
+            double variance = sigma * sigma * (1 - sys + scale * scale * sys);
+            double r = drift[id] - 0.5 * variance + sigma * (common + Math.sqrt(1 - sys) * rnd.nextGaussian());
+            return Math.round(priceTicks * Math.exp(r));
+        }
+    }
+
+    // Prefix lookup over tickers and the words of company names, built once from a Market's
+    // symbols. Keys are upper-cased, sorted and packed into one char array per table, so the keys
+    // starting with a prefix are the range between two binary searches: a lookup costs O(log n)
+    // plus the matches it returns. Symbols listed after the build are not in the index.
+    static class SymbolIndex {
+        private final int size;
+        private final KeyTable tickers, words;
+        private final int[] seen; // last search that returned each id
+        private int stamp;
+
+        SymbolIndex(Market market) {
+            size = market.size();
+            StringBuilder sb = new StringBuilder();
+            String[] keys = new String[size];
+            for (int id = 0; id < size; id++)
+                keys[id] = entry(sb, market.getTicker(id), 0, market.getTicker(id).length(), id);
+            tickers = new KeyTable(keys, size);
+            int n = 0;
+            for (int id = 0; id < size; id++) {
+                String name = market.getName(id);
+                for (int i = 0, len = name.length(); i < len;) {
+                    while (i < len && Character.isWhitespace(name.charAt(i)))
+                        i++;
+                    int from = i;
+                    while (i < len && !Character.isWhitespace(name.charAt(i)))
+                        i++;
+                    if (i == from)
+                        break;
+                    if (n == keys.length)
+                        keys = Arrays.copyOf(keys, n * 2);
+                    keys[n++] = entry(sb, name, from, i, id);
+                }
+            }
+            words = new KeyTable(keys, n);
+            seen = new int[size];
+        }
+
+        // the upper-cased key, a 0 char and the id in two chars: plain string order then sorts
+        // by key and id, with a key before every longer key it is a prefix of
+        private static String entry(StringBuilder sb, String s, int from, int to, int id) {
+            sb.setLength(0);
+            for (int i = from; i < to; i++)
+                sb.append(Character.toUpperCase(s.charAt(i)));
+            return sb.append('\0').append((char) (id >>> 16)).append((char) id).toString();
+        }
+
+        // symbols indexed
+        public int size() {
+            return size;
+        }
+
+        // Writes the ids of symbols whose ticker starts with prefix (in ticker order), then those
+        // with a name word starting with it, each id once and at most limit of them; returns the
+        // count. Case-insensitive; not thread-safe.
+        public int search(CharSequence prefix, int[] out, int limit) {
+            if (++stamp == 0) {
+                Arrays.fill(seen, 0);
+                stamp = 1;
+            }
+            int n = tickers.collect(prefix, out, 0, limit);
+            return words.collect(prefix, out, n, limit);
+        }
+
+        private final class KeyTable {
+            private final char[] chars;
+            private final int[] starts; // key k is chars[starts[k], starts[k + 1])
+            private final int[] ids;
+
+            // sorts the first n entries in place
+            KeyTable(String[] entries, int n) {
+                Arrays.sort(entries, 0, n);
+                int total = 0;
+                for (int k = 0; k < n; k++)
+                    total += entries[k].length() - 3;
+                chars = new char[total];
+                starts = new int[n + 1];
+                ids = new int[n];
+                int pos = 0;
+                for (int k = 0; k < n; k++) {
+                    String e = entries[k];
+                    int len = e.length() - 3;
+                    e.getChars(0, len, chars, pos);
+                    starts[k] = pos;
+                    pos += len;
+                    ids[k] = e.charAt(len + 1) << 16 | e.charAt(len + 2);
+                }
+                starts[n] = pos;
+            }
+
+            private int collect(CharSequence prefix, int[] out, int n, int limit) {
+                for (int k = bound(prefix, false), end = bound(prefix, true); k < end && n < limit; k++) {
+                    int id = ids[k];
+                    if (seen[id] != stamp) {
+                        seen[id] = stamp;
+                        out[n++] = id;
+                    }
+                }
+                return n;
+            }
+
+            // first key that starts with prefix or sorts after it; with past, the first one that
+            // sorts after every key starting with it
+            private int bound(CharSequence prefix, boolean past) {
+                int lo = 0, hi = ids.length;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    int c = comparePrefix(mid, prefix);
+                    if (c < 0 || past && c == 0)
+                        lo = mid + 1;
+                    else
+                        hi = mid;
+                }
+                return lo;
+            }
+
+            // < 0 if key k sorts before prefix, 0 if it starts with it, > 0 if it sorts after it
+            private int comparePrefix(int k, CharSequence prefix) {
+                int from = starts[k], len = starts[k + 1] - from, plen = prefix.length();
+                for (int i = 0, n = Math.min(len, plen); i < n; i++) {
+                    char a = chars[from + i], b = Character.toUpperCase(prefix.charAt(i));
+                    if (a != b)
+                        return a - b;
+                }
+                return len < plen ? -1 : 0;
+            }
+        }
+    }
+
+    // Quantity and cost basis in paise; the average price is derived from them, so repeated
+    // buys and partial sells don't accumulate rounding
+    static class Holding {
+        private final String ticker;
+        private int qty;
+        private long cost; // paise paid for the current qty
+        private int symbolId = -1; // id in the owning Portfolio's attached Market, set by attach()
+        private long markPrice; // paise this holding is currently valued at by its Portfolio
+
+        public Holding(String ticker, int qty, double avgPrice) {
+            this.ticker = ticker;
+            this.qty = qty;
+            this.cost = Math.round(avgPrice * 100.0 * qty);
+        }
+
+        private Holding(Holding h) {
+            this.ticker = h.ticker;
+            this.qty = h.qty;
+            this.cost = h.cost;
+        }
+
+        // a holding with an exact cost basis in paise
+        static Holding ofCost(String ticker, int qty, long cost) {
+            Holding h = new Holding(ticker, qty, 0.0);
+            h.cost = cost;
+            return h;
+        }
+
+        public String getTicker() {
+            return ticker;
+        }
+
+        public int getQty() {
+            return qty;
+        }
+
+        public double getAvgPrice() {
+            return qty == 0 ? 0.0 : cost / 100.0 / qty;
+        }
+
+        // paise
+        public long getCost() {
+            return cost;
+        }
+
+        // paise, rounded half up
+        public long getAvgPriceTicks() {
+            return qty == 0 ? 0 : (cost + qty / 2) / qty;
+        }
+
+        public void addQty(int q, double price) {
+            addQtyTicks(q, MatchingEngine.toTicks(price));
+        }
+
+        public void addQtyTicks(int q, long priceTicks) {
+            this.cost = Math.addExact(cost, Math.multiplyExact(priceTicks, q));
+            this.qty += q;
+        }
+
+        // the shares sold take their share of the cost; leftover paise stay with the rest
+        public void reduceQty(int q) {
+            if (q > this.qty)
+                throw new IllegalArgumentException("Reduce more than holding");
+            this.cost -= q == qty ? cost : cost / qty * q + cost % qty * q / qty;
+            this.qty -= q;
+        }
+    }
+
+    // One row of a TransactionLog, built on demand
+    static class Transaction {
+        public final long epochNanos;
+        public final String type; // BUY/SELL
+        public final String ticker;
+        public final int qty;
+        public final long priceTicks, valueTicks; // paise
+        public final double price;
+        public final double value;
+
+        public Transaction(long epochNanos, String type, String ticker, int qty, long priceTicks) {
+            this.epochNanos = epochNanos;
+            this.type = type;
+            this.ticker = ticker;
+            this.qty = qty;
+            this.priceTicks = priceTicks;
+            this.valueTicks = priceTicks * qty;
+            this.price = MatchingEngine.toPrice(priceTicks);
+            this.value = MatchingEngine.toPrice(valueTicks);
+        }
+    }
+
+    // Append-only columnar trade log: time, symbol id, side, qty and price (paise) in primitive
+    // arrays that grow by doubling. Symbol ids come from the log's own ticker dictionary.
+    static class TransactionLog {
+        private final Map<String, Integer> symbolIds = new HashMap<>();
+        private String[] symbols = new String[16];
+        private int symbolCount;
+        private long[] times = new long[64]; // epoch nanos
+        private int[] symbolCol = new int[64];
+        private boolean[] buys = new boolean[64];
+        private int[] qtys = new int[64];
+        private long[] prices = new long[64];
+        private int size;
+
+        public synchronized void add(long epochNanos, String ticker, boolean buy, int qty, long priceTicks) {
+            if (size == times.length) {
+                int cap = size * 2;
+                times = Arrays.copyOf(times, cap);
+                symbolCol = Arrays.copyOf(symbolCol, cap);
+                buys = Arrays.copyOf(buys, cap);
+                qtys = Arrays.copyOf(qtys, cap);
+                prices = Arrays.copyOf(prices, cap);
+            }
+            times[size] = epochNanos;
+            symbolCol[size] = symbolId(ticker);
+            buys[size] = buy;
+            qtys[size] = qty;
+            prices[size] = priceTicks;
+            size++;
+        }
+
+        private int symbolId(String ticker) {
+            Integer id = symbolIds.get(ticker);
+            if (id != null)
+                return id;
+            if (symbolCount == symbols.length)
+                symbols = Arrays.copyOf(symbols, symbolCount * 2);
+            symbols[symbolCount] = ticker;
+            symbolIds.put(ticker, symbolCount);
+            return symbolCount++;
+        }
+
+        public synchronized int size() {
+            return size;
+        }
+
+        // i = 0 is the oldest trade
+        public synchronized long getTime(int i) {
+            return times[i];
+        }
+
+        public synchronized String getTicker(int i) {
+            return symbols[symbolCol[i]];
+        }
+
+        public synchronized boolean isBuy(int i) {
+            return buys[i];
+        }
+
+        public synchronized int getQty(int i) {
+            return qtys[i];
+        }
+
+        public synchronized double getPrice(int i) {
+            return MatchingEngine.toPrice(prices[i]);
+        }
+
+        public synchronized long getPriceTicks(int i) {
+            return prices[i];
+        }
+
+        public synchronized Transaction get(int i) {
+            return new Transaction(times[i], buys[i] ? "BUY" : "SELL", symbols[symbolCol[i]], qtys[i], prices[i]);
+        }
+    }
+
+    // Fixed-capacity ring of doubles; once full, each add overwrites the oldest entry.
+    // Sliding min/max come from two monotonic deques of slot indexes, O(1) amortised per add.
+    // Readers that walk the entries should hold the buffer's monitor.
+    static class DoubleRingBuffer {
+        private final double[] values;
+        private final int[] minQ; // slots with increasing values, front = min
+        private final int[] maxQ; // slots with decreasing values, front = max
+        private int head, count; // slot of the oldest entry, number of entries
+        private long added; // entries ever added, so readers can tell which ones are new
+        private int clears;
+        private int minHead, minCount, maxHead, maxCount;
+
+        public DoubleRingBuffer(int capacity) {
+            if (capacity <= 0)
+                throw new IllegalArgumentException("Capacity must be positive");
+            values = new double[capacity];
+            minQ = new int[capacity];
+            maxQ = new int[capacity];
+        }
+
+        public synchronized void add(double v) {
+            int cap = values.length;
+            if (count == cap) {
+                // evict the oldest entry before its slot is reused
+                if (minQ[minHead] == head) {
+                    minHead = (minHead + 1) % cap;
+                    minCount--;
+                }
+                if (maxQ[maxHead] == head) {
+                    maxHead = (maxHead + 1) % cap;
+                    maxCount--;
+                }
+                head = (head + 1) % cap;
+                count--;
+            }
+            int slot = (head + count) % cap;
+            values[slot] = v;
+            count++;
+            while (minCount > 0 && values[minQ[(minHead + minCount - 1) % cap]] >= v)
+                minCount--;
+            minQ[(minHead + minCount++) % cap] = slot;
+            while (maxCount > 0 && values[maxQ[(maxHead + maxCount - 1) % cap]] <= v)
+                maxCount--;
+            maxQ[(maxHead + maxCount++) % cap] = slot;
+            added++;
+        }
+
+        public synchronized int size() {
+            return count;
+        }
+
+        public synchronized long getAddedCount() {
+            return added;
+        }
+
+        public synchronized int getClearCount() {
+            return clears;
+        }
+
+        public int capacity() {
+            return values.length;
+        }
+
+        public synchronized boolean isEmpty() {
+            return count == 0;
+        }
+
+        // i = 0 is the oldest entry
+        public synchronized double get(int i) {
+            if (i < 0 || i >= count)
+                throw new IndexOutOfBoundsException("Index " + i + ", size " + count);
+            return values[(head + i) % values.length];
+        }
+
+        public synchronized double last() {
+            return get(count - 1);
+        }
+
+        public synchronized double min() {
+            return count == 0 ? Double.NaN : values[minQ[minHead]];
+        }
+
+        public synchronized double max() {
+            return count == 0 ? Double.NaN : values[maxQ[maxHead]];
+        }
+
+        public synchronized void clear() {
+            head = count = 0;
+            minHead = minCount = maxHead = maxCount = 0;
+            clears++;
+        }
+    }
+
+    static class Portfolio {
+        // history.capacity can be raised into the millions to keep a full session
+        static final int DEFAULT_HISTORY_CAPACITY = Integer.getInteger("history.capacity", 500);
+
+        private long cash; // paise
+        private final Map<String, Holding> holdings = new LinkedHashMap<>();
+        private final TransactionLog transactions = new TransactionLog();
+        private final DoubleRingBuffer history; // portfolio market value over time
+
+        // Incremental mark-to-market against an attached Market: marketValue is the sum of
+        // qty * markPrice in paise, and only holdings whose symbol moved are re-marked. The sum
+        // is exact, but a mark lost to a race with the stepping thread would stick, so a full
+        // revaluation also runs every FULL_REVALUE_EVERY ticks, not only when updates were missed.
+        private static final int FULL_REVALUE_EVERY = 4096;
+        private Market market;
+        private Holding[] bySymbol = new Holding[0]; // reverse index: symbol id -> holding
+        private long marketValue;
+        private long markedEpoch = -1;
+        private int deltaApplies;
+
+        private TradeJournal journal; // null = trades are not journaled
+
+        public Portfolio(double initialCash) {
+            this(initialCash, DEFAULT_HISTORY_CAPACITY);
+        }
+
+        public Portfolio(double initialCash, int historyCapacity) {
+            this.cash = MatchingEngine.toTicks(initialCash);
+            this.history = new DoubleRingBuffer(historyCapacity);
+            recordHistory(null); // initial
+        }
+
+        public synchronized double getCash() {
+            return MatchingEngine.toPrice(cash);
+        }
+
+        // paise
+        public synchronized long getCashTicks() {
+            return cash;
+        }
+
+        public synchronized void setCash(double c) {
+            this.cash = MatchingEngine.toTicks(c);
+        }
+
+        public synchronized void setCashTicks(long c) {
+            this.cash = c;
+        }
+
+        public void buy(String ticker, int qty, double price) {
+            buyTicks(ticker, qty, MatchingEngine.toTicks(price));
+        }
+
+        public void sell(String ticker, int qty, double price) {
+            sellTicks(ticker, qty, MatchingEngine.toTicks(price));
+        }
+
+        // trades and history samples time how long they waited for the lock and how long they held it
+        public void buyTicks(String ticker, int qty, long priceTicks) {
+            long requested = Metrics.now();
+            synchronized (this) {
+                long acquired = Metrics.now();
+                try {
+                    applyBuy(ticker, qty, priceTicks);
+                    long t = TradeJournal.epochNanos(Instant.now());
+                    transactions.add(t, ticker, true, qty, priceTicks);
+                    journal(t, ticker, true, qty, priceTicks);
+                } finally {
+                    lockTimes(requested, acquired);
+                }
+            }
+        }
+
+        public void sellTicks(String ticker, int qty, long priceTicks) {
+            long requested = Metrics.now();
+            synchronized (this) {
+                long acquired = Metrics.now();
+                try {
+                    applySell(ticker, qty, priceTicks);
+                    long t = TradeJournal.epochNanos(Instant.now());
+                    transactions.add(t, ticker, false, qty, priceTicks);
+                    journal(t, ticker, false, qty, priceTicks);
+                } finally {
+                    lockTimes(requested, acquired);
+                }
+            }
+        }
+
+        private static void lockTimes(long requested, long acquired) {
+            if (Metrics.ENABLED) {
+                Metrics.PORTFOLIO_WAIT.record(acquired - requested);
+                Metrics.PORTFOLIO_HOLD.recordSince(acquired);
+            }
+        }
+
+        private void applyBuy(String ticker, int qty, long price) {
+            long cost = Math.multiplyExact(price, qty);
+            if (cost > cash)
+                throw new IllegalArgumentException("Not enough cash");
+            Holding h = holdings.get(ticker);
+            if (h == null) {
+                h = new Holding(ticker, 0, 0.0);
+                h.addQtyTicks(qty, price);
+                holdings.put(ticker, h);
+                index(h);
+            } else {
+                mark(h);
+                h.addQtyTicks(qty, price);
+                marketValue += qty * h.markPrice;
+            }
+            cash -= cost;
+        }
+
+        private void applySell(String ticker, int qty, long price) {
+            Holding h = holdings.get(ticker);
+            if (h == null || h.getQty() < qty)
+                throw new IllegalArgumentException("Not enough holdings");
+            long proceeds = Math.multiplyExact(price, qty);
+            mark(h);
+            h.reduceQty(qty);
+            marketValue -= qty * h.markPrice;
+            if (h.getQty() == 0) {
+                holdings.remove(ticker);
+                unindex(h);
+            }
+            cash += proceeds;
+        }
+
+        public synchronized void setJournal(TradeJournal journal) {
+            this.journal = journal;
+        }
+
+        private void journal(long epochNanos, String ticker, boolean buy, int qty, long priceTicks) {
+            if (journal == null)
+                return;
+            long count = journal.append(epochNanos, ticker, buy, qty, priceTicks);
+            if (count - journal.getSnapshotAt() >= TradeJournal.SNAPSHOT_EVERY)
+                journal.scheduleSnapshot(count, cash, copyHoldings());
+        }
+
+        private List<Holding> copyHoldings() {
+            List<Holding> copy = new ArrayList<>(holdings.size());
+            for (Holding h : holdings.values())
+                copy.add(new Holding(h));
+            return copy;
+        }
+
+        // state as of the journal's current record, taken under the portfolio lock
+        public synchronized void snapshotTo(TradeJournal j, boolean resetLog) {
+            j.scheduleSnapshot(j.getRecordCount(), cash, copyHoldings(), resetLog);
+        }
+
+        // journal replay: applies a recorded trade without journaling it again
+        public synchronized void replayTrade(long epochNanos, String ticker, boolean buy, int qty, long priceTicks) {
+            if (buy)
+                applyBuy(ticker, qty, priceTicks);
+            else
+                applySell(ticker, qty, priceTicks);
+            replayTransaction(epochNanos, ticker, buy, qty, priceTicks);
+        }
+
+        // journal replay: log entry for a trade already reflected in the snapshot
+        public synchronized void replayTransaction(long epochNanos, String ticker, boolean buy, int qty,
+                long priceTicks) {
+            transactions.add(epochNanos, ticker, buy, qty, priceTicks);
+        }
+
+        public synchronized boolean canSell(String ticker, int qty) {
+            Holding h = holdings.get(ticker);
+            return h != null && h.getQty() >= qty;
+        }
+
+        public synchronized List<Holding> getHoldings() {
+            return new ArrayList<>(holdings.values());
+        }
+
+        // Binds incremental valuation to a market; getMarketValue(market) is then O(moved symbols)
+        public synchronized void attach(Market market) {
+            this.market = market;
+            bySymbol = new Holding[market.size()];
+            for (Holding h : holdings.values())
+                index(h);
+            revalueAll();
+        }
+
+        private void index(Holding h) {
+            if (market == null)
+                return;
+            // re-resolved: a holding handed over by setHolding may carry another market's id
+            int id = h.symbolId = market.idOf(h.getTicker());
+            if (id < 0)
+                return;
+            if (id >= bySymbol.length)
+                bySymbol = Arrays.copyOf(bySymbol, Math.max(id + 1, market.size()));
+            bySymbol[id] = h;
+            h.markPrice = market.getPriceTicks(id);
+            marketValue += h.getQty() * h.markPrice;
+        }
+
+        private void unindex(Holding h) {
+            if (market != null && h.symbolId >= 0 && h.symbolId < bySymbol.length && bySymbol[h.symbolId] == h) {
+                bySymbol[h.symbolId] = null;
+                marketValue -= h.getQty() * h.markPrice;
+            }
+        }
+
+        // re-marks one holding at the current price
+        private void mark(Holding h) {
+            if (market == null || h.symbolId < 0)
+                return;
+            long p = market.getPriceTicks(h.symbolId);
+            marketValue += h.getQty() * (p - h.markPrice);
+            h.markPrice = p;
+        }
+
+        private void applyPriceChanges() {
+            long e = market.getEpoch();
+            if (e == markedEpoch)
+                return;
+            if (e == markedEpoch + 1 && ++deltaApplies < FULL_REVALUE_EVERY) {
+                Holding[] index = bySymbol;
+                for (int i = 0, n = market.getChangedCount(); i < n; i++) {
+                    int id = market.getChangedId(i);
+                    Holding h = id < index.length ? index[id] : null;
+                    if (h != null)
+                        mark(h);
+                }
+                // a concurrent step may have rewritten the changed ids while we read them
+                if (market.getEpoch() == e) {
+                    markedEpoch = e;
+                    return;
+                }
+            }
+            revalueAll();
+        }
+
+        private void revalueAll() {
+            markedEpoch = market.getEpoch();
+            deltaApplies = 0;
+            long mv = 0;
+            for (Holding h : holdings.values()) {
+                if (h.symbolId >= 0) {
+                    h.markPrice = market.getPriceTicks(h.symbolId);
+                    mv += h.getQty() * h.markPrice;
+                }
+            }
+            marketValue = mv;
+        }
+
+        public double getMarketValue(Market market) {
+            return MatchingEngine.toPrice(getMarketValueTicks(market));
+        }
+
+        // paise
+        public synchronized long getMarketValueTicks(Market market) {
+            if (market == this.market) {
+                applyPriceChanges();
+                return marketValue;
+            }
+            // any other market: the cached ids belong to the attached one
+            long mv = 0;
+            for (Holding h : holdings.values()) {
+                int id = market.idOf(h.getTicker());
+                if (id >= 0)
+                    mv += h.getQty() * market.getPriceTicks(id);
+            }
+            return mv;
+        }
+
+        public void recordHistory(Market market) {
+            long requested = Metrics.now();
+            synchronized (this) {
+                long acquired = Metrics.now();
+                double total = MatchingEngine.toPrice(cash + (market == null ? 0 : getMarketValueTicks(market)));
+                history.add(total); // oldest value drops out once the buffer is full
+                lockTimes(requested, acquired);
+            }
+        }
+
+        // live buffer, not a copy
+        public DoubleRingBuffer getHistory() {
+            return history;
+        }
+
+        public synchronized void clearHistory() {
+            history.clear();
+        }
+
+        // live log, not a copy
+        public TransactionLog getTransactionLog() {
+            return transactions;
+        }
+
+        public String now() {
+            return LocalDateTime.now().format(TIME_FMT);
+        }
+
+        // for save/load
+        public synchronized void setHolding(Holding h) {
+            Holding old = holdings.put(h.getTicker(), h);
+            if (old != null)
+                unindex(old);
+            index(h);
+        }
+    }
+
+    // ---------------------------
+    // Multi-account store
+    // ---------------------------
+    // Many client accounts against one Market. Accounts are striped over power-of-two shards
+    // (account id & mask picks the shard), each guarded by its own monitor, so trades on
+    // different shards never contend. Positions live in a per-shard slab of primitive slots:
+    // every slot is chained into its account's list and, doubly linked, into a per-symbol
+    // list, which answers "who holds X" without scanning. valueAll() marks every account to
+    // market as one parallel batch over the shards; P&L queries read that last valuation.
+    // Valuation uses the store's own price column, fed by mark() from the price bus, so it sees
+    // whole published ticks rather than a Market that the engine may be stepping meanwhile.
+    // mark() and valueAll() belong to one thread (the valuation subscriber).
+    static class AccountStore {
+        private final Market market;
+        private final Shard[] shards;
+        private final int shardBits, shardMask;
+        // written under the store lock once the account's shard row exists; read without it,
+        // so the per-trade id check never touches the store-wide monitor
+        private volatile int accounts;
+        private ForkJoinPool pool; // null = value on the calling thread
+        private double[] marks; // valuation price per symbol id, 0 until marked
+
+        AccountStore(Market market, int shardCount) {
+            if (shardCount < 1)
+                throw new IllegalArgumentException("Shard count must be positive");
+            this.market = market;
+            marks = new double[Math.max(16, market.size())];
+            for (int id = 0, n = market.size(); id < n; id++)
+                marks[id] = market.getPrice(id);
+            int n = Integer.highestOneBit(shardCount);
+            if (n < shardCount)
+                n <<= 1;
+            shardBits = Integer.numberOfTrailingZeros(n);
+            shardMask = n - 1;
+            shards = new Shard[n];
+            for (int i = 0; i < n; i++)
+                shards[i] = new Shard(i);
+        }
+
+        public synchronized void setParallelism(int threads) {
+            if (pool != null)
+                pool.shutdown();
+            pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        }
+
+        // returns the new account's id; ids are dense from 0
+        public synchronized int createAccount(double initialCash) {
+            int id = accounts;
+            shard(id).open(id >>> shardBits, initialCash);
+            accounts++;
+            return id;
+        }
+
+        public int size() {
+            return accounts;
+        }
+
+        public int getShardCount() {
+            return shards.length;
+        }
+
+        private Shard shard(int account) {
+            return shards[account & shardMask];
+        }
+
+        private int local(int account) {
+            if (account < 0 || account >= accounts)
+                throw new IllegalArgumentException("No account " + account);
+            return account >>> shardBits;
+        }
+
+        public void buy(int account, int symbolId, int qty, double price) {
+            shard(account).buy(local(account), symbolId, qty, price);
+        }
+
+        public void sell(int account, int symbolId, int qty, double price) {
+            shard(account).sell(local(account), symbolId, qty, price);
+        }
+
+        public double getCash(int account) {
+            Shard s = shard(account);
+            int a = local(account);
+            synchronized (s) {
+                return s.cash[a];
+            }
+        }
+
+        public int getQty(int account, int symbolId) {
+            Shard s = shard(account);
+            int a = local(account);
+            synchronized (s) {
+                int slot = s.find(a, symbolId);
+                return slot < 0 ? 0 : s.sQty[slot];
+            }
+        }
+
+        // as of the last valueAll()
+        public double getValue(int account) {
+            Shard s = shard(account);
+            int a = local(account);
+            synchronized (s) {
+                return s.value[a];
+            }
+        }
+
+        public double getPnl(int account) {
+            Shard s = shard(account);
+            int a = local(account);
+            synchronized (s) {
+                return s.value[a] - s.deposits[a];
+            }
+        }
+
+        // valuation price of a symbol from here on, normally one published price event
+        public void mark(int symbolId, double price) {
+            if (symbolId >= marks.length)
+                marks = Arrays.copyOf(marks, Math.max(symbolId + 1, marks.length * 2));
+            marks[symbolId] = price;
+        }
+
+        // marks every account to market at the marked prices; one task per shard
+        public void valueAll() {
+            ForkJoinPool p;
+            synchronized (this) {
+                p = pool;
+            }
+            if (p == null) {
+                for (Shard s : shards)
+                    s.valueAll(marks);
+            } else {
+                p.invoke(new ValueTask(0, shards.length));
+            }
+        }
+
+        // account ids with the highest P&L at the last valuation, best first
+        public int[] topByPnl(int n) {
+            if (n <= 0)
+                return new int[0];
+            // min-heap on P&L holding the best n seen so far
+            int[] ids = new int[n];
+            double[] pnl = new double[n];
+            int size = 0;
+            for (Shard s : shards) {
+                synchronized (s) {
+                    for (int a = 0; a < s.accounts; a++) {
+                        double v = s.value[a] - s.deposits[a];
+                        if (size < n) {
+                            int i = size++;
+                            while (i > 0 && pnl[(i - 1) >>> 1] > v) {
+                                int parent = (i - 1) >>> 1;
+                                pnl[i] = pnl[parent];
+                                ids[i] = ids[parent];
+                                i = parent;
+                            }
+                            pnl[i] = v;
+                            ids[i] = (a << shardBits) | s.index;
+                        } else if (v > pnl[0]) {
+                            siftDown(pnl, ids, size, v, (a << shardBits) | s.index);
+                        }
+                    }
+                }
+            }
+            // drain the heap, smallest first, into the result from the back
+            int[] top = new int[size];
+            for (int k = size - 1; k >= 0; k--) {
+                top[k] = ids[0];
+                int last = k;
+                if (last > 0)
+                    siftDown(pnl, ids, last, pnl[last], ids[last]);
+            }
+            return top;
+        }
+
+        // replaces the heap root with (v, id) and restores the heap over [0, size)
+        private static void siftDown(double[] pnl, int[] ids, int size, double v, int id) {
+            int i = 0;
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= size)
+                    break;
+                if (c + 1 < size && pnl[c + 1] < pnl[c])
+                    c++;
+                if (pnl[c] >= v)
+                    break;
+                pnl[i] = pnl[c];
+                ids[i] = ids[c];
+                i = c;
+            }
+            pnl[i] = v;
+            ids[i] = id;
+        }
+
+        // ids of every account with a position in the symbol, ascending
+        public int[] holdersOf(int symbolId) {
+            int[] out = new int[16];
+            int n = 0;
+            for (Shard s : shards) {
+                synchronized (s) {
+                    if (symbolId >= s.symHead.length)
+                        continue;
+                    for (int slot = s.symHead[symbolId]; slot >= 0; slot = s.sSymNext[slot]) {
+                        if (n == out.length)
+                            out = Arrays.copyOf(out, n * 2);
+                        out[n++] = (s.sOwner[slot] << shardBits) | s.index;
+                    }
+                }
+            }
+            int[] result = Arrays.copyOf(out, n);
+            Arrays.sort(result);
+            return result;
+        }
+
+        public int[] holdersOf(String ticker) {
+            int id = market.idOf(ticker);
+            return id < 0 ? new int[0] : holdersOf(id);
+        }
+
+        private class ValueTask extends RecursiveAction {
+            private final int from, to;
+
+            ValueTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from == 1) {
+                    shards[from].valueAll(marks);
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new ValueTask(from, mid), new ValueTask(mid, to));
+            }
+        }
+
+        // One stripe of accounts. Per-account columns are indexed by the local account number;
+        // position slots are recycled through a free list chained on sNext.
+        static class Shard {
+            final int index;
+            int accounts;
+            double[] cash = new double[16];
+            double[] deposits = new double[16];
+            double[] value = new double[16];
+            int[] posHead = new int[16]; // first slot of each account's positions, -1 if none
+
+            int[] sOwner = new int[16];
+            int[] sSymbol = new int[16];
+            int[] sQty = new int[16];
+            double[] sCost = new double[16]; // total cost basis
+            int[] sNext = new int[16]; // next slot of the same account, or next free slot
+            int[] sSymNext = new int[16];
+            int[] sSymPrev = new int[16];
+            int slotsUsed;
+            int freeSlot = -1;
+            int[] symHead = new int[0]; // first slot per symbol id, -1 if no holders
+
+            Shard(int index) {
+                this.index = index;
+            }
+
+            synchronized void open(int a, double initialCash) {
+                if (a >= cash.length) {
+                    int cap = Math.max(a + 1, cash.length * 2);
+                    cash = Arrays.copyOf(cash, cap);
+                    deposits = Arrays.copyOf(deposits, cap);
+                    value = Arrays.copyOf(value, cap);
+                    posHead = Arrays.copyOf(posHead, cap);
+                }
+                cash[a] = initialCash;
+                deposits[a] = initialCash;
+                value[a] = initialCash;
+                posHead[a] = -1;
+                accounts = Math.max(accounts, a + 1);
+            }
+
+            // the account's slot for the symbol, or -1
+            int find(int a, int symbolId) {
+                for (int s = posHead[a]; s >= 0; s = sNext[s])
+                    if (sSymbol[s] == symbolId)
+                        return s;
+                return -1;
+            }
+
+            synchronized void buy(int a, int symbolId, int qty, double price) {
+                if (qty <= 0)
+                    throw new IllegalArgumentException("Quantity must be positive");
+                double cost = qty * price;
+                if (cost > cash[a])
+                    throw new IllegalArgumentException("Not enough cash");
+                int s = find(a, symbolId);
+                if (s < 0)
+                    s = allocate(a, symbolId);
+                sQty[s] += qty;
+                sCost[s] += cost;
+                cash[a] -= cost;
+            }
+
+            synchronized void sell(int a, int symbolId, int qty, double price) {
+                if (qty <= 0)
+                    throw new IllegalArgumentException("Quantity must be positive");
+                int s = find(a, symbolId);
+                if (s < 0 || sQty[s] < qty)
+                    throw new IllegalArgumentException("Not enough holdings");
+                sCost[s] -= sCost[s] * qty / sQty[s];
+                sQty[s] -= qty;
+                cash[a] += qty * price;
+                if (sQty[s] == 0)
+                    release(a, s);
+            }
+
+            private int allocate(int a, int symbolId) {
+                int s;
+                if (freeSlot >= 0) {
+                    s = freeSlot;
+                    freeSlot = sNext[s];
+                } else {
+                    if (slotsUsed == sOwner.length) {
+                        int cap = slotsUsed * 2;
+                        sOwner = Arrays.copyOf(sOwner, cap);
+                        sSymbol = Arrays.copyOf(sSymbol, cap);
+                        sQty = Arrays.copyOf(sQty, cap);
+                        sCost = Arrays.copyOf(sCost, cap);
+                        sNext = Arrays.copyOf(sNext, cap);
+                        sSymNext = Arrays.copyOf(sSymNext, cap);
+                        sSymPrev = Arrays.copyOf(sSymPrev, cap);
+                    }
+                    s = slotsUsed++;
+                }
+                sOwner[s] = a;
+                sSymbol[s] = symbolId;
+                sQty[s] = 0;
+                sCost[s] = 0.0;
+                sNext[s] = posHead[a];
+                posHead[a] = s;
+                if (symbolId >= symHead.length) {
+                    int old = symHead.length;
+                    symHead = Arrays.copyOf(symHead, Math.max(symbolId + 1, old * 2));
+                    Arrays.fill(symHead, old, symHead.length, -1);
+                }
+                int head = symHead[symbolId];
+                sSymPrev[s] = -1;
+                sSymNext[s] = head;
+                if (head >= 0)
+                    sSymPrev[head] = s;
+                symHead[symbolId] = s;
+                return s;
+            }
+
+            private void release(int a, int s) {
+                if (posHead[a] == s) {
+                    posHead[a] = sNext[s];
+                } else {
+                    int p = posHead[a];
+                    while (sNext[p] != s)
+                        p = sNext[p];
+                    sNext[p] = sNext[s];
+                }
+                int prev = sSymPrev[s], next = sSymNext[s];
+                if (prev >= 0)
+                    sSymNext[prev] = next;
+                else
+                    symHead[sSymbol[s]] = next;
+                if (next >= 0)
+                    sSymPrev[next] = prev;
+                sNext[s] = freeSlot;
+                freeSlot = s;
+            }
+
+            // one linear pass over the slab; free slots have zero quantity
+            synchronized void valueAll(double[] marks) {
+                System.arraycopy(cash, 0, value, 0, accounts);
+                for (int s = 0; s < slotsUsed; s++) {
+                    int q = sQty[s], sym = sSymbol[s];
+                    if (q != 0 && sym < marks.length)
+                        value[sOwner[s]] += q * marks[sym];
+                }
+            }
+        }
+    }
+
+    // ---------------------------
+    // Order matching
+    // ---------------------------
+    interface FillListener {
+        // maker = resting order, taker = incoming order; the fill is at the maker's price
+        void onFill(long takerOrderId, long makerOrderId, int symbolId, boolean takerBuy, int qty, long priceTicks,
+                int takerOwner, int makerOwner);
+    }
+
+    // Price-time priority matching, one OrderBook per symbol. Prices are integer ticks (0.01).
+    // Orders live in a preallocated struct-of-arrays pool and each book keeps FIFO queues in
+    // primitive per-level arrays over a band around its reference price, plus a bitmap of
+    // non-empty levels, so submit/match/cancel allocate nothing. recenter() moves the band with
+    // the price. Listeners run under the engine lock and must not call back into the engine.
+    static class MatchingEngine {
+        static final long REJECTED = -1L;
+        static final long MARKET = 0L; // limit value for market (immediate-or-cancel) orders
+        static final double DEFAULT_BAND = 0.20; // +/-20% of the reference price, like a circuit limit
+
+        private final FillListener listener;
+        private final double bandFraction; // of the reference price, each side
+        // order pool; free slots are chained through oNext
+        private final int[] oQty, oOwner, oSymbol, oLevel, oNext, oPrev, oSerial;
+        private final boolean[] oBuy;
+        private int freeHead;
+        private OrderBook[] books = new OrderBook[16];
+        private int[] bookSymbols = new int[16];
+        private int bookCount;
+
+        MatchingEngine(int poolCapacity, FillListener listener) {
+            this(poolCapacity, listener, DEFAULT_BAND);
+        }
+
+        MatchingEngine(int poolCapacity, FillListener listener, double bandFraction) {
+            if (!(bandFraction > 0 && bandFraction < 1))
+                throw new IllegalArgumentException("Band must be between 0 and 1: " + bandFraction);
+            this.listener = listener;
+            this.bandFraction = bandFraction;
+            oQty = new int[poolCapacity];
+            oOwner = new int[poolCapacity];
+            oSymbol = new int[poolCapacity];
+            oLevel = new int[poolCapacity];
+            oNext = new int[poolCapacity];
+            oPrev = new int[poolCapacity];
+            oSerial = new int[poolCapacity];
+            oBuy = new boolean[poolCapacity];
+            for (int i = 0; i < poolCapacity; i++)
+                oNext[i] = i + 1;
+            oNext[poolCapacity - 1] = -1;
+        }
+
+        static long toTicks(double price) {
+            return Math.round(price * 100.0);
+        }
+
+        static double toPrice(long ticks) {
+            return ticks / 100.0;
+        }
+
+        public synchronized boolean hasBook(int symbolId) {
+            return symbolId < books.length && books[symbolId] != null;
+        }
+
+        public synchronized void openBook(int symbolId, long refTicks) {
+            if (hasBook(symbolId))
+                return;
+            if (symbolId >= books.length)
+                books = Arrays.copyOf(books, Math.max(symbolId + 1, books.length * 2));
+            if (bookCount == bookSymbols.length)
+                bookSymbols = Arrays.copyOf(bookSymbols, bookCount * 2);
+            long band = band(refTicks);
+            books[symbolId] = new OrderBook(refTicks, band, refTicks - band, refTicks + band);
+            bookSymbols[bookCount++] = symbolId;
+        }
+
+        private long band(long refTicks) {
+            return Math.max(1L, (long) (refTicks * bandFraction));
+        }
+
+        // Once the reference price has moved more than half the band from the book's, rebuilds
+        // the book around it. Resting orders keep their price and time priority; the new band is
+        // widened to cover any that would fall outside it. Returns true if the book was rebuilt.
+        public synchronized boolean recenter(int symbolId, long refTicks) {
+            if (!hasBook(symbolId) || refTicks <= 0)
+                return false;
+            OrderBook old = books[symbolId];
+            if (Math.abs(refTicks - old.ref) * 2 <= old.band)
+                return false;
+            long band = band(refTicks);
+            long lo = refTicks - band, hi = refTicks + band;
+            if (old.bestBid >= 0) {
+                lo = Math.min(lo, old.base + old.nextSet(old.bidBits, 0));
+                hi = Math.max(hi, old.base + old.bestBid);
+            }
+            if (old.bestAsk < old.levels) {
+                lo = Math.min(lo, old.base + old.bestAsk);
+                hi = Math.max(hi, old.base + old.prevSet(old.askBits, old.levels - 1));
+            }
+            // a book with nothing resting (the house quotes are pulled before a requote) lends
+            // its arrays to the new one when they are large enough
+            boolean empty = old.bidLevels == 0 && old.askLevels == 0;
+            OrderBook book = new OrderBook(refTicks, band, lo, hi, empty ? old : null);
+            // only the occupied levels, found through the bitmaps
+            for (int lvl = old.bestBid; lvl >= 0; lvl = old.prevSet(old.bidBits, lvl - 1))
+                for (int o = old.bidHead[lvl], next; o >= 0; o = next) {
+                    next = oNext[o];
+                    book.rest(o, (int) (old.base + lvl - book.base));
+                }
+            for (int lvl = old.bestAsk; lvl < old.levels; lvl = old.nextSet(old.askBits, lvl + 1))
+                for (int o = old.askHead[lvl], next; o >= 0; o = next) {
+                    next = oNext[o];
+                    book.rest(o, (int) (old.base + lvl - book.base));
+                }
+            books[symbolId] = book;
+            return true;
+        }
+
+        // lowest and highest limit price the book accepts, or REJECTED without a book
+        public synchronized long lowestPrice(int symbolId) {
+            return hasBook(symbolId) ? books[symbolId].base : REJECTED;
+        }
+
+        public synchronized long highestPrice(int symbolId) {
+            return hasBook(symbolId) ? books[symbolId].base + books[symbolId].levels - 1 : REJECTED;
+        }
+
+        public synchronized int getBookCount() {
+            return bookCount;
+        }
+
+        public synchronized int getBookSymbol(int i) {
+            return bookSymbols[i];
+        }
+
+        // returns the order id, or REJECTED (no book, price outside the band, pool exhausted)
+        public synchronized long submit(int symbolId, boolean buy, int qty, long limitTicks, int owner) {
+            return submit(symbolId, buy, qty, limitTicks, owner, false);
+        }
+
+        // immediateOrCancel: a limit order that never rests, whatever does not match at once lapses
+        public synchronized long submit(int symbolId, boolean buy, int qty, long limitTicks, int owner,
+                boolean immediateOrCancel) {
+            if (qty <= 0 || !hasBook(symbolId))
+                return REJECTED;
+            OrderBook book = books[symbolId];
+            boolean market = limitTicks == MARKET;
+            if (!market && (limitTicks < book.base || limitTicks >= book.base + book.levels))
+                return REJECTED;
+            int o = freeHead;
+            if (o < 0)
+                return REJECTED;
+            freeHead = oNext[o];
+            oSerial[o]++;
+            oQty[o] = qty;
+            oOwner[o] = owner;
+            oSymbol[o] = symbolId;
+            oBuy[o] = buy;
+            long id = orderId(o);
+            if (buy)
+                book.matchBuy(o, id, market ? Long.MAX_VALUE : limitTicks);
+            else
+                book.matchSell(o, id, market ? Long.MIN_VALUE : limitTicks);
+            if (oQty[o] > 0 && !market && !immediateOrCancel)
+                book.rest(o, (int) (limitTicks - book.base));
+            else
+                release(o);
+            return id;
+        }
+
+        public synchronized boolean cancel(long orderId) {
+            int o = slotOf(orderId);
+            if (o < 0)
+                return false;
+            books[oSymbol[o]].unlink(o);
+            release(o);
+            return true;
+        }
+
+        // cancels every resting order of one owner; O(pool size)
+        public synchronized int cancelAll(int owner) {
+            int n = 0;
+            for (int o = 0; o < oQty.length; o++) {
+                if (oQty[o] > 0 && oOwner[o] == owner && oLevel[o] >= 0) {
+                    books[oSymbol[o]].unlink(o);
+                    release(o);
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        // open quantity of a resting order, 0 once it is filled or cancelled
+        public synchronized int remaining(long orderId) {
+            int o = slotOf(orderId);
+            return o < 0 ? 0 : oQty[o];
+        }
+
+        public synchronized long bestBid(int symbolId) {
+            OrderBook b = hasBook(symbolId) ? books[symbolId] : null;
+            return b == null || b.bestBid < 0 ? REJECTED : b.base + b.bestBid;
+        }
+
+        public synchronized long bestAsk(int symbolId) {
+            OrderBook b = hasBook(symbolId) ? books[symbolId] : null;
+            return b == null || b.bestAsk >= b.levels ? REJECTED : b.base + b.bestAsk;
+        }
+
+        private long orderId(int o) {
+            return ((long) oSerial[o] << 32) | o;
+        }
+
+        private int slotOf(long orderId) {
+            int o = (int) orderId;
+            if (orderId < 0 || o >= oQty.length || oSerial[o] != (int) (orderId >>> 32) || oQty[o] == 0)
+                return -1;
+            return o;
+        }
+
+        private void release(int o) {
+            oQty[o] = 0;
+            oLevel[o] = -1;
+            oNext[o] = freeHead;
+            freeHead = o;
+        }
+
+        private final class OrderBook {
+            final long ref, band; // the band recenter() measures drift against
+            final long base; // price of level 0
+            final int levels;
+            final int[] bidHead, bidTail, askHead, askTail; // may be longer than levels
+            final long[] bidBits, askBits; // non-empty levels
+            int bidLevels, askLevels; // non-empty levels per side, so emptying a side never scans
+            int bestBid = -1; // -1 = no bids
+            int bestAsk; // levels = no asks
+
+            OrderBook(long refTicks, long band, long lo, long hi) {
+                this(refTicks, band, lo, hi, null);
+            }
+
+            // levels from lo to hi inclusive, in the arrays of empty (a book with nothing resting)
+            // when they are large enough; new arrays get a quarter to spare for later recenters
+            OrderBook(long refTicks, long band, long lo, long hi, OrderBook empty) {
+                ref = refTicks;
+                this.band = band;
+                base = Math.max(1L, lo);
+                levels = Math.toIntExact(hi - base + 1);
+                if (empty != null && empty.bidHead.length >= levels) {
+                    bidHead = empty.bidHead;
+                    bidTail = empty.bidTail;
+                    askHead = empty.askHead;
+                    askTail = empty.askTail;
+                    bidBits = empty.bidBits;
+                    askBits = empty.askBits;
+                } else {
+                    int capacity = empty == null ? levels : levels + (levels >>> 2);
+                    bidHead = new int[capacity];
+                    bidTail = new int[capacity];
+                    askHead = new int[capacity];
+                    askTail = new int[capacity];
+                    Arrays.fill(bidHead, -1);
+                    Arrays.fill(askHead, -1);
+                    bidBits = new long[(capacity + 63) >>> 6];
+                    askBits = new long[(capacity + 63) >>> 6];
+                }
+                bestAsk = levels;
+            }
+
+            void matchBuy(int taker, long takerId, long limit) {
+                while (oQty[taker] > 0 && bestAsk < levels && base + bestAsk <= limit) {
+                    int lvl = bestAsk;
+                    fillLevel(taker, takerId, askHead, askTail, lvl, base + lvl);
+                    if (askHead[lvl] < 0) {
+                        askBits[lvl >>> 6] &= ~(1L << lvl);
+                        bestAsk = --askLevels == 0 ? levels : nextSet(askBits, lvl + 1);
+                    }
+                }
+            }
+
+            void matchSell(int taker, long takerId, long limit) {
+                while (oQty[taker] > 0 && bestBid >= 0 && base + bestBid >= limit) {
+                    int lvl = bestBid;
+                    fillLevel(taker, takerId, bidHead, bidTail, lvl, base + lvl);
+                    if (bidHead[lvl] < 0) {
+                        bidBits[lvl >>> 6] &= ~(1L << lvl);
+                        bestBid = --bidLevels == 0 ? -1 : prevSet(bidBits, lvl - 1);
+                    }
+                }
+            }
+
+            // walks one level in time priority until the taker or the level is exhausted
+            private void fillLevel(int taker, long takerId, int[] head, int[] tail, int lvl, long price) {
+                int m = head[lvl];
+                while (m >= 0 && oQty[taker] > 0) {
+                    int q = Math.min(oQty[taker], oQty[m]);
+                    oQty[taker] -= q;
+                    oQty[m] -= q;
+                    listener.onFill(takerId, orderId(m), oSymbol[taker], oBuy[taker], q, price, oOwner[taker],
+                            oOwner[m]);
+                    int next = oNext[m];
+                    if (oQty[m] == 0) {
+                        head[lvl] = next;
+                        if (next < 0)
+                            tail[lvl] = -1;
+                        else
+                            oPrev[next] = -1;
+                        release(m);
+                    }
+                    m = next;
+                }
+            }
+
+            void rest(int o, int lvl) {
+                boolean buy = oBuy[o];
+                int[] head = buy ? bidHead : askHead;
+                int[] tail = buy ? bidTail : askTail;
+                oLevel[o] = lvl;
+                oNext[o] = -1;
+                if (head[lvl] < 0) {
+                    oPrev[o] = -1;
+                    head[lvl] = o;
+                    if (buy) {
+                        bidBits[lvl >>> 6] |= 1L << lvl;
+                        bidLevels++;
+                    } else {
+                        askBits[lvl >>> 6] |= 1L << lvl;
+                        askLevels++;
+                    }
+                } else {
+                    oPrev[o] = tail[lvl];
+                    oNext[tail[lvl]] = o;
+                }
+                tail[lvl] = o;
+                if (buy && lvl > bestBid)
+                    bestBid = lvl;
+                else if (!buy && lvl < bestAsk)
+                    bestAsk = lvl;
+            }
+
+            void unlink(int o) {
+                boolean buy = oBuy[o];
+                int[] head = buy ? bidHead : askHead;
+                int[] tail = buy ? bidTail : askTail;
+                int lvl = oLevel[o];
+                int prev = oPrev[o], next = oNext[o];
+                if (prev < 0)
+                    head[lvl] = next;
+                else
+                    oNext[prev] = next;
+                if (next < 0)
+                    tail[lvl] = prev;
+                else
+                    oPrev[next] = prev;
+                if (head[lvl] >= 0)
+                    return;
+                if (buy) {
+                    bidBits[lvl >>> 6] &= ~(1L << lvl);
+                    if (--bidLevels == 0)
+                        bestBid = -1;
+                    else if (lvl == bestBid)
+                        bestBid = prevSet(bidBits, lvl - 1);
+                } else {
+                    askBits[lvl >>> 6] &= ~(1L << lvl);
+                    if (--askLevels == 0)
+                        bestAsk = levels;
+                    else if (lvl == bestAsk)
+                        bestAsk = nextSet(askBits, lvl + 1);
+                }
+            }
+
+            // first set bit at or above from, or levels
+            private int nextSet(long[] bits, int from) {
+                if (from >= levels)
+                    return levels;
+                int w = from >>> 6, words = (levels + 63) >>> 6; // bits may be longer
+                long word = bits[w] & (-1L << from);
+                while (word == 0) {
+                    if (++w == words)
+                        return levels;
+                    word = bits[w];
+                }
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+
+            // last set bit at or below from, or -1
+            private int prevSet(long[] bits, int from) {
+                if (from < 0)
+                    return -1;
+                int w = from >>> 6;
+                long word = bits[w] & (-1L >>> (63 - (from & 63)));
+                while (word == 0) {
+                    if (--w < 0)
+                        return -1;
+                    word = bits[w];
+                }
+                return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+            }
+        }
+    }
+
+    // House liquidity: keeps one large ask at the Market price and one bid a tick below it in
+    // every open book, re-quoted after each step, so market orders fill at the displayed price
+    // and resting limit orders fill once the price trades through them.
+    static class MarketMaker {
+        static final int QUOTE_SIZE = 1_000_000;
+
+        private final MatchingEngine engine;
+        private final Market market;
+        private long[] bidIds = new long[16];
+        private long[] askIds = new long[16];
+        private long[] quoted = new long[16]; // ask of the last quote, in ticks
+
+        MarketMaker(MatchingEngine engine, Market market) {
+            this.engine = engine;
+            this.market = market;
+        }
+
+        public synchronized void ensureQuoted(int symbolId) {
+            if (!engine.hasBook(symbolId)) {
+                engine.openBook(symbolId, MatchingEngine.toTicks(market.getPrice(symbolId)));
+                requote(symbolId);
+            }
+        }
+
+        // opens the book if needed and re-quotes it if the Market price moved since the last quote
+        public synchronized void quote(int symbolId) {
+            if (!engine.hasBook(symbolId))
+                engine.openBook(symbolId, MatchingEngine.toTicks(market.getPrice(symbolId)));
+            else if (quoted[symbolId] == MatchingEngine.toTicks(market.getPrice(symbolId)))
+                return;
+            requote(symbolId);
+        }
+
+        public synchronized void requoteAll() {
+            for (int i = 0, n = engine.getBookCount(); i < n; i++)
+                requote(engine.getBookSymbol(i));
+        }
+
+        private void requote(int symbolId) {
+            if (symbolId >= bidIds.length) {
+                bidIds = Arrays.copyOf(bidIds, Math.max(symbolId + 1, bidIds.length * 2));
+                askIds = Arrays.copyOf(askIds, bidIds.length);
+                quoted = Arrays.copyOf(quoted, bidIds.length);
+            }
+            engine.cancel(bidIds[symbolId]);
+            engine.cancel(askIds[symbolId]);
+            long px = MatchingEngine.toTicks(market.getPrice(symbolId));
+            engine.recenter(symbolId, px); // keep the quotes inside the band as the price walks
+            askIds[symbolId] = engine.submit(symbolId, false, QUOTE_SIZE, px, HOUSE);
+            bidIds[symbolId] = engine.submit(symbolId, true, QUOTE_SIZE, px - 1, HOUSE);
+            quoted[symbolId] = px;
+        }
+    }
+
+    // ---------------------------
+    // Trade journal
+    // ---------------------------
+
+    // Append-only journal of trades in a memory-mapped file, mapped in chunks of chunkRecords
+    // records so it can grow past the 2 GB one mapping covers. A RECORD_SIZE-byte record holds
+    // epoch nanos, symbol number, side, qty, price in paise and a checksum. Symbol numbers index
+    // the tickers in trades.symbols (one per line, in the order they were first traded), so
+    // records do not depend on the order a Market lists its symbols. Journals that stored the
+    // price as a double (STJ2) are still read and appended to in that format. append() only
+    // writes into the mapping and never waits for the disk: the flusher thread commits (forces
+    // the symbols, the new records, then the header's committed count) every
+    // GROUP_COMMIT_MILLIS, or as soon as GROUP_COMMIT_RECORDS are pending. Snapshots hold the
+    // portfolio as of a record count so recovery replays only the tail.
+    static class TradeJournal implements Closeable {
+        static final int MAGIC = 0x53544A33; // "STJ3"
+        static final int DOUBLE_PRICE_MAGIC = 0x53544A32; // "STJ2": prices stored as doubles
+        static final int HEADER_SIZE = 64;
+        static final int RECORD_SIZE = 32;
+        static final int GROUP_COMMIT_RECORDS = 256;
+        static final long GROUP_COMMIT_MILLIS = 50;
+        static final int SNAPSHOT_EVERY = 100_000;
+        static final int CHUNK_RECORDS = 1 << 20; // 32 MB per mapping
+
+        private final Path journalFile, symbolsFile, snapshotFile;
+        private final FileChannel channel;
+        private FileOutputStream symbols; // a stream: an interrupted caller would close a channel
+        private MappedByteBuffer header;
+        private MappedByteBuffer[] chunks = new MappedByteBuffer[0]; // only ever appended to
+        private final int chunkRecords;
+        private boolean doublePrices; // an STJ2 journal
+        private final List<String> tickers = new ArrayList<>(); // symbol number -> ticker
+        private final Map<String, Integer> symbolNumbers = new HashMap<>();
+        private long records; // appended
+        private long committed; // forced to disk
+        private final Object commitLock = new Object(); // one commit at a time, outside the journal lock
+        private long snapshotAt; // records covered by the latest snapshot
+        private long logStart; // first record shown in the transaction log (reset by a portfolio load)
+        private Runnable pendingSnapshot;
+        private long pendingSnapshotAt; // record count the pending snapshot covers
+        private PortfolioIO.Snapshot recovered; // snapshot found on open, consumed by recover()
+        private final Thread flusher;
+        private volatile boolean closed;
+
+        static long epochNanos(Instant t) {
+            return t.getEpochSecond() * 1_000_000_000L + t.getNano();
+        }
+
+        TradeJournal(Path dir) throws IOException {
+            this(dir, CHUNK_RECORDS);
+        }
+
+        TradeJournal(Path dir, int chunkRecords) throws IOException {
+            if (chunkRecords <= 0)
+                throw new IllegalArgumentException("Chunk size must be positive");
+            this.chunkRecords = chunkRecords;
+            Files.createDirectories(dir);
+            journalFile = dir.resolve("trades.journal");
+            symbolsFile = dir.resolve("trades.symbols");
+            snapshotFile = dir.resolve("portfolio.snapshot");
+            channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                open();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                if (symbols != null)
+                    symbols.close();
+                throw e;
+            }
+            flusher = new Thread(this::flushLoop, "trade-journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        private void open() throws IOException {
+            boolean fresh = channel.size() < HEADER_SIZE;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (fresh) {
+                header.putInt(0, MAGIC);
+                header.putLong(8, 0L);
+                header.force();
+            } else if (header.getInt(0) == DOUBLE_PRICE_MAGIC) {
+                doublePrices = true;
+            } else if (header.getInt(0) != MAGIC) {
+                throw new IOException(journalFile + " is not a trade journal of this version");
+            }
+            readSymbols();
+            committed = header.getLong(8);
+            records = committed;
+            ensureMapped(Math.max(records, (channel.size() - HEADER_SIZE) / RECORD_SIZE) + 1);
+            // records written but not yet committed survive a process crash; keep the intact ones
+            while (records < (long) chunks.length * chunkRecords && checksumOk(records))
+                records++;
+            recovered = readSnapshot();
+        }
+
+        // loads the symbol table, dropping a line torn by a crash
+        private void readSymbols() throws IOException {
+            byte[] bytes = Files.exists(symbolsFile) ? Files.readAllBytes(symbolsFile) : new byte[0];
+            int start = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    String ticker = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                    symbolNumbers.putIfAbsent(ticker, tickers.size());
+                    tickers.add(ticker);
+                    start = i + 1;
+                }
+            }
+            try (FileChannel ch = FileChannel.open(symbolsFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ch.truncate(start);
+            }
+            symbols = new FileOutputStream(symbolsFile.toFile(), true);
+        }
+
+        // maps chunks until the first n records are covered
+        private void ensureMapped(long n) throws IOException {
+            while ((long) chunks.length * chunkRecords < n) {
+                long chunkBytes = (long) chunkRecords * RECORD_SIZE;
+                MappedByteBuffer c = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + chunks.length * chunkBytes, chunkBytes);
+                c.order(ByteOrder.LITTLE_ENDIAN);
+                MappedByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+                grown[chunks.length] = c;
+                chunks = grown;
+            }
+        }
+
+        private MappedByteBuffer chunk(long n) {
+            return chunks[(int) (n / chunkRecords)];
+        }
+
+        private int offset(long n) {
+            return (int) (n % chunkRecords) * RECORD_SIZE;
+        }
+
+        private static int checksum(long nanos, int symbol, int side, int qty, long price) {
+            long h = nanos * 0x9E3779B97F4A7C15L ^ symbol * 0xC2B2AE3D27D4EB4FL ^ side ^ (long) qty << 8
+                    ^ price * 0x165667B19E3779F9L;
+            return (int) (h ^ h >>> 32) | 1; // never 0, so zeroed space never looks like a record
+        }
+
+        private boolean checksumOk(long n) {
+            MappedByteBuffer c = chunk(n);
+            int p = offset(n);
+            int symbol = c.getInt(p + 8);
+            return symbol >= 0 && symbol < tickers.size() && c.getInt(p + 28) == checksum(c.getLong(p), symbol,
+                    c.get(p + 12), c.getInt(p + 16), c.getLong(p + 20));
+        }
+
+        // symbol number of a ticker, added to the table on its first trade
+        private int symbol(String ticker) throws IOException {
+            Integer known = symbolNumbers.get(ticker);
+            if (known != null)
+                return known;
+            symbols.write((ticker + "\n").getBytes(StandardCharsets.UTF_8));
+            int symbol = tickers.size();
+            tickers.add(ticker);
+            symbolNumbers.put(ticker, symbol);
+            return symbol;
+        }
+
+        // returns the record count after this append
+        public synchronized long append(long epochNanos, String ticker, boolean buy, int qty, long priceTicks) {
+            int symbol;
+            try {
+                ensureMapped(records + 1);
+                symbol = symbol(ticker);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            MappedByteBuffer c = chunk(records);
+            int p = offset(records);
+            long price = doublePrices ? Double.doubleToRawLongBits(MatchingEngine.toPrice(priceTicks)) : priceTicks;
+            int side = buy ? 0 : 1;
+            c.putLong(p, epochNanos);
+            c.putInt(p + 8, symbol);
+            c.put(p + 12, (byte) side);
+            c.putInt(p + 16, qty);
+            c.putLong(p + 20, price);
+            c.putInt(p + 28, checksum(epochNanos, symbol, side, qty, price));
+            records++;
+            if (records - committed >= GROUP_COMMIT_RECORDS)
+                notifyAll(); // commit early on the flusher
+            return records;
+        }
+
+        // Forces everything appended so far. The journal lock is only held to read and publish
+        // the counts, so appends carry on while the disk catches up.
+        public void commit() {
+            synchronized (commitLock) {
+                long from, to;
+                MappedByteBuffer[] mapped;
+                synchronized (this) {
+                    from = committed;
+                    to = records;
+                    mapped = chunks;
+                }
+                if (to == from)
+                    return;
+                try {
+                    symbols.getFD().sync();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                for (long n = from; n < to;) {
+                    long end = Math.min(to, (n / chunkRecords + 1) * chunkRecords);
+                    mapped[(int) (n / chunkRecords)].force(offset(n), (int) (end - n) * RECORD_SIZE);
+                    n = end;
+                }
+                header.putLong(8, to);
+                header.force();
+                synchronized (this) {
+                    committed = to;
+                }
+            }
+        }
+
+        public synchronized long getRecordCount() {
+            return records;
+        }
+
+        public synchronized long getCommittedCount() {
+            return committed;
+        }
+
+        public synchronized long getSnapshotAt() {
+            return snapshotAt;
+        }
+
+        public void scheduleSnapshot(long atRecord, long cashTicks, List<Holding> holdings) {
+            scheduleSnapshot(atRecord, cashTicks, holdings, false);
+        }
+
+        // written by the flusher after the records it covers are committed
+        public synchronized void scheduleSnapshot(long atRecord, long cashTicks, List<Holding> holdings,
+                boolean resetLog) {
+            if (resetLog)
+                logStart = atRecord;
+            long start = logStart;
+            snapshotAt = atRecord;
+            pendingSnapshotAt = atRecord;
+            pendingSnapshot = () -> writeSnapshot(atRecord, start, cashTicks, holdings);
+        }
+
+        private void writeSnapshot(long atRecord, long start, long cashTicks, List<Holding> holdings) {
+            Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try {
+                PortfolioIO.writeSnapshot(tmp, cashTicks, holdings, atRecord, start);
+                Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Snapshot failed: " + e.getMessage());
+            }
+        }
+
+        private PortfolioIO.Snapshot readSnapshot() throws IOException {
+            if (!Files.exists(snapshotFile))
+                return null;
+            PortfolioIO.Snapshot snap = PortfolioIO.readSnapshot(snapshotFile);
+            snapshotAt = Math.min(snap.journalRecord, records);
+            logStart = Math.min(snap.logStart, snapshotAt);
+            return snap;
+        }
+
+        // Rebuilds a portfolio: latest snapshot, then the records after it. Records between the
+        // log start and the snapshot only repopulate the transaction log. Records name tickers,
+        // so trades in symbols the market does not list (yet) are restored too.
+        public Portfolio recover(Market market, double initialCash) {
+            Portfolio p = recovered != null ? recovered.toPortfolio() : new Portfolio(initialCash);
+            recovered = null;
+            p.attach(market);
+            long skipped = 0;
+            synchronized (this) {
+                for (long n = logStart; n < records; n++) {
+                    MappedByteBuffer c = chunk(n);
+                    int pos = offset(n);
+                    long nanos = c.getLong(pos);
+                    String ticker = tickers.get(c.getInt(pos + 8)); // checked when the journal was opened
+                    boolean buy = c.get(pos + 12) == 0;
+                    int qty = c.getInt(pos + 16);
+                    long price = doublePrices ? MatchingEngine.toTicks(c.getDouble(pos + 20)) : c.getLong(pos + 20);
+                    if (n < snapshotAt) {
+                        p.replayTransaction(nanos, ticker, buy, qty, price);
+                        continue;
+                    }
+                    try {
+                        p.replayTrade(nanos, ticker, buy, qty, price);
+                    } catch (IllegalArgumentException e) {
+                        skipped++;
+                    }
+                }
+            }
+            if (skipped > 0)
+                System.err.println("Journal replay skipped " + skipped + " record(s) that did not apply");
+            p.setJournal(this);
+            return p;
+        }
+
+        private void flushLoop() {
+            while (!closed) {
+                synchronized (this) {
+                    try {
+                        if (records - committed < GROUP_COMMIT_RECORDS)
+                            wait(GROUP_COMMIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                flush();
+            }
+        }
+
+        private void flush() {
+            commit();
+            Runnable snapshot = null;
+            synchronized (this) {
+                // records appended after commit() took its count may not be on disk yet; a
+                // snapshot covering them waits for a later cycle
+                if (pendingSnapshot != null && pendingSnapshotAt <= committed) {
+                    snapshot = pendingSnapshot;
+                    pendingSnapshot = null;
+                }
+            }
+            if (snapshot != null)
+                snapshot.run();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            flusher.interrupt();
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flush();
+            symbols.close();
+            channel.close();
+        }
+    }
+
+    // ---------------------------
+    // Pre-trade risk
+    // ---------------------------
+    // Reserves cash and positions for an order before it reaches the book, with no lock on the
+    // check path: cash is one AtomicLong of free paise and every symbol has two atomic counters,
+    // exposure (position plus open buys, held under the position limit) and sellable (position
+    // less open sells). A reservation CASes each counter in turn and backs out what it already
+    // took if a later one fails. Fills and cancels hand the reservation back through the
+    // fill/release calls. Amounts are in ticks (paise), as in the matching engine.
+    static class RiskGate {
+        static final long OK = 0;
+        // rejection codes; negative like MatchingEngine.REJECTED so callers can return either
+        static final long REJECT_ORDER_SIZE = -2, REJECT_NOTIONAL = -3, REJECT_POSITION = -4, REJECT_CASH = -5,
+                REJECT_HOLDINGS = -6;
+        private static final int EXPOSURE = 0, SELLABLE = 1, LIMIT = 2, STRIDE = 3;
+
+        private final int chunk; // symbols per counter block, a power of two
+        private final AtomicLong cash = new AtomicLong();
+        // blocks of STRIDE counters per symbol, null until a symbol in them is touched; blocks
+        // are only ever added, so a reader holding an old array still sees live counters
+        private volatile AtomicLongArray[] blocks = new AtomicLongArray[0];
+        private volatile int maxOrderQty = Integer.MAX_VALUE;
+        private volatile long maxNotional = Long.MAX_VALUE; // ticks
+        private volatile long defaultPositionLimit = Long.MAX_VALUE;
+
+        RiskGate() {
+            this(4096);
+        }
+
+        // small blocks suit a gate that only ever sees a few symbols of a large market
+        RiskGate(int symbolsPerBlock) {
+            if (symbolsPerBlock <= 0 || Integer.bitCount(symbolsPerBlock) != 1)
+                throw new IllegalArgumentException("Block size must be a power of two");
+            chunk = symbolsPerBlock;
+        }
+
+        static String describe(long code) {
+            if (code == REJECT_ORDER_SIZE)
+                return "Order quantity above the order size limit";
+            if (code == REJECT_NOTIONAL)
+                return "Order value above the notional limit";
+            if (code == REJECT_POSITION)
+                return "Order would exceed the position limit";
+            if (code == REJECT_CASH)
+                return "Not enough cash";
+            if (code == REJECT_HOLDINGS)
+                return "Not enough holdings to sell";
+            return "Order rejected: limit outside the price band or order book full";
+        }
+
+        public void setMaxOrderQty(int qty) {
+            maxOrderQty = qty;
+        }
+
+        public void setMaxNotional(double value) {
+            maxNotional = MatchingEngine.toTicks(value);
+        }
+
+        public void setDefaultPositionLimit(long qty) {
+            defaultPositionLimit = qty;
+        }
+
+        // 0 restores the default
+        public void setPositionLimit(int symbolId, long qty) {
+            counters(symbolId).set(slot(symbolId) + LIMIT, qty);
+        }
+
+        // cash and sellable quantities from the book of record; only valid with no open orders
+        public synchronized void reset(Portfolio p, Market market) {
+            for (AtomicLongArray b : blocks)
+                for (int i = 0; b != null && i < b.length(); i += STRIDE) {
+                    b.set(i + EXPOSURE, 0);
+                    b.set(i + SELLABLE, 0);
+                }
+            for (Holding h : p.getHoldings()) {
+                int id = market.idOf(h.getTicker());
+                if (id < 0)
+                    continue;
+                AtomicLongArray b = counters(id);
+                b.set(slot(id) + EXPOSURE, h.getQty());
+                b.set(slot(id) + SELLABLE, h.getQty());
+            }
+            cash.set(p.getCashTicks());
+        }
+
+        public long reserveBuy(int symbolId, int qty, long priceTicks) {
+            long check = checkOrder(qty, priceTicks);
+            if (check != OK)
+                return check;
+            AtomicLongArray b = counters(symbolId);
+            int i = slot(symbolId);
+            long limit = b.get(i + LIMIT);
+            if (limit == 0)
+                limit = defaultPositionLimit;
+            long e;
+            do {
+                e = b.get(i + EXPOSURE);
+                if (e + qty > limit)
+                    return REJECT_POSITION;
+            } while (!b.compareAndSet(i + EXPOSURE, e, e + qty));
+            long cost = qty * priceTicks, c;
+            do {
+                c = cash.get();
+                if (c < cost) {
+                    b.addAndGet(i + EXPOSURE, -qty);
+                    return REJECT_CASH;
+                }
+            } while (!cash.compareAndSet(c, c - cost));
+            return OK;
+        }
+
+        // priceTicks only feeds the notional check; the proceeds are credited at the fill price
+        public long reserveSell(int symbolId, int qty, long priceTicks) {
+            long check = checkOrder(qty, priceTicks);
+            if (check != OK)
+                return check;
+            AtomicLongArray b = counters(symbolId);
+            int i = slot(symbolId) + SELLABLE;
+            long s;
+            do {
+                s = b.get(i);
+                if (s < qty)
+                    return REJECT_HOLDINGS;
+            } while (!b.compareAndSet(i, s, s - qty));
+            return OK;
+        }
+
+        private long checkOrder(int qty, long priceTicks) {
+            if (qty > maxOrderQty)
+                return REJECT_ORDER_SIZE;
+            if (priceTicks > 0 && qty > maxNotional / priceTicks)
+                return REJECT_NOTIONAL;
+            return OK;
+        }
+
+        // a reserved buy filled at fillTicks: the saving on the reserved price is returned
+        public void fillBuy(int symbolId, int qty, long reservedTicks, long fillTicks) {
+            counters(symbolId).addAndGet(slot(symbolId) + SELLABLE, qty);
+            if (reservedTicks != fillTicks)
+                cash.addAndGet(qty * (reservedTicks - fillTicks));
+        }
+
+        public void fillSell(int symbolId, int qty, long fillTicks) {
+            counters(symbolId).addAndGet(slot(symbolId) + EXPOSURE, -qty);
+            cash.addAndGet(qty * fillTicks);
+        }
+
+        // unfilled quantity of a reserved order that will not trade (cancelled, expired, unsettled)
+        public void releaseBuy(int symbolId, int qty, long reservedTicks) {
+            counters(symbolId).addAndGet(slot(symbolId) + EXPOSURE, -qty);
+            cash.addAndGet(qty * reservedTicks);
+        }
+
+        public void releaseSell(int symbolId, int qty) {
+            counters(symbolId).addAndGet(slot(symbolId) + SELLABLE, qty);
+        }
+
+        public double getAvailableCash() {
+            return MatchingEngine.toPrice(cash.get());
+        }
+
+        public long getSellable(int symbolId) {
+            return counters(symbolId).get(slot(symbolId) + SELLABLE);
+        }
+
+        public long getExposure(int symbolId) {
+            return counters(symbolId).get(slot(symbolId) + EXPOSURE);
+        }
+
+        private int slot(int symbolId) {
+            return (symbolId & (chunk - 1)) * STRIDE;
+        }
+
+        private AtomicLongArray counters(int symbolId) {
+            AtomicLongArray[] b = blocks;
+            int k = symbolId / chunk;
+            AtomicLongArray c = k < b.length ? b[k] : null;
+            return c != null ? c : grow(k);
+        }
+
+        // copy-on-write, so readers never see a block slot filled in under them
+        private synchronized AtomicLongArray grow(int k) {
+            AtomicLongArray[] b = blocks;
+            if (k >= b.length || b[k] == null) {
+                b = Arrays.copyOf(b, Math.max(b.length, k + 1));
+                b[k] = new AtomicLongArray(chunk * STRIDE);
+                blocks = b;
+            }
+            return b[k];
+        }
+    }
+
+    // ---------------------------
+    // Price event bus
+    // ---------------------------
+    interface PriceHandler {
+        // endOfBatch marks the last event currently available; a good point to flush or recompute
+        void onPrice(long sequence, long tick, long epochNanos, int symbolId, double price, boolean endOfBatch);
+
+        // a non-gating subscriber fell a full ring behind and missed events
+        default void onLapped() {
+        }
+    }
+
+    // How a subscriber waits for the producer. waitFor returns the highest published sequence,
+    // which may be below seq if the wait gave up (timeout or interrupt) so the caller can re-check.
+    interface WaitStrategy {
+        long waitFor(long seq, AtomicLong cursor);
+
+        void signalAll();
+    }
+
+    // Lowest latency, burns a core per subscriber
+    static class BusySpinWait implements WaitStrategy {
+        public long waitFor(long seq, AtomicLong cursor) {
+            long c;
+            while ((c = cursor.get()) < seq && !Thread.currentThread().isInterrupted())
+                Thread.onSpinWait();
+            return c;
+        }
+
+        public void signalAll() {
+        }
+    }
+
+    // Spins briefly, then yields the CPU between checks
+    static class YieldingWait implements WaitStrategy {
+        public long waitFor(long seq, AtomicLong cursor) {
+            long c;
+            int spins = 100;
+            while ((c = cursor.get()) < seq && !Thread.currentThread().isInterrupted()) {
+                if (spins > 0) {
+                    spins--;
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+            }
+            return c;
+        }
+
+        public void signalAll() {
+        }
+    }
+
+    // Parks until the producer signals; the producer only takes the lock when someone waits
+    static class BlockingWait implements WaitStrategy {
+        private final Object lock = new Object();
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        public long waitFor(long seq, AtomicLong cursor) {
+            long c = cursor.get();
+            if (c >= seq)
+                return c;
+            synchronized (lock) {
+                waiters.incrementAndGet();
+                try {
+                    while ((c = cursor.get()) < seq)
+                        lock.wait(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waiters.decrementAndGet();
+                }
+            }
+            return c;
+        }
+
+        public void signalAll() {
+            if (waiters.get() > 0) {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    // Single-producer, multi-consumer ring of price updates (tick, time, symbol, price) in
+    // preallocated primitive columns. Every subscriber runs on its own thread with its own
+    // sequence and drains everything published since its last pass as one batch. Gating
+    // subscribers hold the producer back when it would overwrite events they have not read;
+    // non-gating ones never slow it down and get onLapped() instead when they fall behind.
+    // publish() must only be called from one thread (the simulation thread).
+    static class PriceBus {
+        private final int capacity, mask;
+        private final long[] ticks, times;
+        private final int[] symbols;
+        private final double[] prices;
+        private final AtomicLong cursor = new AtomicLong(-1); // last published
+        private final AtomicLong claimed = new AtomicLong(-1); // last being written
+        private final List<Subscription> subscriptions = new java.util.concurrent.CopyOnWriteArrayList<>();
+        private volatile Subscription[] gating = new Subscription[0];
+
+        PriceBus(int capacity) {
+            if (Integer.bitCount(capacity) != 1)
+                throw new IllegalArgumentException("Capacity must be a power of two");
+            this.capacity = capacity;
+            mask = capacity - 1;
+            ticks = new long[capacity];
+            times = new long[capacity];
+            symbols = new int[capacity];
+            prices = new double[capacity];
+        }
+
+        // "spin", "yield" or "block"
+        static WaitStrategy waitStrategy(String name) {
+            switch (name) {
+            case "spin":
+                return new BusySpinWait();
+            case "yield":
+                return new YieldingWait();
+            case "block":
+                return new BlockingWait();
+            default:
+                throw new IllegalArgumentException("Unknown wait strategy " + name);
+            }
+        }
+
+        public boolean hasSubscribers() {
+            return !subscriptions.isEmpty();
+        }
+
+        public long getCursor() {
+            return cursor.get();
+        }
+
+        // starts a subscriber thread that sees events published from now on
+        public synchronized Subscription subscribe(String name, PriceHandler handler, WaitStrategy wait,
+                boolean gates) {
+            Subscription s = new Subscription(name, handler, wait, gates);
+            s.sequence.set(cursor.get());
+            if (gates) {
+                Subscription[] g = Arrays.copyOf(gating, gating.length + 1);
+                g[g.length - 1] = s;
+                gating = g;
+            }
+            subscriptions.add(s);
+            s.thread.start();
+            return s;
+        }
+
+        private synchronized void remove(Subscription s) {
+            subscriptions.remove(s);
+            Subscription[] g = gating;
+            for (int i = 0; i < g.length; i++) {
+                if (g[i] == s) {
+                    Subscription[] n = new Subscription[g.length - 1];
+                    System.arraycopy(g, 0, n, 0, i);
+                    System.arraycopy(g, i + 1, n, i, n.length - i);
+                    gating = n;
+                    break;
+                }
+            }
+        }
+
+        // publishes the Market's changes from its latest update, at most a ring's worth at a time
+        public void publish(long tick, long epochNanos, Market market) {
+            int n = market.getChangedCount();
+            for (int i = 0; i < n;) {
+                int batch = Math.min(n - i, capacity);
+                long first = cursor.get() + 1, last = first + batch - 1;
+                awaitCapacity(last);
+                claimed.set(last);
+                for (long s = first; s <= last; s++, i++) {
+                    int k = (int) s & mask;
+                    int id = market.getChangedId(i);
+                    ticks[k] = tick;
+                    times[k] = epochNanos;
+                    symbols[k] = id;
+                    prices[k] = market.getPrice(id);
+                }
+                cursor.set(last);
+                for (Subscription s : subscriptions)
+                    s.wait.signalAll();
+            }
+        }
+
+        private void awaitCapacity(long last) {
+            long wrap = last - capacity;
+            while (true) {
+                long min = Long.MAX_VALUE;
+                for (Subscription s : gating)
+                    min = Math.min(min, s.sequence.get());
+                if (wrap <= min)
+                    return;
+                LockSupport.parkNanos(1000);
+            }
+        }
+
+        final class Subscription implements Closeable {
+            private final AtomicLong sequence = new AtomicLong(-1); // last event handled
+            private final PriceHandler handler;
+            private final WaitStrategy wait;
+            private final boolean gates;
+            private final Thread thread;
+            private volatile boolean running = true;
+
+            Subscription(String name, PriceHandler handler, WaitStrategy wait, boolean gates) {
+                this.handler = handler;
+                this.wait = wait;
+                this.gates = gates;
+                thread = new Thread(this::run, "bus-" + name);
+                thread.setDaemon(true);
+            }
+
+            public long getSequence() {
+                return sequence.get();
+            }
+
+            private void run() {
+                long next = sequence.get() + 1;
+                while (running) {
+                    long available = wait.waitFor(next, cursor);
+                    if (available < next)
+                        continue;
+                    try {
+                        if (!gates && available - next >= capacity) {
+                            handler.onLapped();
+                        } else {
+                            for (long s = next; s <= available; s++) {
+                                int k = (int) s & mask;
+                                handler.onPrice(s, ticks[k], times[k], symbols[k], prices[k], s == available);
+                            }
+                            // the producer may have reused slots while we read them
+                            if (!gates && claimed.get() - capacity >= next)
+                                handler.onLapped();
+                        }
+                    } catch (RuntimeException ex) {
+                        // a dead gating subscriber would stall the producer; drop the batch instead
+                        System.err.println(thread.getName() + ": " + ex);
+                    }
+                    sequence.set(available);
+                    next = available + 1;
+                }
+            }
+
+            // a gating subscriber first drains what is already published (waiting up to a second)
+            public void close() {
+                long deadline = System.nanoTime() + 1_000_000_000L;
+                while (gates && sequence.get() < cursor.get() && System.nanoTime() < deadline
+                        && thread.isAlive() && thread != Thread.currentThread())
+                    LockSupport.parkNanos(100_000);
+                remove(this);
+                running = false;
+                thread.interrupt();
+                if (thread != Thread.currentThread()) {
+                    try {
+                        thread.join(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    // Latest price per symbol plus the set of symbols touched since the last takeUpdated(),
+    // so a slow reader (the UI) sees each symbol once per frame however many ticks passed
+    static class CoalescingPriceView implements PriceHandler {
+        private final Market market;
+        private double[] latest = new double[0];
+        private int[] updated = new int[16];
+        private boolean[] marked = new boolean[0];
+        private int updatedCount;
+        private boolean stale; // lapped: every symbol may have been missed
+
+        CoalescingPriceView(Market market) {
+            this.market = market;
+        }
+
+        public synchronized void onPrice(long sequence, long tick, long epochNanos, int symbolId, double price,
+                boolean endOfBatch) {
+            if (symbolId >= latest.length)
+                grow(symbolId + 1);
+            latest[symbolId] = price;
+            if (!marked[symbolId]) {
+                marked[symbolId] = true;
+                if (updatedCount == updated.length)
+                    updated = Arrays.copyOf(updated, updatedCount * 2);
+                updated[updatedCount++] = symbolId;
+            }
+        }
+
+        public synchronized void onLapped() {
+            int n = market.size();
+            if (n > latest.length)
+                grow(n);
+            for (int i = 0; i < n; i++)
+                latest[i] = market.getPrice(i);
+            stale = true;
+        }
+
+        private void grow(int n) {
+            int old = latest.length;
+            int cap = Math.max(n, old * 2);
+            latest = Arrays.copyOf(latest, cap);
+            Arrays.fill(latest, old, cap, Double.NaN); // not seen yet
+            marked = Arrays.copyOf(marked, cap);
+        }
+
+        // symbols with no event yet read through to the Market
+        public synchronized double getPrice(int symbolId) {
+            double p = symbolId < latest.length ? latest[symbolId] : Double.NaN;
+            return Double.isNaN(p) ? market.getPrice(symbolId) : p;
+        }
+
+        // ids updated since the last call in ascending order, or null if everything should be redrawn
+        public synchronized int[] takeUpdated() {
+            int[] ids = stale ? null : Arrays.copyOf(updated, updatedCount);
+            for (int i = 0; i < updatedCount; i++)
+                marked[updated[i]] = false;
+            updatedCount = 0;
+            stale = false;
+            if (ids != null)
+                Arrays.sort(ids);
+            return ids;
+        }
+    }
+
+    // Appends every price event to a CSV tick file that ReplayFeed can play back
+    static class TickRecorder implements PriceHandler, Closeable {
+        private final Market market;
+        private final Writer out;
+        private final StringBuilder line = new StringBuilder(64);
+
+        TickRecorder(Path file, Market market) throws IOException {
+            this.market = market;
+            out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            out.write("timestampNanos,ticker,price\n");
+        }
+
+        public void onPrice(long sequence, long tick, long epochNanos, int symbolId, double price,
+                boolean endOfBatch) {
+            line.setLength(0);
+            line.append(epochNanos).append(',').append(market.getTicker(symbolId)).append(',').append(price)
+                    .append('\n');
+            try {
+                out.append(line);
+                if (endOfBatch)
+                    out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // ---------------------------
+    // Bars
+    // ---------------------------
+    // Open/high/low/close/volume bars per symbol for several timeframes at once, built from
+    // price events (a PriceBus subscriber) and fills. A symbol's bars are allocated on its first
+    // event, so memory follows the symbols that trade rather than the size of the market: each
+    // keeps the last `depth` bars of every timeframe in primitive columns indexed
+    // timeframe * depth + slot, a circular array per timeframe, and a tick costs one bar update
+    // per timeframe. A period with no ticks produces no bar. Times are epoch nanoseconds; a bar
+    // starts at a multiple of its period. Fills arrive under the matching engine's lock, so they
+    // are only queued under a lock of their own and folded in by the next price event or query.
+    static class BarAggregator implements PriceHandler, TradeListener {
+        private final long[] periods;
+        private final String[] names;
+        private final int depth;
+        private Series[] series = new Series[16]; // by symbol id, null until its first event
+        private final Object tradeLock = new Object();
+        private PendingTrades pending = new PendingTrades(); // under tradeLock
+        private PendingTrades draining = new PendingTrades(); // swapped with pending by the drainer
+
+        // timeframes like "1s,1m,5m,1h" (units ms, s, m, h)
+        BarAggregator(String timeframes, int depth) {
+            names = timeframes.split(",");
+            periods = new long[names.length];
+            for (int f = 0; f < names.length; f++) {
+                names[f] = names[f].trim();
+                periods[f] = parsePeriod(names[f]);
+            }
+            if (depth <= 0 || depth > Integer.MAX_VALUE / periods.length)
+                throw new IllegalArgumentException(
+                        "Depth must be positive and at most " + Integer.MAX_VALUE / periods.length);
+            this.depth = depth;
+        }
+
+        static long parsePeriod(String s) {
+            int unit = s.length();
+            while (unit > 0 && !Character.isDigit(s.charAt(unit - 1)))
+                unit--;
+            if (unit == 0 || unit == s.length())
+                throw new IllegalArgumentException("Bad timeframe " + s);
+            long n = Long.parseLong(s.substring(0, unit));
+            switch (s.substring(unit)) {
+            case "ms":
+                return n * 1_000_000L;
+            case "s":
+                return n * 1_000_000_000L;
+            case "m":
+                return n * 60_000_000_000L;
+            case "h":
+                return n * 3_600_000_000_000L;
+            default:
+                throw new IllegalArgumentException("Bad timeframe " + s);
+            }
+        }
+
+        public int getTimeframeCount() {
+            return periods.length;
+        }
+
+        public String getTimeframeName(int f) {
+            return names[f];
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        // symbols with bars so far
+        public synchronized int getActiveSymbols() {
+            int n = 0;
+            for (Series s : series)
+                if (s != null)
+                    n++;
+            return n;
+        }
+
+        private Series series(int symbolId) {
+            if (symbolId >= series.length)
+                series = Arrays.copyOf(series, Math.max(symbolId + 1, series.length * 2));
+            Series s = series[symbolId];
+            if (s == null)
+                s = series[symbolId] = new Series(periods.length, depth);
+            return s;
+        }
+
+        public synchronized void onPrice(long sequence, long tick, long epochNanos, int symbolId, double price,
+                boolean endOfBatch) {
+            drainTrades();
+            Series s = series(symbolId);
+            for (int f = 0; f < periods.length; f++) {
+                int i = s.barFor(f, periods[f], epochNanos, price);
+                if (price > s.high[i])
+                    s.high[i] = price;
+                if (price < s.low[i])
+                    s.low[i] = price;
+                s.close[i] = price;
+            }
+        }
+
+        // traded quantity joins the current bar of every timeframe once drained
+        public void onTrade(int symbolId, boolean buy, int qty, double price, long epochNanos) {
+            synchronized (tradeLock) {
+                pending.add(symbolId, qty, price, epochNanos);
+            }
+        }
+
+        // folds queued fills into the bars; caller holds this
+        private void drainTrades() {
+            PendingTrades q;
+            synchronized (tradeLock) {
+                if (pending.count == 0)
+                    return;
+                q = pending;
+                pending = draining;
+                draining = q;
+            }
+            for (int k = 0; k < q.count; k++) {
+                Series s = series(q.ids[k]);
+                for (int f = 0; f < periods.length; f++)
+                    s.volume[s.barFor(f, periods[f], q.times[k], q.prices[k])] += q.qtys[k];
+            }
+            q.count = 0;
+        }
+
+        // the last n bars of a symbol, oldest first, copied into out (reused when big enough)
+        public synchronized BarSeries lastBars(int symbolId, int timeframe, int n, BarSeries out) {
+            drainTrades();
+            if (out == null || out.capacity() < n)
+                out = new BarSeries(Math.max(n, 0));
+            Series s = symbolId < series.length ? series[symbolId] : null;
+            int kept = s == null ? 0 : s.count[timeframe];
+            int m = Math.min(Math.min(n, kept), depth);
+            int base = timeframe * depth;
+            int head = m == 0 ? 0 : s.head[timeframe];
+            for (int k = 0; k < m; k++) {
+                int i = base + Math.floorMod(head - (m - 1 - k), depth);
+                out.start[k] = s.start[i];
+                out.open[k] = s.open[i];
+                out.high[k] = s.high[i];
+                out.low[k] = s.low[i];
+                out.close[k] = s.close[i];
+                out.volume[k] = s.volume[i];
+            }
+            out.count = m;
+            return out;
+        }
+
+        // one symbol's bars: timeframe * depth + slot
+        private static final class Series {
+            final int depth;
+            final long[] start, volume;
+            final double[] open, high, low, close;
+            final int[] head, count; // per timeframe: slot of the newest bar, bars kept
+
+            Series(int timeframes, int depth) {
+                this.depth = depth;
+                int n = timeframes * depth;
+                start = new long[n];
+                volume = new long[n];
+                open = new double[n];
+                high = new double[n];
+                low = new double[n];
+                close = new double[n];
+                head = new int[timeframes];
+                count = new int[timeframes];
+            }
+
+            // index of the bar of timeframe f holding time t, opening one at price if t starts a new period
+            int barFor(int f, long period, long t, double price) {
+                long from = t - Math.floorMod(t, period);
+                int base = f * depth;
+                int h = head[f];
+                if (count[f] > 0 && start[base + h] >= from)
+                    return base + h; // late updates fold into the newest bar
+                h = count[f] == 0 ? 0 : (h + 1) % depth;
+                head[f] = h;
+                if (count[f] < depth)
+                    count[f]++;
+                int i = base + h;
+                start[i] = from;
+                open[i] = high[i] = low[i] = close[i] = price;
+                volume[i] = 0;
+                return i;
+            }
+        }
+
+        // fills waiting to be folded in, as parallel columns
+        private static final class PendingTrades {
+            int[] ids = new int[64], qtys = new int[64];
+            long[] times = new long[64];
+            double[] prices = new double[64];
+            int count;
+
+            void add(int id, int qty, double price, long t) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    qtys = Arrays.copyOf(qtys, count * 2);
+                    times = Arrays.copyOf(times, count * 2);
+                    prices = Arrays.copyOf(prices, count * 2);
+                }
+                ids[count] = id;
+                qtys[count] = qty;
+                times[count] = t;
+                prices[count++] = price;
+            }
+        }
+    }
+
+    // Reusable result of BarAggregator.lastBars: parallel columns, count bars, oldest first
+    static class BarSeries {
+        final long[] start, volume;
+        final double[] open, high, low, close;
+        int count;
+
+        BarSeries(int capacity) {
+            start = new long[capacity];
+            volume = new long[capacity];
+            open = new double[capacity];
+            high = new double[capacity];
+            low = new double[capacity];
+            close = new double[capacity];
+        }
+
+        public int capacity() {
+            return start.length;
+        }
+
+        public int size() {
+            return count;
+        }
+    }
+
+    // ---------------------------
+    // Indicators
+    // ---------------------------
+    // Per-symbol technical indicators kept up to date from price events, each in O(1) per
+    // update with no allocation: SMA, Bollinger bands and volatility come from running sums
+    // over a primitive ring of the last `window` prices and log returns, EMA and RSI (Wilder)
+    // are recursive, VWAP accumulates fill price * quantity. Running sums are re-added from
+    // their ring every RESUM_EVERY updates of a symbol to keep floating-point drift out.
+    // A batch of events is bucketed by symbol shard and the shards are evaluated in parallel;
+    // events of one symbol stay on one thread and in order. Values are NaN until defined.
+    // Fills arrive under the matching engine's lock, so VWAP has its own lock and columns and
+    // never waits for a batch. Both column sets are replaced whole when they grow and published
+    // through volatile fields, so readers see arrays of the size they check against.
+    static class IndicatorEngine implements PriceHandler, TradeListener {
+        static final int SHARD_SIZE = 1024;
+        private static final int RESUM_EVERY = 4096;
+
+        private final int window, rsiPeriod;
+        private final double alpha; // EMA smoothing, 2 / (window + 1)
+        private volatile Columns cols = new Columns(0);
+        private final Object vwapLock = new Object();
+        private volatile Vwap vwap = new Vwap(0); // written under vwapLock
+
+        // events of the batch being drained, then bucketed by shard
+        private int[] batchIds = new int[1024], sortedIds = new int[1024];
+        private double[] batchPrices = new double[1024], sortedPrices = new double[1024];
+        private int batchCount;
+        private int[] shardStart = new int[1];
+        private ForkJoinPool pool; // null = evaluate on the bus thread
+
+        IndicatorEngine(int window, int rsiPeriod) {
+            if (window < 2 || rsiPeriod < 1)
+                throw new IllegalArgumentException("Window must be at least 2 and the RSI period positive");
+            this.window = window;
+            this.rsiPeriod = rsiPeriod;
+            alpha = 2.0 / (window + 1);
+        }
+
+        public synchronized void setParallelism(int threads) {
+            if (pool != null)
+                pool.shutdown();
+            pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+
+        public synchronized void onPrice(long sequence, long tick, long epochNanos, int symbolId, double price,
+                boolean endOfBatch) {
+            if (batchCount == batchIds.length) {
+                batchIds = Arrays.copyOf(batchIds, batchCount * 2);
+                batchPrices = Arrays.copyOf(batchPrices, batchCount * 2);
+            }
+            batchIds[batchCount] = symbolId;
+            batchPrices[batchCount++] = price;
+            if (endOfBatch)
+                flush();
+        }
+
+        // applies every buffered event; a stable counting sort by shard keeps each symbol's order
+        public synchronized void flush() {
+            int n = batchCount;
+            if (n == 0)
+                return;
+            int maxId = 0;
+            for (int i = 0; i < n; i++)
+                maxId = Math.max(maxId, batchIds[i]);
+            Columns c = cols;
+            if (maxId >= c.symbols)
+                cols = c = c.grow(Math.max(maxId + 1, c.symbols * 2));
+            int shards = maxId / SHARD_SIZE + 1;
+            ForkJoinPool p = pool;
+            if (p == null || shards == 1) {
+                for (int i = 0; i < n; i++)
+                    c.update(batchIds[i], batchPrices[i]);
+            } else {
+                if (shardStart.length < shards + 1)
+                    shardStart = new int[shards + 1];
+                Arrays.fill(shardStart, 0, shards + 1, 0);
+                for (int i = 0; i < n; i++)
+                    shardStart[batchIds[i] / SHARD_SIZE + 1]++;
+                for (int s = 0; s < shards; s++)
+                    shardStart[s + 1] += shardStart[s];
+                if (sortedIds.length < n) {
+                    sortedIds = new int[batchIds.length];
+                    sortedPrices = new double[batchIds.length];
+                }
+                int[] fill = Arrays.copyOf(shardStart, shards);
+                for (int i = 0; i < n; i++) {
+                    int k = fill[batchIds[i] / SHARD_SIZE]++;
+                    sortedIds[k] = batchIds[i];
+                    sortedPrices[k] = batchPrices[i];
+                }
+                p.invoke(new ShardTask(c, 0, shards));
+            }
+            batchCount = 0;
+        }
+
+        private class ShardTask extends RecursiveAction {
+            private final Columns c;
+            private final int from, to;
+
+            ShardTask(Columns c, int from, int to) {
+                this.c = c;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from == 1) {
+                    for (int i = shardStart[from], end = shardStart[from + 1]; i < end; i++)
+                        c.update(sortedIds[i], sortedPrices[i]);
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new ShardTask(c, from, mid), new ShardTask(c, mid, to));
+            }
+        }
+
+        // price-driven state per symbol; rings of the last window prices and returns are
+        // indexed symbol * window + slot
+        private final class Columns {
+            final int symbols;
+            final double[] prices, returns;
+            final int[] updates;
+            final double[] sum, sumSq, retSum, retSumSq, ema, last, avgGain, avgLoss;
+
+            Columns(int n) {
+                symbols = n;
+                prices = new double[n * window];
+                returns = new double[n * window];
+                updates = new int[n];
+                sum = new double[n];
+                sumSq = new double[n];
+                retSum = new double[n];
+                retSumSq = new double[n];
+                ema = new double[n];
+                last = new double[n];
+                avgGain = new double[n];
+                avgLoss = new double[n];
+                Arrays.fill(last, Double.NaN);
+            }
+
+            // a copy with room for n symbols
+            Columns grow(int n) {
+                Columns c = new Columns(n);
+                System.arraycopy(prices, 0, c.prices, 0, prices.length);
+                System.arraycopy(returns, 0, c.returns, 0, returns.length);
+                System.arraycopy(updates, 0, c.updates, 0, symbols);
+                System.arraycopy(sum, 0, c.sum, 0, symbols);
+                System.arraycopy(sumSq, 0, c.sumSq, 0, symbols);
+                System.arraycopy(retSum, 0, c.retSum, 0, symbols);
+                System.arraycopy(retSumSq, 0, c.retSumSq, 0, symbols);
+                System.arraycopy(ema, 0, c.ema, 0, symbols);
+                System.arraycopy(last, 0, c.last, 0, symbols);
+                System.arraycopy(avgGain, 0, c.avgGain, 0, symbols);
+                System.arraycopy(avgLoss, 0, c.avgLoss, 0, symbols);
+                return c;
+            }
+
+            void update(int id, double price) {
+                int u = updates[id]++;
+                int slot = id * window + u % window;
+                double prev = last[id];
+                last[id] = price;
+                // price window: SMA, Bollinger
+                double old = u >= window ? prices[slot] : 0.0;
+                prices[slot] = price;
+                sum[id] += price - old;
+                sumSq[id] += price * price - old * old;
+                // EMA, seeded with the first price
+                ema[id] = u == 0 ? price : ema[id] + alpha * (price - ema[id]);
+                if (u == 0)
+                    return;
+                // return window (u - 1 returns so far): volatility
+                int r = u - 1;
+                int rslot = id * window + r % window;
+                double ret = prev > 0 && price > 0 ? Math.log(price / prev) : 0.0;
+                double oldRet = r >= window ? returns[rslot] : 0.0;
+                returns[rslot] = ret;
+                retSum[id] += ret - oldRet;
+                retSumSq[id] += ret * ret - oldRet * oldRet;
+                // RSI: simple average over the first period, Wilder smoothing after
+                double gain = Math.max(price - prev, 0.0), loss = Math.max(prev - price, 0.0);
+                if (r < rsiPeriod) {
+                    avgGain[id] += gain / rsiPeriod;
+                    avgLoss[id] += loss / rsiPeriod;
+                } else {
+                    avgGain[id] += (gain - avgGain[id]) / rsiPeriod;
+                    avgLoss[id] += (loss - avgLoss[id]) / rsiPeriod;
+                }
+                if (u % RESUM_EVERY == 0)
+                    resum(id);
+            }
+
+            private void resum(int id) {
+                int n = Math.min(updates[id], window), rn = Math.min(updates[id] - 1, window);
+                double s = 0, s2 = 0, rs = 0, rs2 = 0;
+                for (int i = 0; i < n; i++) {
+                    double v = prices[id * window + i];
+                    s += v;
+                    s2 += v * v;
+                }
+                for (int i = 0; i < rn; i++) {
+                    double v = returns[id * window + i];
+                    rs += v;
+                    rs2 += v * v;
+                }
+                sum[id] = s;
+                sumSq[id] = s2;
+                retSum[id] = rs;
+                retSumSq[id] = rs2;
+            }
+        }
+
+        // fill-driven state per symbol
+        private static final class Vwap {
+            final double[] pv, volume;
+
+            Vwap(int n) {
+                pv = new double[n];
+                volume = new double[n];
+            }
+
+            Vwap grow(int n) {
+                Vwap v = new Vwap(n);
+                System.arraycopy(pv, 0, v.pv, 0, pv.length);
+                System.arraycopy(volume, 0, v.volume, 0, volume.length);
+                return v;
+            }
+        }
+
+        public void onTrade(int symbolId, boolean buy, int qty, double price, long epochNanos) {
+            synchronized (vwapLock) {
+                Vwap v = vwap;
+                if (symbolId >= v.pv.length)
+                    vwap = v = v.grow(Math.max(symbolId + 1, v.pv.length * 2));
+                v.pv[symbolId] += price * qty;
+                v.volume[symbolId] += qty;
+            }
+        }
+
+        // Readers: racy reads of the latest values, like the Market's price columns
+
+        public double sma(int id) {
+            Columns c = cols;
+            return id < c.symbols && c.updates[id] >= window ? c.sum[id] / window : Double.NaN;
+        }
+
+        public double ema(int id) {
+            Columns c = cols;
+            return id < c.symbols && c.updates[id] > 0 ? c.ema[id] : Double.NaN;
+        }
+
+        public double vwap(int id) {
+            Vwap v = vwap;
+            return id < v.pv.length && v.volume[id] > 0 ? v.pv[id] / v.volume[id] : Double.NaN;
+        }
+
+        public double rsi(int id) {
+            Columns c = cols;
+            if (id >= c.symbols || c.updates[id] <= rsiPeriod)
+                return Double.NaN;
+            double g = c.avgGain[id], l = c.avgLoss[id];
+            return g + l == 0 ? 50.0 : 100.0 * g / (g + l);
+        }
+
+        // Bollinger bands: SMA -/+ k standard deviations
+        public double bollingerLower(int id, double k) {
+            return bollinger(id, -k);
+        }
+
+        public double bollingerUpper(int id, double k) {
+            return bollinger(id, k);
+        }
+
+        private double bollinger(int id, double k) {
+            Columns c = cols;
+            if (id >= c.symbols || c.updates[id] < window)
+                return Double.NaN;
+            double mean = c.sum[id] / window;
+            return mean + k * Math.sqrt(Math.max(c.sumSq[id] / window - mean * mean, 0.0));
+        }
+
+        // standard deviation of the last window log returns, per update
+        public double volatility(int id) {
+            Columns c = cols;
+            if (id >= c.symbols || c.updates[id] <= window)
+                return Double.NaN;
+            double mean = c.retSum[id] / window;
+            return Math.sqrt(Math.max(c.retSumSq[id] / window - mean * mean, 0.0));
+        }
+    }
+
+    // ---------------------------
+    // Diagnostics
+    // ---------------------------
+    // Latency histogram with HDR-style log-linear buckets: exact below SUB_BUCKETS ns, then
+    // SUB_BUCKETS / 2 buckets per power of two (about 3% resolution) up to MAX_VALUE. Recording
+    // is one atomic increment, no locks and no allocation, so any thread may record.
+    static class LatencyHistogram {
+        private static final int SUB_BITS = 6, SUB_BUCKETS = 1 << SUB_BITS, HALF = SUB_BUCKETS / 2;
+        static final long MAX_VALUE = 1L << 40; // ns, about 18 minutes; larger values are clamped
+        private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+        private final String name;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong(), sum = new AtomicLong(), max = new AtomicLong();
+
+        LatencyHistogram(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        private static int index(long v) {
+            if (v < SUB_BUCKETS)
+                return (int) v;
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS + 1;
+            return (shift + 1) * HALF + (int) (v >>> shift) - HALF;
+        }
+
+        // highest value that lands in bucket i
+        private static long upperBound(int i) {
+            if (i < SUB_BUCKETS)
+                return i;
+            int shift = i / HALF - 1;
+            long sub = i % HALF + HALF;
+            return ((sub + 1) << shift) - 1;
+        }
+
+        public void record(long nanos) {
+            long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+            counts.incrementAndGet(index(v));
+            total.incrementAndGet();
+            sum.addAndGet(v);
+            long m;
+            while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+            }
+        }
+
+        // records the time since startNanos (a System.nanoTime() reading)
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return total.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = total.get();
+            return n == 0 ? 0.0 : (double) sum.get() / n;
+        }
+
+        // upper bound of the bucket holding the percentile (0-100); 0 when empty
+        public long valueAtPercentile(double percentile) {
+            long n = total.get();
+            if (n == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++)
+                counts.set(i, 0);
+            total.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+    }
+
+    // Process-wide hot-path timings and counters. metrics.off=true turns recording into a
+    // single branch for comparison runs.
+    static class Metrics {
+        static final boolean ENABLED = !Boolean.getBoolean("metrics.off");
+        static final LatencyHistogram TICK = new LatencyHistogram("tick");
+        static final LatencyHistogram STEP = new LatencyHistogram("market.step");
+        static final LatencyHistogram TRADE = new LatencyHistogram("handleTrade");
+        static final LatencyHistogram PORTFOLIO_WAIT = new LatencyHistogram("portfolio.lockWait");
+        static final LatencyHistogram PORTFOLIO_HOLD = new LatencyHistogram("portfolio.lockHold");
+        static final LatencyHistogram EDT_LAG = new LatencyHistogram("edt.lag");
+        static final LatencyHistogram FRAME = new LatencyHistogram("ui.frame");
+        static final LatencyHistogram[] HISTOGRAMS = { TICK, STEP, TRADE, PORTFOLIO_WAIT, PORTFOLIO_HOLD, EDT_LAG,
+                FRAME };
+        static final LongAdder TICKS = new LongAdder();
+        static final LongAdder TRADES = new LongAdder();
+        static final LongAdder DROPPED_FRAMES = new LongAdder();
+
+        static long now() {
+            return ENABLED ? System.nanoTime() : 0L;
+        }
+
+        static void since(LatencyHistogram h, long start) {
+            if (ENABLED)
+                h.recordSince(start);
+        }
+
+        static void reset() {
+            for (LatencyHistogram h : HISTOGRAMS)
+                h.reset();
+            TICKS.reset();
+            TRADES.reset();
+            DROPPED_FRAMES.reset();
+        }
+
+        // one JSON object per call, for JSON-lines files
+        static String toJson(long epochMillis) {
+            StringBuilder b = new StringBuilder(512);
+            b.append("{\"time\":").append(epochMillis).append(",\"ticks\":").append(TICKS.sum())
+                    .append(",\"trades\":").append(TRADES.sum()).append(",\"droppedFrames\":")
+                    .append(DROPPED_FRAMES.sum()).append(",\"latencyNanos\":{");
+            for (int i = 0; i < HISTOGRAMS.length; i++) {
+                LatencyHistogram h = HISTOGRAMS[i];
+                if (i > 0)
+                    b.append(',');
+                b.append('"').append(h.getName()).append("\":{\"count\":").append(h.getCount()).append(",\"p50\":")
+                        .append(h.valueAtPercentile(50)).append(",\"p99\":").append(h.valueAtPercentile(99))
+                        .append(",\"p999\":").append(h.valueAtPercentile(99.9)).append(",\"max\":")
+                        .append(h.getMax()).append(",\"mean\":").append(Math.round(h.getMean())).append('}');
+            }
+            return b.append("}}").toString();
+        }
+
+        static final String CSV_HEADER = "time,metric,count,p50_ns,p99_ns,p999_ns,max_ns,mean_ns";
+
+        // one row per histogram and counter
+        static String toCsv(long epochMillis) {
+            StringBuilder b = new StringBuilder(512);
+            for (LatencyHistogram h : HISTOGRAMS)
+                b.append(epochMillis).append(',').append(h.getName()).append(',').append(h.getCount()).append(',')
+                        .append(h.valueAtPercentile(50)).append(',').append(h.valueAtPercentile(99)).append(',')
+                        .append(h.valueAtPercentile(99.9)).append(',').append(h.getMax()).append(',')
+                        .append(Math.round(h.getMean())).append('\n');
+            b.append(epochMillis).append(",ticks,").append(TICKS.sum()).append(",,,,,\n");
+            b.append(epochMillis).append(",trades,").append(TRADES.sum()).append(",,,,,\n");
+            b.append(epochMillis).append(",droppedFrames,").append(DROPPED_FRAMES.sum()).append(",,,,,\n");
+            return b.toString();
+        }
+
+        // appends a dump every intervalMillis on a daemon thread; JSON lines unless the file ends in .csv
+        static Thread startDump(Path file, long intervalMillis) throws IOException {
+            boolean csv = file.toString().endsWith(".csv");
+            Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            if (csv)
+                out.write(CSV_HEADER + "\n");
+            out.flush();
+            Thread t = new Thread(() -> {
+                try (Writer w = out) {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        try {
+                            Thread.sleep(intervalMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt(); // write a last dump on the way out
+                        }
+                        long now = System.currentTimeMillis();
+                        w.write(csv ? toCsv(now) : toJson(now) + "\n");
+                        w.flush();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Metrics dump stopped: " + e.getMessage());
+                }
+            }, "metrics-dump");
+            t.setDaemon(true);
+            t.start();
+            return t;
+        }
+    }
+
+    // ---------------------------
+    // Monte Carlo value-at-risk
+    // ---------------------------
+    // Simulates the P&L of a fixed set of positions over a horizon of ticks. Each path
+    // compounds one per-tick return per position; for a portfolio the returns come from the
+    // Market's current PriceModel, so the factor model's correlated shocks and regimes carry
+    // into the tails. Paths run in fork/join chunks of CHUNK, each drawing from its own
+    // SplittableRandom split off the seed in chunk order (and stepping its own fork of the price
+    // model), so results depend only on the seed and not on the thread count. P&L goes into one
+    // double[], and VaR and expected shortfall are read off the sorted losses. run() reports an
+    // interim Result after each of ROUNDS slices.
+    static class MonteCarloVaR {
+        static final int CHUNK = 8192, ROUNDS = 10, BINS = 60;
+
+        // simple return of one position over one tick
+        interface ReturnModel {
+            double next(SplittableRandom rnd, int position);
+
+            // once per tick of a path, before the positions' returns
+            default void beginTick() {
+            }
+
+            // the model one chunk of paths uses; stateless models share themselves
+            default ReturnModel forChunk(SplittableRandom rnd) {
+                return this;
+            }
+        }
+
+        // UniformWalk's independent -1.5%..+1.5% move
+        static final ReturnModel UNIFORM_WALK = (rnd, position) -> (rnd.nextDouble() * 3.0 - 1.5) / 100.0;
+
+        // normally distributed per-tick returns
+        static ReturnModel normal(double mean, double sd) {
+            return (rnd, position) -> mean + sd * rnd.nextGaussian();
+        }
+
+        // the positions' symbols moved as Market.step() moves them; every chunk steps a fork of
+        // the model, so the live market's model is never advanced
+        private static final class MarketReturns implements ReturnModel {
+            private final Market market;
+            private final PriceModel model;
+            private final int[] ids;
+            private final long[] ticks; // price at the start of the horizon
+
+            MarketReturns(Market market, PriceModel model, int[] ids, long[] ticks) {
+                this.market = market;
+                this.model = model;
+                this.ids = ids;
+                this.ticks = ticks;
+            }
+
+            @Override
+            public void beginTick() {
+                model.beginStep(market);
+            }
+
+            @Override
+            public double next(SplittableRandom rnd, int position) {
+                long p = model.move(ids[position], ticks[position], rnd);
+                return p <= 1 ? 0 : (double) p / ticks[position] - 1;
+            }
+
+            @Override
+            public ReturnModel forChunk(SplittableRandom rnd) {
+                return new MarketReturns(market, model.fork(market, rnd.nextLong()), ids, ticks);
+            }
+        }
+
+        private final String[] tickers;
+        private final int[] qty;
+        private final double[] prices;
+        private final ReturnModel model;
+        private final int horizon;
+        private final long seed;
+        private volatile boolean cancelled;
+
+        MonteCarloVaR(String[] tickers, int[] qty, double[] prices, ReturnModel model, int horizon, long seed) {
+            if (tickers.length != qty.length || qty.length != prices.length)
+                throw new IllegalArgumentException("Position columns differ in length");
+            if (horizon < 1)
+                throw new IllegalArgumentException("Horizon must be at least one tick");
+            this.tickers = tickers;
+            this.qty = qty;
+            this.prices = prices;
+            this.model = model;
+            this.horizon = horizon;
+            this.seed = seed;
+        }
+
+        // the portfolio's holdings at current market prices, moved by the Market's PriceModel
+        static MonteCarloVaR of(Portfolio portfolio, Market market, int horizon, long seed) {
+            return of(portfolio, market, null, horizon, seed);
+        }
+
+        // as above with the given model; unlisted tickers are left out
+        static MonteCarloVaR of(Portfolio portfolio, Market market, ReturnModel model, int horizon, long seed) {
+            List<Holding> holdings = portfolio.getHoldings();
+            int n = 0;
+            String[] tickers = new String[holdings.size()];
+            int[] qty = new int[tickers.length], ids = new int[tickers.length];
+            double[] prices = new double[tickers.length];
+            long[] ticks = new long[tickers.length];
+            for (Holding h : holdings) {
+                int id = market.idOf(h.getTicker());
+                if (id < 0)
+                    continue;
+                tickers[n] = h.getTicker();
+                qty[n] = h.getQty();
+                ids[n] = id;
+                ticks[n] = market.getPriceTicks(id);
+                prices[n] = MatchingEngine.toPrice(ticks[n]);
+                n++;
+            }
+            if (model == null)
+                model = new MarketReturns(market, market.getPriceModel(), Arrays.copyOf(ids, n),
+                        Arrays.copyOf(ticks, n));
+            return new MonteCarloVaR(Arrays.copyOf(tickers, n), Arrays.copyOf(qty, n), Arrays.copyOf(prices, n),
+                    model, horizon, seed);
+        }
+
+        public int getPositionCount() {
+            return qty.length;
+        }
+
+        public double getValue() {
+            double v = 0;
+            for (int i = 0; i < qty.length; i++)
+                v += qty[i] * prices[i];
+            return v;
+        }
+
+        // stops a running run() after the chunks in flight
+        public void cancel() {
+            cancelled = true;
+        }
+
+        // Runs paths and returns the final Result (partial if cancelled). confidence is e.g.
+        // 0.99; progress, if not null, gets an interim Result after each round on this thread.
+        public Result run(int paths, double confidence, ForkJoinPool pool, Consumer<Result> progress) {
+            if (paths < 1)
+                throw new IllegalArgumentException("Need at least one path");
+            if (!(confidence > 0 && confidence < 1))
+                throw new IllegalArgumentException("Confidence must be between 0 and 1");
+            cancelled = false;
+            double[] pnl = new double[paths];
+            int chunks = (paths + CHUNK - 1) / CHUNK;
+            SplittableRandom root = new SplittableRandom(seed);
+            SplittableRandom[] rngs = new SplittableRandom[chunks];
+            for (int c = 0; c < chunks; c++)
+                rngs[c] = root.split();
+            int perRound = (chunks + ROUNDS - 1) / ROUNDS, done = 0;
+            Result last = null;
+            for (int c = 0; c < chunks && !cancelled; c += perRound) {
+                int to = Math.min(chunks, c + perRound);
+                pool.invoke(new PathTask(pnl, rngs, c, to));
+                done = Math.min(paths, to * CHUNK);
+                last = summarize(pnl, done, paths, confidence);
+                if (progress != null && done < paths)
+                    progress.accept(last);
+            }
+            return last;
+        }
+
+        // simulates the paths of chunks [from, to), halving until one chunk is left
+        private class PathTask extends RecursiveAction {
+            private final double[] pnl;
+            private final SplittableRandom[] rngs;
+            private final int from, to;
+
+            PathTask(double[] pnl, SplittableRandom[] rngs, int from, int to) {
+                this.pnl = pnl;
+                this.rngs = rngs;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from > 1) {
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new PathTask(pnl, rngs, from, mid), new PathTask(pnl, rngs, mid, to));
+                    return;
+                }
+                if (cancelled)
+                    return;
+                SplittableRandom rnd = rngs[from];
+                ReturnModel m = model.forChunk(rnd);
+                int n = qty.length;
+                double[] growth = new double[n];
+                for (int p = from * CHUNK, end = Math.min(pnl.length, p + CHUNK); p < end; p++) {
+                    Arrays.fill(growth, 1);
+                    for (int t = 0; t < horizon; t++) { // tick by tick: shocks are shared across positions
+                        m.beginTick();
+                        for (int i = 0; i < n; i++)
+                            growth[i] *= 1 + m.next(rnd, i);
+                    }
+                    double change = 0;
+                    for (int i = 0; i < n; i++)
+                        change += qty[i] * prices[i] * (growth[i] - 1);
+                    pnl[p] = change;
+                }
+            }
+        }
+
+        // statistics over the first done paths; sorts a copy, so pnl stays in path order
+        private static Result summarize(double[] pnl, int done, int total, double confidence) {
+            double[] sorted = Arrays.copyOf(pnl, done);
+            Arrays.parallelSort(sorted);
+            int tail = Math.max(1, (int) Math.floor((1 - confidence) * done)); // worst paths beyond VaR
+            double sum = 0, tailSum = 0;
+            for (int i = 0; i < done; i++) {
+                sum += sorted[i];
+                if (i < tail)
+                    tailSum += sorted[i];
+            }
+            double min = sorted[0], max = sorted[done - 1];
+            int[] bins = new int[BINS];
+            double width = (max - min) / BINS;
+            for (double v : sorted)
+                bins[width > 0 ? Math.min(BINS - 1, (int) ((v - min) / width)) : 0]++;
+            return new Result(done, total, confidence, -sorted[tail - 1], -tailSum / tail, sum / done, min, max, bins);
+        }
+
+        // VaR and expected shortfall are positive for losses
+        static final class Result {
+            public final int paths, totalPaths;
+            public final double confidence, valueAtRisk, expectedShortfall, meanPnl, minPnl, maxPnl;
+            private final int[] bins; // P&L histogram, BINS equal-width bins over [minPnl, maxPnl]
+
+            Result(int paths, int totalPaths, double confidence, double valueAtRisk, double expectedShortfall,
+                    double meanPnl, double minPnl, double maxPnl, int[] bins) {
+                this.paths = paths;
+                this.totalPaths = totalPaths;
+                this.confidence = confidence;
+                this.valueAtRisk = valueAtRisk;
+                this.expectedShortfall = expectedShortfall;
+                this.meanPnl = meanPnl;
+                this.minPnl = minPnl;
+                this.maxPnl = maxPnl;
+                this.bins = bins;
+            }
+
+            public boolean isComplete() {
+                return paths == totalPaths;
+            }
+
+            public int getBinCount() {
+                return bins.length;
+            }
+
+            public int getBin(int i) {
+                return bins[i];
+            }
+        }
+    }
+
+    // ---------------------------
+    // Automated strategies
+    // ---------------------------
+    // An automated trader. Calls for one strategy never overlap, so it needs no locking of its
+    // own; they run on shared threads and should not block.
+    interface Strategy {
+        // symbol ids to receive prices for, asked once when the strategy is added
+        int[] symbols(Market market);
+
+        // watched symbols that moved since the last call: ctx.getSlot(i) (index into symbols())
+        // and ctx.getPriceTicks(i) for i < count
+        void onPrices(StrategyRunner.Context ctx, int count);
+
+        // an order placed through ctx filled; delivered after onPrices returns
+        default void onFill(StrategyRunner.Context ctx, int symbolId, boolean buy, int qty, long priceTicks) {
+        }
+    }
+
+    // Hosts many strategies, each trading its own Portfolio. The runner consumes the price bus
+    // and fans each update out to the mailboxes of the strategies watching that symbol. A
+    // CONFLATE mailbox keeps only the latest price per watched symbol, so it is bounded by the
+    // watch list; a QUEUE mailbox keeps every update in a ring of queueCapacity and drops the
+    // oldest when full. A strategy with mail is scheduled once per bus batch: its activation
+    // drains the mailbox, calls onPrices, delivers fills and reschedules itself if mail arrived
+    // meanwhile. Activations get a virtual thread each when the runtime has them (Java 21+),
+    // otherwise they share a fork/join pool. Strategy orders are market orders: each passes the
+    // strategy's own RiskGate, trades immediate-or-cancel against house quotes at the market's
+    // current price in the runner's book, and settles into the strategy's Portfolio from the
+    // fills. Tick-to-order latency is measured from the bus publish of the newest price the
+    // strategy had seen.
+    static class StrategyRunner implements PriceHandler, Closeable {
+        static final int CONFLATE = 0, QUEUE = 1;
+        static final double BOOK_BAND = 0.01; // strategy orders only trade at the touch
+
+        private final Market market;
+        private final int policy, queueCapacity;
+        private final ExecutorService executor;
+        private final boolean virtualThreads;
+        private final MatchingEngine matching = new MatchingEngine(SimulationEngine.ORDER_POOL, this::onFill,
+                BOOK_BAND);
+        private final MarketMaker marketMaker;
+        private Context taker; // the context whose order is matching; guarded by matching
+        private long takerReserve;
+        private int takerFilled;
+        private long takerPrice;
+        private Context[] contexts = new Context[16];
+        private int count;
+        // fan-out index: symbol id -> watching contexts and the symbol's slot in each
+        private int[][] watchers = new int[0][], watchSlots = new int[0][];
+        private int[] watcherCounts = new int[0];
+        private Context[] dirty = new Context[16]; // mail received in the current bus batch
+        private int dirtyCount;
+        private long batch;
+        private final AtomicInteger active = new AtomicInteger(); // scheduled, not yet finished
+        private final long clockOffset = clockOffset(); // epoch nanos - System.nanoTime()
+        private final LatencyHistogram tickToOrder = new LatencyHistogram("strategy.tickToOrder");
+        private final LongAdder updates = new LongAdder(), conflated = new LongAdder(),
+                dropped = new LongAdder(), activations = new LongAdder(), orders = new LongAdder(),
+                rejects = new LongAdder(), failures = new LongAdder();
+
+        StrategyRunner(Market market, int policy, int queueCapacity) {
+            if (policy != CONFLATE && policy != QUEUE)
+                throw new IllegalArgumentException("Unknown mailbox policy " + policy);
+            if (queueCapacity < 1)
+                throw new IllegalArgumentException("Queue capacity must be positive");
+            this.market = market;
+            this.policy = policy;
+            this.queueCapacity = queueCapacity;
+            marketMaker = new MarketMaker(matching, market);
+            ExecutorService virtual = null;
+            try {
+                virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // before Java 21
+            }
+            virtualThreads = virtual != null;
+            executor = virtual != null ? virtual
+                    : new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        }
+
+        // wall clock read between two nanoTime reads; the tightest of a few samples
+        private static long clockOffset() {
+            long best = Long.MAX_VALUE, offset = 0;
+            for (int i = 0; i < 16; i++) {
+                long t0 = System.nanoTime();
+                long wall = TradeJournal.epochNanos(Instant.now());
+                long t1 = System.nanoTime();
+                if (t1 - t0 < best) {
+                    best = t1 - t0;
+                    offset = wall - (t0 + (t1 - t0) / 2);
+                }
+            }
+            return offset;
+        }
+
+        // "conflate" or "queue"
+        static int policy(String name) {
+            switch (name) {
+            case "conflate":
+                return CONFLATE;
+            case "queue":
+                return QUEUE;
+            default:
+                throw new IllegalArgumentException("Unknown mailbox policy " + name);
+            }
+        }
+
+        // returns the strategy's context; its Portfolio starts with initialCash
+        public synchronized Context add(Strategy strategy, double initialCash) {
+            int[] symbols = strategy.symbols(market).clone();
+            Context c = new Context(this, count, strategy, new Portfolio(initialCash, 16), symbols);
+            if (count == contexts.length)
+                contexts = Arrays.copyOf(contexts, count * 2);
+            contexts[count++] = c;
+            for (int slot = 0; slot < symbols.length; slot++) {
+                int s = symbols[slot];
+                if (s < 0 || s >= market.size())
+                    throw new IllegalArgumentException("No symbol " + s);
+                if (s >= watchers.length) {
+                    int n = Math.max(s + 1, market.size());
+                    watchers = Arrays.copyOf(watchers, n);
+                    watchSlots = Arrays.copyOf(watchSlots, n);
+                    watcherCounts = Arrays.copyOf(watcherCounts, n);
+                }
+                int k = watcherCounts[s];
+                if (watchers[s] == null) {
+                    watchers[s] = new int[4];
+                    watchSlots[s] = new int[4];
+                } else if (k == watchers[s].length) {
+                    watchers[s] = Arrays.copyOf(watchers[s], k * 2);
+                    watchSlots[s] = Arrays.copyOf(watchSlots[s], k * 2);
+                }
+                watchers[s][k] = c.id;
+                watchSlots[s][k] = slot;
+                watcherCounts[s] = k + 1;
+            }
+            return c;
+        }
+
+        public synchronized void onPrice(long sequence, long tick, long epochNanos, int symbolId, double price,
+                boolean endOfBatch) {
+            if (symbolId < watcherCounts.length) {
+                int[] ws = watchers[symbolId], slots = watchSlots[symbolId];
+                long ticks = MatchingEngine.toTicks(price);
+                for (int i = 0, n = watcherCounts[symbolId]; i < n; i++) {
+                    Context c = contexts[ws[i]];
+                    c.offer(slots[i], ticks, epochNanos);
+                    if (c.dirtyBatch != batch) {
+                        c.dirtyBatch = batch;
+                        if (dirtyCount == dirty.length)
+                            dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+                        dirty[dirtyCount++] = c;
+                    }
+                }
+            }
+            if (endOfBatch) {
+                for (int i = 0; i < dirtyCount; i++) {
+                    schedule(dirty[i]);
+                    dirty[i] = null;
+                }
+                dirtyCount = 0;
+                batch++;
+            }
+        }
+
+        // Reserves the order on the context's RiskGate at the house quote for the Market price,
+        // then matches it immediate-or-cancel with that as its limit; returns the last fill
+        // price, or a rejection code. A rejected order never touches the book.
+        private long execute(Context c, int symbolId, boolean buy, int qty) {
+            long px = market.getPriceTicks(symbolId);
+            long reserve = buy ? px : px - 1;
+            if (reserve <= 0)
+                return MatchingEngine.REJECTED;
+            long check = buy ? c.risk.reserveBuy(symbolId, qty, reserve) : c.risk.reserveSell(symbolId, qty, reserve);
+            if (check != RiskGate.OK)
+                return check;
+            marketMaker.quote(symbolId);
+            synchronized (matching) {
+                taker = c;
+                takerReserve = reserve;
+                takerFilled = 0;
+                takerPrice = MatchingEngine.REJECTED;
+                try {
+                    matching.submit(symbolId, buy, qty, reserve, c.owner(), true);
+                } finally {
+                    taker = null;
+                }
+                int left = qty - takerFilled;
+                if (left > 0) {
+                    if (buy)
+                        c.risk.releaseBuy(symbolId, left, reserve);
+                    else
+                        c.risk.releaseSell(symbolId, left);
+                }
+                return takerPrice;
+            }
+        }
+
+        // called by the matching engine (under its lock); strategy orders never rest, so only
+        // the taker can be a strategy
+        private void onFill(long takerOrderId, long makerOrderId, int symbolId, boolean takerBuy, int qty,
+                long priceTicks, int takerOwner, int makerOwner) {
+            Context c = taker;
+            if (c == null || takerOwner != c.owner())
+                return;
+            String ticker = market.getTicker(symbolId);
+            try {
+                if (takerBuy) {
+                    c.portfolio.buyTicks(ticker, qty, priceTicks);
+                    c.risk.fillBuy(symbolId, qty, takerReserve, priceTicks);
+                } else {
+                    c.portfolio.sellTicks(ticker, qty, priceTicks);
+                    c.risk.fillSell(symbolId, qty, priceTicks);
+                }
+            } catch (IllegalArgumentException e) {
+                return; // the portfolio was changed behind the gate; released as unfilled
+            }
+            takerFilled += qty;
+            takerPrice = priceTicks;
+            c.addFill(symbolId, takerBuy, qty, priceTicks);
+        }
+
+        private void schedule(Context c) {
+            if (c.failure == null && c.scheduled.compareAndSet(false, true)) {
+                active.incrementAndGet();
+                executor.execute(c);
+            }
+        }
+
+        // waits until every scheduled activation has finished; false on timeout
+        public boolean awaitIdle(long timeoutNanos) {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (active.get() > 0) {
+                if (System.nanoTime() - deadline > 0)
+                    return false;
+                LockSupport.parkNanos(50_000);
+            }
+            return true;
+        }
+
+        // unsubscribe from the bus first; lets running activations finish
+        public void close() {
+            awaitIdle(5_000_000_000L);
+            executor.shutdown();
+        }
+
+        public synchronized int size() {
+            return count;
+        }
+
+        public synchronized Context getContext(int id) {
+            return contexts[id];
+        }
+
+        public boolean isVirtualThreads() {
+            return virtualThreads;
+        }
+
+        public LatencyHistogram getTickToOrder() {
+            return tickToOrder;
+        }
+
+        // price updates handed to strategies
+        public long getUpdates() {
+            return updates.sum();
+        }
+
+        // updates replaced by a newer price before the strategy ran (CONFLATE)
+        public long getConflated() {
+            return conflated.sum();
+        }
+
+        // updates pushed out of a full queue (QUEUE)
+        public long getDropped() {
+            return dropped.sum();
+        }
+
+        public long getActivations() {
+            return activations.sum();
+        }
+
+        public long getOrders() {
+            return orders.sum();
+        }
+
+        public long getRejects() {
+            return rejects.sum();
+        }
+
+        // strategies stopped by an exception
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        // One strategy's mailbox, portfolio and order entry. The mailbox is filled by the bus
+        // thread and drained by the activation under the context's monitor; everything else is
+        // touched only by the strategy's activations, which never overlap.
+        static final class Context implements Runnable {
+            private final StrategyRunner runner;
+            private final int id;
+            private final Strategy strategy;
+            private final Portfolio portfolio;
+            private final RiskGate risk = new RiskGate(16); // sees only the watched symbols
+            private final int[] symbols;
+            // CONFLATE mailbox: latest price per slot and the slots pending
+            private final long[] latest, latestTimes;
+            private final boolean[] pending;
+            private final int[] pendingSlots;
+            private int pendingCount;
+            // QUEUE mailbox: ring of updates
+            private final int[] qSlot;
+            private final long[] qTicks, qTimes;
+            private int qHead, qCount;
+            // updates of the current activation
+            private final int[] batchSlot;
+            private final long[] batchTicks;
+            private long newestTime;
+            // orders filled during the current activation
+            private int[] fillSymbol = new int[4], fillQty = new int[4];
+            private boolean[] fillBuy = new boolean[4];
+            private long[] fillTicks = new long[4];
+            private int fillCount;
+            private final AtomicBoolean scheduled = new AtomicBoolean();
+            private volatile RuntimeException failure;
+            private long dirtyBatch = -1; // bus thread only
+
+            Context(StrategyRunner runner, int id, Strategy strategy, Portfolio portfolio, int[] symbols) {
+                this.runner = runner;
+                this.id = id;
+                this.strategy = strategy;
+                this.portfolio = portfolio;
+                this.symbols = symbols;
+                risk.reset(portfolio, runner.market);
+                int n = symbols.length;
+                boolean conflate = runner.policy == CONFLATE;
+                latest = new long[conflate ? n : 0];
+                latestTimes = new long[conflate ? n : 0];
+                pending = new boolean[conflate ? n : 0];
+                pendingSlots = new int[conflate ? n : 0];
+                int q = conflate ? 0 : runner.queueCapacity;
+                qSlot = new int[q];
+                qTicks = new long[q];
+                qTimes = new long[q];
+                batchSlot = new int[conflate ? n : q];
+                batchTicks = new long[batchSlot.length];
+            }
+
+            private synchronized void offer(int slot, long ticks, long epochNanos) {
+                if (runner.policy == CONFLATE) {
+                    latest[slot] = ticks;
+                    latestTimes[slot] = epochNanos;
+                    if (pending[slot]) {
+                        runner.conflated.increment();
+                    } else {
+                        pending[slot] = true;
+                        pendingSlots[pendingCount++] = slot;
+                    }
+                    return;
+                }
+                int cap = qSlot.length;
+                if (qCount == cap) {
+                    qHead = (qHead + 1) % cap;
+                    qCount--;
+                    runner.dropped.increment();
+                }
+                int k = (qHead + qCount++) % cap;
+                qSlot[k] = slot;
+                qTicks[k] = ticks;
+                qTimes[k] = epochNanos;
+            }
+
+            // moves the mailbox into the batch arrays
+            private synchronized int take() {
+                long newest = 0;
+                int n;
+                if (runner.policy == CONFLATE) {
+                    n = pendingCount;
+                    for (int i = 0; i < n; i++) {
+                        int slot = pendingSlots[i];
+                        pending[slot] = false;
+                        batchSlot[i] = slot;
+                        batchTicks[i] = latest[slot];
+                        newest = Math.max(newest, latestTimes[slot]);
+                    }
+                    pendingCount = 0;
+                } else {
+                    n = qCount;
+                    for (int i = 0; i < n; i++) {
+                        int k = (qHead + i) % qSlot.length;
+                        batchSlot[i] = qSlot[k];
+                        batchTicks[i] = qTicks[k];
+                        newest = Math.max(newest, qTimes[k]);
+                    }
+                    qHead = qCount = 0;
+                }
+                newestTime = newest;
+                return n;
+            }
+
+            private synchronized boolean hasMail() {
+                return pendingCount > 0 || qCount > 0;
+            }
+
+            public void run() {
+                runner.activations.increment();
+                try {
+                    if (failure == null) {
+                        int n = take();
+                        if (n > 0) {
+                            runner.updates.add(n);
+                            strategy.onPrices(this, n);
+                        }
+                        for (int i = 0; i < fillCount; i++) // onFill may place more orders
+                            strategy.onFill(this, fillSymbol[i], fillBuy[i], fillQty[i], fillTicks[i]);
+                    }
+                } catch (RuntimeException e) {
+                    failure = e;
+                    runner.failures.increment();
+                } finally {
+                    fillCount = 0;
+                    newestTime = 0;
+                    scheduled.set(false);
+                    if (hasMail()) // arrived after take(); its schedule() found us still running
+                        runner.schedule(this);
+                    runner.active.decrementAndGet();
+                }
+            }
+
+            // returns the (last) fill price in ticks, MatchingEngine.REJECTED or a RiskGate
+            // rejection code
+            public long buy(int symbolId, int qty) {
+                return order(symbolId, true, qty);
+            }
+
+            public long sell(int symbolId, int qty) {
+                return order(symbolId, false, qty);
+            }
+
+            private long order(int symbolId, boolean buy, int qty) {
+                if (qty <= 0)
+                    return RiskGate.REJECT_ORDER_SIZE;
+                long price = runner.execute(this, symbolId, buy, qty);
+                if (price < 0) {
+                    runner.rejects.increment();
+                    return price;
+                }
+                runner.orders.increment();
+                if (newestTime != 0)
+                    runner.tickToOrder.record(System.nanoTime() + runner.clockOffset - newestTime);
+                return price;
+            }
+
+            // a fill of this context's order, delivered after onPrices returns
+            private void addFill(int symbolId, boolean buy, int qty, long priceTicks) {
+                if (fillCount == fillSymbol.length) {
+                    int cap = fillCount * 2;
+                    fillSymbol = Arrays.copyOf(fillSymbol, cap);
+                    fillQty = Arrays.copyOf(fillQty, cap);
+                    fillBuy = Arrays.copyOf(fillBuy, cap);
+                    fillTicks = Arrays.copyOf(fillTicks, cap);
+                }
+                fillSymbol[fillCount] = symbolId;
+                fillBuy[fillCount] = buy;
+                fillQty[fillCount] = qty;
+                fillTicks[fillCount++] = priceTicks;
+            }
+
+            // matching engine owner id; HOUSE and USER come first
+            private int owner() {
+                return USER + 1 + id;
+            }
+
+            public int getId() {
+                return id;
+            }
+
+            public Portfolio getPortfolio() {
+                return portfolio;
+            }
+
+            // this strategy's pre-trade limits
+            public RiskGate getRiskGate() {
+                return risk;
+            }
+
+            public Market getMarket() {
+                return runner.market;
+            }
+
+            // index into the strategy's symbols() of update i
+            public int getSlot(int i) {
+                return batchSlot[i];
+            }
+
+            public int getSymbol(int i) {
+                return symbols[batchSlot[i]];
+            }
+
+            public long getPriceTicks(int i) {
+                return batchTicks[i];
+            }
+
+            // the exception that stopped this strategy, or null
+            public RuntimeException getFailure() {
+                return failure;
+            }
+        }
+    }
+
+    // Demo strategy: buys a lot of a watched symbol once it rises threshold above its
+    // reference price and sells the position once it falls threshold below it; the reference
+    // then moves to the trade price
+    static class MomentumStrategy implements Strategy {
+        private final long seed;
+        private final int watch, lot;
+        private final double threshold;
+        private long[] reference;
+        private int[] held;
+
+        MomentumStrategy(long seed, int watch, double threshold, int lot) {
+            this.seed = seed;
+            this.watch = watch;
+            this.threshold = threshold;
+            this.lot = lot;
+        }
+
+        public int[] symbols(Market market) {
+            int n = Math.min(watch, market.size());
+            SplittableRandom rnd = new SplittableRandom(seed);
+            int[] ids = new int[n];
+            for (int i = 0; i < n; i++) { // distinct ids
+                int id;
+                do
+                    id = rnd.nextInt(market.size());
+                while (contains(ids, i, id));
+                ids[i] = id;
+            }
+            reference = new long[n];
+            held = new int[n];
+            return ids;
+        }
+
+        private static boolean contains(int[] ids, int n, int id) {
+            for (int i = 0; i < n; i++)
+                if (ids[i] == id)
+                    return true;
+            return false;
+        }
+
+        public void onPrices(StrategyRunner.Context ctx, int count) {
+            for (int i = 0; i < count; i++) {
+                int slot = ctx.getSlot(i);
+                long p = ctx.getPriceTicks(i);
+                long ref = reference[slot];
+                if (ref == 0) {
+                    reference[slot] = p;
+                } else if (p >= ref * (1 + threshold)) {
+                    if (ctx.buy(ctx.getSymbol(i), lot) > 0) {
+                        held[slot] += lot;
+                        reference[slot] = p;
+                    }
+                } else if (p <= ref * (1 - threshold) && held[slot] > 0) {
+                    if (ctx.sell(ctx.getSymbol(i), held[slot]) > 0) {
+                        held[slot] = 0;
+                        reference[slot] = p;
+                    }
+                }
+            }
+        }
+    }
+
+    // ---------------------------
+    // Simulation engine
+    // ---------------------------
+    interface TickListener {
+        // runs on the engine thread after every tick; keep it short
+        void onTick(long tick);
+    }
+
+    interface TradeListener {
+        // a user fill that settled into the portfolio; runs under the matching engine's lock
+        void onTrade(int symbolId, boolean buy, int qty, double price, long epochNanos);
+    }
+
+    // Runs the market, house liquidity and portfolio valuation with no AWT dependency. Ticks
+    // come from a dedicated thread at a fixed rate, or back to back when the rate is 0. Each
+    // tick's price changes go out on the PriceBus, so slower consumers (UI, account valuation,
+    // recording) drain them on their own threads instead of running inside the tick.
+    // User orders pass the RiskGate, are matched on the caller's thread and settled into the
+    // portfolio from the fills; the UI and the MarketGateway both enter orders through
+    // submitOrder. Strategies trade their own portfolios through the StrategyRunner's book.
+    // Observers either register a TickListener or poll getVersion() at their own pace.
+    static class SimulationEngine {
+        static final int ORDER_POOL = 1 << 16;
+
+        private final Market market;
+        private final MatchingEngine matching;
+        private final MarketMaker marketMaker;
+        private final RiskGate risk = new RiskGate();
+        private volatile Portfolio portfolio;
+        private volatile MarketDataSource source = new RandomWalkSource();
+        private volatile boolean sourceExhausted;
+        private final PriceBus bus = new PriceBus(Integer.getInteger("bus.capacity", 1 << 16));
+        private PriceBus.Subscription valuation; // values the account store off the tick thread
+        private long publishedEpoch = -1;
+        private final List<TickListener> listeners = new java.util.concurrent.CopyOnWriteArrayList<>();
+        private final List<TradeListener> tradeListeners = new java.util.concurrent.CopyOnWriteArrayList<>();
+        private volatile Consumer<String> errorHandler = System.err::println;
+        private volatile long tickNanos = 1_000_000_000L; // 0 = free-running
+        private volatile long ticks;
+        private final AtomicLong version = new AtomicLong(); // bumped by every tick and every settled fill
+        private volatile boolean running;
+        private Thread thread;
+        // orders whose fill could not settle; cancelled once the matching call returns
+        private final Object failedLock = new Object();
+        private long[] failedOrders = new long[64]; // grows, so no failed order is left resting
+        private int failedCount;
+        // resting user orders by pool slot with their reserved price and open quantity; guarded
+        // by the matching engine's lock, which is also held while fills are settled
+        private final long[] openOrders = new long[ORDER_POOL];
+        private final long[] openReserve = new long[ORDER_POOL];
+        private final int[] openQty = new int[ORDER_POOL];
+        private final int[] openSymbol = new int[ORDER_POOL];
+        private final boolean[] openBuy = new boolean[ORDER_POOL];
+        // the user order being submitted: its reserved price and the quantity settled so far
+        private long takerReserve;
+        private int takerSettled;
+
+        SimulationEngine(Market market, Portfolio portfolio) {
+            this.market = market;
+            this.portfolio = portfolio;
+            matching = new MatchingEngine(ORDER_POOL, this::onFill);
+            marketMaker = new MarketMaker(matching, market);
+            risk.reset(portfolio, market);
+        }
+
+        // ticks per second; 0 or less runs as fast as possible
+        public void setTickRate(double ticksPerSecond) {
+            tickNanos = ticksPerSecond > 0 ? (long) (1e9 / ticksPerSecond) : 0L;
+        }
+
+        public void setErrorHandler(Consumer<String> handler) {
+            errorHandler = handler;
+        }
+
+        public void addTickListener(TickListener l) {
+            listeners.add(l);
+        }
+
+        public void addTradeListener(TradeListener l) {
+            tradeListeners.add(l);
+        }
+
+        public Market getMarket() {
+            return market;
+        }
+
+        public void setDataSource(MarketDataSource source) {
+            this.source = source;
+            sourceExhausted = false;
+        }
+
+        // price updates of every tick, for consumers that should not hold the tick up
+        public PriceBus getPriceBus() {
+            return bus;
+        }
+
+        // values the accounts after each batch of price events, on a gating bus subscriber
+        public synchronized void setAccountStore(AccountStore accounts) {
+            if (valuation != null)
+                valuation.close();
+            valuation = accounts == null ? null
+                    : bus.subscribe("valuation", (seq, tick, time, id, price, end) -> {
+                        accounts.mark(id, price);
+                        if (end)
+                            accounts.valueAll();
+                    }, new BlockingWait(), true);
+        }
+
+        // true once a finite source (a replay) has delivered its last update
+        public boolean isSourceExhausted() {
+            return sourceExhausted;
+        }
+
+        public Portfolio getPortfolio() {
+            return portfolio;
+        }
+
+        public RiskGate getRiskGate() {
+            return risk;
+        }
+
+        // swaps the account being simulated; its predecessor's open orders are cancelled
+        public void setPortfolio(Portfolio p) {
+            synchronized (matching) {
+                cancelAllOrders();
+                portfolio = p;
+                risk.reset(p, market);
+            }
+            version.incrementAndGet();
+        }
+
+        public long getTickCount() {
+            return ticks;
+        }
+
+        public long getVersion() {
+            return version.get();
+        }
+
+        public synchronized void start() {
+            if (running)
+                return;
+            running = true;
+            thread = new Thread(this::run, "simulation-engine");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void stop() {
+            Thread t;
+            synchronized (this) {
+                running = false;
+                t = thread;
+                thread = null;
+            }
+            if (t != null && t != Thread.currentThread()) {
+                t.interrupt();
+                try {
+                    t.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void run() {
+            long next = System.nanoTime();
+            while (running) {
+                tick();
+                long period = tickNanos;
+                if (period <= 0) {
+                    next = System.nanoTime();
+                    continue;
+                }
+                next += period;
+                long wait = next - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+                else if (-wait > 10 * period)
+                    next = System.nanoTime(); // fell far behind; don't try to catch up in a burst
+            }
+        }
+
+        // one simulation step; callable directly when driving the engine by hand
+        public void tick() {
+            long start = Metrics.now();
+            if (!sourceExhausted && !source.advance(market)) // update prices
+                sourceExhausted = true;
+            Metrics.since(Metrics.STEP, start);
+            long t = ticks + 1;
+            long epoch = market.getEpoch();
+            if (epoch != publishedEpoch && bus.hasSubscribers())
+                bus.publish(t, TradeJournal.epochNanos(Instant.now()), market);
+            publishedEpoch = epoch;
+            marketMaker.requoteAll(); // may fill resting user limit orders
+            cancelFailedOrders();
+            portfolio.recordHistory(market); // record portfolio value for chart
+            ticks = t;
+            version.incrementAndGet();
+            for (TickListener l : listeners)
+                l.onTick(t);
+            Metrics.TICKS.increment();
+            Metrics.since(Metrics.TICK, start);
+        }
+
+        // returns the order id, MatchingEngine.REJECTED or one of the RiskGate rejection codes.
+        // Market buys reserve cash at the best ask and trade as immediate-or-cancel at that price.
+        public long submitOrder(int symbolId, boolean buy, int qty, long limitTicks) {
+            if (qty <= 0)
+                return MatchingEngine.REJECTED;
+            marketMaker.ensureQuoted(symbolId);
+            boolean market = limitTicks == MatchingEngine.MARKET;
+            long reserve = limitTicks;
+            if (market) {
+                reserve = buy ? matching.bestAsk(symbolId) : matching.bestBid(symbolId);
+                if (reserve == MatchingEngine.REJECTED)
+                    return MatchingEngine.REJECTED;
+            }
+            long check = buy ? risk.reserveBuy(symbolId, qty, reserve) : risk.reserveSell(symbolId, qty, reserve);
+            if (check != RiskGate.OK)
+                return check;
+            long id;
+            synchronized (matching) {
+                takerReserve = reserve;
+                takerSettled = 0;
+                if (market && buy)
+                    id = matching.submit(symbolId, true, qty, reserve, USER, true);
+                else
+                    id = matching.submit(symbolId, buy, qty, limitTicks, USER);
+                int resting = id == MatchingEngine.REJECTED ? 0 : matching.remaining(id);
+                if (resting > 0) {
+                    int slot = (int) id;
+                    openOrders[slot] = id;
+                    openReserve[slot] = reserve;
+                    openQty[slot] = resting;
+                    openSymbol[slot] = symbolId;
+                    openBuy[slot] = buy;
+                }
+                release(symbolId, buy, qty - takerSettled - resting, reserve);
+            }
+            cancelFailedOrders();
+            return id;
+        }
+
+        public int cancelAllOrders() {
+            int n = 0;
+            synchronized (matching) {
+                for (int slot = 0; slot < ORDER_POOL; slot++)
+                    if (openQty[slot] > 0 && cancelOrder(openOrders[slot]))
+                        n++;
+            }
+            return n;
+        }
+
+        // cancels a resting user order and hands back what it still had reserved
+        private boolean cancelOrder(long orderId) {
+            synchronized (matching) {
+                int slot = (int) orderId;
+                if (openQty[slot] == 0 || openOrders[slot] != orderId)
+                    return false;
+                matching.cancel(orderId);
+                release(openSymbol[slot], openBuy[slot], openQty[slot], openReserve[slot]);
+                openQty[slot] = 0;
+                return true;
+            }
+        }
+
+        private void release(int symbolId, boolean buy, int qty, long reserveTicks) {
+            if (qty <= 0)
+                return;
+            if (buy)
+                risk.releaseBuy(symbolId, qty, reserveTicks);
+            else
+                risk.releaseSell(symbolId, qty);
+        }
+
+        // called by the matching engine (under its lock) for every match
+        private void onFill(long takerOrderId, long makerOrderId, int symbolId, boolean takerBuy, int qty,
+                long priceTicks, int takerOwner, int makerOwner) {
+            if (takerOwner == USER) {
+                takerSettled += qty;
+                settle(takerOrderId, symbolId, takerBuy, qty, priceTicks, takerReserve);
+            }
+            if (makerOwner == USER) {
+                int slot = (int) makerOrderId;
+                long reserve = openReserve[slot];
+                if (openOrders[slot] == makerOrderId)
+                    openQty[slot] -= qty;
+                settle(makerOrderId, symbolId, !takerBuy, qty, priceTicks, reserve);
+            }
+        }
+
+        private void settle(long orderId, int symbolId, boolean buy, int qty, long priceTicks, long reserveTicks) {
+            String ticker = market.getTicker(symbolId);
+            double price = MatchingEngine.toPrice(priceTicks);
+            try {
+                if (buy) {
+                    portfolio.buyTicks(ticker, qty, priceTicks);
+                    risk.fillBuy(symbolId, qty, reserveTicks, priceTicks);
+                } else {
+                    portfolio.sellTicks(ticker, qty, priceTicks);
+                    risk.fillSell(symbolId, qty, priceTicks);
+                }
+                version.incrementAndGet();
+                Metrics.TRADES.increment();
+                if (!tradeListeners.isEmpty()) {
+                    long t = TradeJournal.epochNanos(Instant.now());
+                    for (TradeListener l : tradeListeners)
+                        l.onTrade(symbolId, buy, qty, price, t);
+                }
+            } catch (IllegalArgumentException ex) {
+                release(symbolId, buy, qty, reserveTicks);
+                // cash or holdings were spent elsewhere since the order was accepted; pull what is left
+                synchronized (failedLock) {
+                    if (failedCount == failedOrders.length)
+                        failedOrders = Arrays.copyOf(failedOrders, failedCount * 2);
+                    failedOrders[failedCount++] = orderId;
+                }
+                errorHandler.accept("Fill for " + ticker + " could not settle (" + ex.getMessage()
+                        + "); order cancelled");
+            }
+        }
+
+        // lock order is matching engine, then failedLock, as when settle() queues an order
+        private void cancelFailedOrders() {
+            synchronized (matching) {
+                synchronized (failedLock) {
+                    for (int i = 0; i < failedCount; i++)
+                        cancelOrder(failedOrders[i]);
+                    failedCount = 0;
+                }
+            }
+        }
+    }
+
+    // Fixed-size direct buffers shared by the connections of one selector loop. A connection only
+    // holds one while it has bytes in flight, so idle connections cost no buffer memory.
+    // Not thread-safe: used from the selector thread alone.
+    static class BufferPool {
+        private final int bufferSize;
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private volatile int allocated;
+
+        BufferPool(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer b = free.pollFirst();
+            if (b == null) {
+                b = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+                allocated++;
+            }
+            return b;
+        }
+
+        void release(ByteBuffer b) {
+            b.clear();
+            free.addFirst(b);
+        }
+
+        public int getBufferSize() {
+            return bufferSize;
+        }
+
+        public int getAllocated() {
+            return allocated;
+        }
+    }
+
+    // Non-blocking TCP gateway to the simulation. Clients subscribe to price updates and send
+    // orders, which go through SimulationEngine.submitOrder like the Buy/Sell buttons do.
+    // One selector thread owns every connection. Orders are submitted on a separate order
+    // thread, in arrival order, so a slow risk check or match never stalls the selector; the
+    // order thread queues each ack back and wakes the selector to send it, so a connection's
+    // acks keep the order of its orders. A connection with
+    // MAX_IN_FLIGHT orders unanswered is not read from until acks come back, and a pong may
+    // overtake the acks of earlier orders. A non-gating bus subscriber keeps only the
+    // latest price of each symbol; the selector fans the moved symbols out to the dirty sets of
+    // the connections watching them and sends a connection's whole batch with one write().
+    // A client that reads too slowly leaves its send buffer full, so its dirty symbols conflate
+    // to their latest price instead of queueing, and it is not read from while its replies
+    // cannot be queued.
+    //
+    // Wire format, little-endian: a type byte, then a fixed-size body for that type.
+    //   client -> gateway
+    //     'S' subscribe    int symbolId (-1 = every symbol); the current price follows
+    //     'U' unsubscribe  int symbolId (-1 = every symbol)
+    //     'O' order        long clientRef, int symbolId, byte buy (0/1), int qty, long limitTicks (0 = market)
+    //     'P' ping         long payload
+    //     'L' list         no body; answered with a 'y' per listed symbol
+    //   gateway -> client
+    //     'h' hello        int symbolCount, sent on connect
+    //     'p' price        int symbolId, long priceTicks, long tick
+    //     'a' ack          long clientRef, long orderId or a MatchingEngine/RiskGate rejection code
+    //     'q' pong         long payload, echoed
+    //     'y' symbol       int symbolId, long priceTicks, 8 bytes ticker (ASCII, zero padded, truncated)
+    static class MarketGateway implements PriceHandler, Closeable {
+        static final byte SUBSCRIBE = 'S', UNSUBSCRIBE = 'U', ORDER = 'O', PING = 'P', LIST = 'L';
+        static final byte HELLO = 'h', PRICE = 'p', ACK = 'a', PONG = 'q', SYMBOL = 'y';
+        static final int ALL = -1, BUFFER_SIZE = 16 * 1024;
+        static final int MAX_IN_FLIGHT = 256; // unanswered orders per connection
+
+        // body size of a message type, -1 if the type is unknown
+        static int bodySize(byte type) {
+            switch (type) {
+            case LIST:
+                return 0;
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+            case HELLO:
+                return 4;
+            case PING:
+            case PONG:
+                return 8;
+            case ACK:
+                return 16;
+            case PRICE:
+            case SYMBOL:
+                return 20;
+            case ORDER:
+                return 25;
+            default:
+                return -1;
+            }
+        }
+
+        private final SimulationEngine simulation;
+        private final Market market;
+        private final Selector selector;
+        private final ServerSocketChannel server;
+        private final BufferPool pool = new BufferPool(BUFFER_SIZE);
+        private final Thread thread;
+        private final ExecutorService orderThread;
+        private volatile boolean running = true;
+        private PriceBus.Subscription feed;
+        // acks from the order thread, taken by the selector thread; guarded by this
+        private Connection[] doneTo = new Connection[16];
+        private long[] doneRefs = new long[16], doneResults = new long[16];
+        private int doneCount;
+        // latest prices from the bus thread, taken by the selector thread; guarded by this
+        private long[] latest = new long[0], latestTick = new long[0];
+        private boolean[] pendingMark = new boolean[0];
+        private int[] pending = new int[16];
+        private int pendingCount;
+        private boolean refreshAll; // lapped on the bus: every symbol may have moved
+        // selector thread only
+        private long[] current = new long[0], currentTick = new long[0];
+        private int symbols;
+        private int[] drained = new int[16];
+        private Connection[] drainedTo = new Connection[16];
+        private long[] drainedRefs = new long[16], drainedResults = new long[16];
+        private final List<Connection> connections = new ArrayList<>();
+        private final List<Connection> allWatchers = new ArrayList<>();
+        private Connection[][] watchers = new Connection[0][];
+        private int[] watcherCounts = new int[0];
+        private volatile int open;
+        private final LongAdder accepted = new LongAdder(), messagesIn = new LongAdder(),
+                messagesOut = new LongAdder(), writes = new LongAdder(), conflated = new LongAdder(),
+                orders = new LongAdder();
+
+        MarketGateway(SimulationEngine simulation, InetSocketAddress address) throws IOException {
+            this.simulation = simulation;
+            market = simulation.getMarket();
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            try {
+                server.bind(address);
+                server.configureBlocking(false);
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException ex) {
+                server.close();
+                selector.close();
+                throw ex;
+            }
+            thread = new Thread(this::run, "gateway");
+            thread.setDaemon(true);
+            orderThread = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "gateway-orders");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        // listens on the loopback interface
+        MarketGateway(SimulationEngine simulation, int port) throws IOException {
+            this(simulation, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+
+        public int getPort() {
+            return server.socket().getLocalPort();
+        }
+
+        public void start() {
+            feed = simulation.getPriceBus().subscribe("gateway", this, new BlockingWait(), false);
+            thread.start();
+        }
+
+        public void close() {
+            if (feed != null)
+                feed.close();
+            running = false;
+            selector.wakeup();
+            if (thread.isAlive() && thread != Thread.currentThread()) {
+                try {
+                    thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (!thread.isAlive()) {
+                shutdown();
+            }
+        }
+
+        public int getConnections() {
+            return open;
+        }
+
+        public long getAccepted() {
+            return accepted.sum();
+        }
+
+        public long getMessagesIn() {
+            return messagesIn.sum();
+        }
+
+        public long getMessagesOut() {
+            return messagesOut.sum();
+        }
+
+        public long getWrites() {
+            return writes.sum();
+        }
+
+        // price updates replaced by a newer one before they were sent
+        public long getConflated() {
+            return conflated.sum();
+        }
+
+        public long getOrders() {
+            return orders.sum();
+        }
+
+        public int getBuffersAllocated() {
+            return pool.getAllocated();
+        }
+
+        @Override
+        public void onPrice(long sequence, long tick, long epochNanos, int symbolId, double price,
+                boolean endOfBatch) {
+            synchronized (this) {
+                if (symbolId >= latest.length) {
+                    int n = Math.max(symbolId + 1, latest.length * 2);
+                    latest = Arrays.copyOf(latest, n);
+                    latestTick = Arrays.copyOf(latestTick, n);
+                    pendingMark = Arrays.copyOf(pendingMark, n);
+                }
+                latest[symbolId] = MatchingEngine.toTicks(price);
+                latestTick[symbolId] = tick;
+                if (pendingMark[symbolId]) {
+                    conflated.increment();
+                } else {
+                    pendingMark[symbolId] = true;
+                    if (pendingCount == pending.length)
+                        pending = Arrays.copyOf(pending, pendingCount * 2);
+                    pending[pendingCount++] = symbolId;
+                }
+            }
+            if (endOfBatch)
+                selector.wakeup();
+        }
+
+        @Override
+        public void onLapped() {
+            synchronized (this) {
+                refreshAll = true;
+            }
+            selector.wakeup();
+        }
+
+        private void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable())
+                                c.onWritable();
+                            if (key.isValid() && key.isReadable())
+                                c.read();
+                        } catch (IOException ex) {
+                            c.close();
+                        }
+                    }
+                    deliverAcks();
+                    deliverPrices();
+                }
+            } catch (IOException ex) {
+                System.err.println("Gateway stopped: " + ex.getMessage());
+            } finally {
+                shutdown();
+            }
+        }
+
+        private void shutdown() {
+            orderThread.shutdown();
+            for (Connection c : connections.toArray(new Connection[0]))
+                c.close();
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException ex) {
+                System.err.println("Gateway close failed: " + ex.getMessage());
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel ch;
+            while ((ch = server.accept()) != null) {
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection c = new Connection(ch);
+                connections.add(c);
+                open = connections.size();
+                accepted.increment();
+                ensureSymbols(market.size());
+                try {
+                    c.reply(1 + 4).put(HELLO).putInt(symbols);
+                    messagesOut.increment();
+                    c.flush();
+                    c.updateInterest();
+                } catch (IOException ex) {
+                    c.close();
+                }
+            }
+        }
+
+        // order thread: enters one order and queues its ack for the selector
+        private void submit(Connection c, long ref, int id, boolean buy, int qty, long limit) {
+            long result = MatchingEngine.REJECTED;
+            if (id >= 0 && id < market.size() && limit >= 0) {
+                long start = Metrics.now();
+                try {
+                    result = simulation.submitOrder(id, buy, qty, limit);
+                } catch (RuntimeException ex) {
+                    // still answered, or the connection would wait for the ack forever
+                }
+                Metrics.since(Metrics.TRADE, start);
+            }
+            synchronized (this) {
+                if (doneCount == doneTo.length) {
+                    int n = doneCount * 2;
+                    doneTo = Arrays.copyOf(doneTo, n);
+                    doneRefs = Arrays.copyOf(doneRefs, n);
+                    doneResults = Arrays.copyOf(doneResults, n);
+                }
+                doneTo[doneCount] = c;
+                doneRefs[doneCount] = ref;
+                doneResults[doneCount++] = result;
+            }
+            selector.wakeup();
+        }
+
+        // hands the order thread's acks to their connections and sends what they can
+        private void deliverAcks() {
+            int n;
+            synchronized (this) {
+                n = doneCount;
+                if (n == 0)
+                    return;
+                doneCount = 0;
+                Connection[] to = drainedTo;
+                long[] refs = drainedRefs, results = drainedResults;
+                drainedTo = doneTo;
+                drainedRefs = doneRefs;
+                drainedResults = doneResults;
+                doneTo = to;
+                doneRefs = refs;
+                doneResults = results;
+            }
+            for (int i = 0; i < n; i++) {
+                Connection c = drainedTo[i];
+                if (!c.closed) {
+                    c.inFlight--;
+                    c.queueAck(drainedRefs[i], drainedResults[i]);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                Connection c = drainedTo[i];
+                drainedTo[i] = null;
+                if (c.closed || c.blocked || c.ackCount == 0)
+                    continue;
+                try {
+                    if (c.paused)
+                        c.process(); // may have been waiting on its in-flight limit
+                    else {
+                        c.flush();
+                        c.updateInterest();
+                    }
+                } catch (IOException ex) {
+                    c.close();
+                }
+            }
+        }
+
+        // grows the selector's columns to n symbols, starting new ones at the market price
+        private void ensureSymbols(int n) {
+            if (n <= symbols)
+                return;
+            if (n > current.length) {
+                int cap = Math.max(n, current.length * 2);
+                current = Arrays.copyOf(current, cap);
+                currentTick = Arrays.copyOf(currentTick, cap);
+                watchers = Arrays.copyOf(watchers, cap);
+                watcherCounts = Arrays.copyOf(watcherCounts, cap);
+            }
+            for (int id = symbols; id < n; id++)
+                current[id] = market.getPriceTicks(id);
+            symbols = n;
+        }
+
+        // takes the bus's latest prices and sends each watching connection what it can
+        private void deliverPrices() {
+            int n;
+            boolean all;
+            synchronized (this) {
+                all = refreshAll;
+                refreshAll = false;
+                n = pendingCount;
+                pendingCount = 0;
+                ensureSymbols(Math.max(market.size(), latest.length));
+                if (drained.length < n)
+                    drained = new int[Math.max(n, drained.length * 2)];
+                for (int i = 0; i < n; i++) {
+                    int id = pending[i];
+                    pendingMark[id] = false;
+                    drained[i] = id;
+                    current[id] = latest[id];
+                    currentTick[id] = latestTick[id];
+                }
+            }
+            if (all) {
+                for (int id = 0; id < symbols; id++)
+                    current[id] = market.getPriceTicks(id);
+                for (Connection c : connections)
+                    for (int id = 0; id < symbols; id++)
+                        if (c.watches(id))
+                            c.markDirty(id);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    int id = drained[i];
+                    for (int k = 0; k < allWatchers.size(); k++)
+                        allWatchers.get(k).markDirty(id);
+                    Connection[] w = watchers[id];
+                    for (int k = 0, m = watcherCounts[id]; k < m; k++)
+                        w[k].markDirty(id);
+                }
+            }
+            for (int i = 0; i < connections.size(); i++) {
+                Connection c = connections.get(i);
+                if (c.dirtyCount == 0 || c.blocked)
+                    continue;
+                try {
+                    c.flush();
+                    c.updateInterest();
+                } catch (IOException ex) {
+                    c.close();
+                    i--;
+                }
+            }
+        }
+
+        private void watch(Connection c, int id) {
+            Connection[] w = watchers[id];
+            if (w == null)
+                w = watchers[id] = new Connection[2];
+            int n = watcherCounts[id];
+            if (n == w.length)
+                w = watchers[id] = Arrays.copyOf(w, n * 2);
+            w[n] = c;
+            watcherCounts[id] = n + 1;
+        }
+
+        private void unwatch(Connection c, int id) {
+            Connection[] w = watchers[id];
+            int n = watcherCounts[id];
+            for (int k = 0; k < n; k++) {
+                if (w[k] == c) {
+                    w[k] = w[n - 1];
+                    w[n - 1] = null;
+                    watcherCounts[id] = n - 1;
+                    return;
+                }
+            }
+        }
+
+        private final class Connection {
+            private final SocketChannel channel;
+            private final SelectionKey key;
+            private ByteBuffer in, out; // pooled, held only while partly filled
+            private boolean all;
+            private boolean[] watching = new boolean[0];
+            private int[] dirty = new int[16];
+            private boolean[] dirtyMark = new boolean[0];
+            private int dirtyCount;
+            private int listNext, listEnd; // symbols still to send for a list request
+            private long[] ackRefs = new long[4], ackResults = new long[4]; // acks waiting for the send buffer
+            private int ackCount, inFlight; // inFlight: orders at the order thread
+            private boolean blocked; // the socket took less than we had; waiting for OP_WRITE
+            private boolean paused; // not reading until queued replies are written
+            private boolean closed;
+
+            Connection(SocketChannel channel) throws IOException {
+                this.channel = channel;
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            }
+
+            boolean watches(int id) {
+                return all || id < watching.length && watching[id];
+            }
+
+            void markDirty(int id) {
+                if (id >= dirtyMark.length)
+                    dirtyMark = Arrays.copyOf(dirtyMark, Math.max(id + 1, symbols));
+                if (dirtyMark[id]) {
+                    conflated.increment();
+                    return;
+                }
+                dirtyMark[id] = true;
+                if (dirtyCount == dirty.length)
+                    dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+                dirty[dirtyCount++] = id;
+            }
+
+            void queueAck(long ref, long result) {
+                if (ackCount == ackRefs.length) {
+                    ackRefs = Arrays.copyOf(ackRefs, ackCount * 2);
+                    ackResults = Arrays.copyOf(ackResults, ackCount * 2);
+                }
+                ackRefs[ackCount] = ref;
+                ackResults[ackCount++] = result;
+            }
+
+            // the send buffer if it has room for size more bytes, otherwise null
+            ByteBuffer reply(int size) {
+                if (out == null)
+                    out = pool.acquire();
+                return out.remaining() >= size ? out : null;
+            }
+
+            void read() throws IOException {
+                if (in == null)
+                    in = pool.acquire();
+                int n = channel.read(in);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                process();
+            }
+
+            void onWritable() throws IOException {
+                blocked = false;
+                flush();
+                if (paused && !blocked)
+                    process();
+                else
+                    updateInterest();
+            }
+
+            // handles the complete messages received so far, then sends whatever they produced
+            private void process() throws IOException {
+                while (true) {
+                    paused = false;
+                    if (in != null)
+                        parse();
+                    flush();
+                    if (!paused || blocked || closed)
+                        break;
+                }
+                updateInterest();
+            }
+
+            private void parse() {
+                ByteBuffer b = in;
+                b.flip();
+                while (b.hasRemaining()) {
+                    byte type = b.get(b.position());
+                    int body = bodySize(type);
+                    if (body < 0 || type == HELLO || type == PRICE || type == ACK || type == PONG
+                            || type == SYMBOL) {
+                        close(); // not a request; the stream cannot be resynchronised
+                        return;
+                    }
+                    if (b.remaining() < 1 + body)
+                        break;
+                    // requests with a reply wait until the reply can be queued
+                    if (listNext < listEnd || (type == ORDER && inFlight + ackCount >= MAX_IN_FLIGHT)
+                            || (type == PING && reply(1 + 8) == null)) {
+                        paused = true;
+                        break;
+                    }
+                    b.get();
+                    messagesIn.increment();
+                    handle(type, b);
+                }
+                b.compact();
+                if (b.position() == 0) {
+                    pool.release(b);
+                    in = null;
+                }
+            }
+
+            private void handle(byte type, ByteBuffer b) {
+                switch (type) {
+                case SUBSCRIBE:
+                    subscribe(b.getInt());
+                    break;
+                case UNSUBSCRIBE:
+                    unsubscribe(b.getInt());
+                    break;
+                case ORDER: {
+                    long ref = b.getLong();
+                    int id = b.getInt();
+                    boolean buy = b.get() != 0;
+                    int qty = b.getInt();
+                    long limit = b.getLong();
+                    orders.increment();
+                    inFlight++; // rejected ones too, so acks keep the order of the requests
+                    orderThread.execute(() -> submit(this, ref, id, buy, qty, limit));
+                    break;
+                }
+                case PING:
+                    out.put(PONG).putLong(b.getLong());
+                    messagesOut.increment();
+                    break;
+                case LIST:
+                    ensureSymbols(market.size());
+                    listNext = 0;
+                    listEnd = symbols;
+                    break;
+                default:
+                    break;
+                }
+            }
+
+            // unknown ids are ignored; clients learn the valid range from hello or a list
+            private void subscribe(int id) {
+                ensureSymbols(market.size());
+                if (id == ALL) {
+                    if (!all) {
+                        all = true;
+                        allWatchers.add(this);
+                    }
+                    for (int s = 0; s < symbols; s++)
+                        markDirty(s);
+                    return;
+                }
+                if (id < 0 || id >= symbols)
+                    return;
+                if (id >= watching.length)
+                    watching = Arrays.copyOf(watching, Math.max(id + 1, symbols));
+                if (!watching[id]) {
+                    watching[id] = true;
+                    watch(this, id);
+                }
+                markDirty(id);
+            }
+
+            private void unsubscribe(int id) {
+                if (id == ALL) {
+                    if (all) {
+                        all = false;
+                        allWatchers.remove(this);
+                    }
+                    for (int s = 0; s < watching.length; s++) {
+                        if (watching[s]) {
+                            watching[s] = false;
+                            unwatch(this, s);
+                        }
+                    }
+                } else if (id >= 0 && id < watching.length && watching[id]) {
+                    watching[id] = false;
+                    unwatch(this, id);
+                }
+            }
+
+            // fills the send buffer with acks, pending symbols and prices and writes it, until
+            // the socket stops taking bytes or nothing is left
+            void flush() throws IOException {
+                while (!closed && !blocked) {
+                    ByteBuffer b = reply(0);
+                    int acks = 0;
+                    while (acks < ackCount && b.remaining() >= 1 + 16) {
+                        b.put(ACK).putLong(ackRefs[acks]).putLong(ackResults[acks]);
+                        acks++;
+                    }
+                    if (acks > 0) {
+                        messagesOut.add(acks);
+                        ackCount -= acks;
+                        System.arraycopy(ackRefs, acks, ackRefs, 0, ackCount);
+                        System.arraycopy(ackResults, acks, ackResults, 0, ackCount);
+                    }
+                    while (listNext < listEnd && b.remaining() >= 1 + 20) {
+                        int id = listNext++;
+                        b.put(SYMBOL).putInt(id).putLong(current[id]);
+                        String t = market.getTicker(id);
+                        for (int i = 0; i < 8; i++)
+                            b.put(i < t.length() ? (byte) t.charAt(i) : 0);
+                        messagesOut.increment();
+                    }
+                    while (dirtyCount > 0 && b.remaining() >= 1 + 20) {
+                        int id = dirty[--dirtyCount];
+                        dirtyMark[id] = false;
+                        if (!watches(id))
+                            continue;
+                        b.put(PRICE).putInt(id).putLong(current[id]).putLong(currentTick[id]);
+                        messagesOut.increment();
+                    }
+                    b.flip();
+                    if (b.hasRemaining()) {
+                        channel.write(b);
+                        writes.increment();
+                    }
+                    boolean sentAll = !b.hasRemaining();
+                    b.compact();
+                    if (b.position() == 0) {
+                        pool.release(b);
+                        out = null;
+                    }
+                    blocked = !sentAll;
+                    if (listNext == listEnd && dirtyCount == 0 && ackCount == 0)
+                        break;
+                }
+            }
+
+            void updateInterest() {
+                if (closed)
+                    return;
+                key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (blocked ? SelectionKey.OP_WRITE : 0));
+            }
+
+            void close() {
+                if (closed)
+                    return;
+                closed = true;
+                unsubscribe(ALL);
+                connections.remove(this);
+                open = connections.size();
+                if (in != null)
+                    pool.release(in);
+                if (out != null)
+                    pool.release(out);
+                in = out = null;
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // already gone
+                }
+            }
+        }
+    }
+
+    // Opens many connections to a MarketGateway over loopback from one selector thread and
+    // measures price messages per second and ping and order round trips. The round trips of the
+    // warm-up seconds are left out of the summary.
+    // usage: --gateway-load [--port p] [--connections n] [--seconds s] [--warmup s] [--watch k|all]
+    //                       [--ping-rate perSecond] [--order-rate perSecond]   (rates per connection)
+    static class GatewayLoadGenerator {
+        private final InetSocketAddress address;
+        private final int watch; // symbols per connection, MarketGateway.ALL for every symbol
+        private final long pingEvery, orderEvery; // nanos, 0 = never
+        private final Selector selector;
+        private final Client[] clients;
+        private final LatencyHistogram pingRtt = new LatencyHistogram("gateway.ping"),
+                orderRtt = new LatencyHistogram("gateway.order");
+        private long prices, acks, rejects, received, sent;
+        private int connected, failed;
+
+        static void run(String[] args) throws IOException {
+            int port = 9400, connections = 100, seconds = 10, warmup = 1, watch = 5;
+            double pingRate = 10, orderRate = 1;
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--connections":
+                    connections = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--watch":
+                    watch = args[i + 1].equals("all") ? MarketGateway.ALL : Integer.parseInt(args[i + 1]);
+                    break;
+                case "--ping-rate":
+                    pingRate = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--order-rate":
+                    orderRate = Double.parseDouble(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            GatewayLoadGenerator load = new GatewayLoadGenerator(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port), connections, watch, pingRate,
+                    orderRate);
+            System.out.printf("gateway load: %,d connections to %s, %s symbols each, %.1f pings/s and %.1f"
+                    + " orders/s per connection, %d s%n", connections, load.address,
+                    watch == MarketGateway.ALL ? "all" : String.valueOf(watch), pingRate, orderRate, seconds);
+            load.drive(seconds, warmup);
+        }
+
+        GatewayLoadGenerator(InetSocketAddress address, int connections, int watch, double pingRate,
+                double orderRate) throws IOException {
+            if (connections < 1)
+                throw new IllegalArgumentException("Need at least one connection");
+            this.address = address;
+            this.watch = watch;
+            pingEvery = pingRate > 0 ? (long) (1e9 / pingRate) : 0;
+            orderEvery = orderRate > 0 ? (long) (1e9 / orderRate) : 0;
+            selector = Selector.open();
+            clients = new Client[connections];
+        }
+
+        void drive(int seconds, int warmup) throws IOException {
+            long start = System.nanoTime();
+            for (int i = 0; i < clients.length; i++)
+                clients[i] = new Client(i, start);
+            long end = start + seconds * 1_000_000_000L, report = start + 1_000_000_000L;
+            long lastPrices = 0, lastAcks = 0, lastReceived = 0;
+            int second = 0;
+            try {
+                for (long now = start; now < end; now = System.nanoTime()) {
+                    selector.select(1);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Client c = (Client) key.attachment();
+                        try {
+                            if (key.isConnectable())
+                                c.finishConnect();
+                            else if (key.isReadable())
+                                c.read();
+                            if (key.isValid() && key.isWritable())
+                                c.flush();
+                        } catch (IOException ex) {
+                            c.fail(ex);
+                        }
+                    }
+                    now = System.nanoTime();
+                    for (Client c : clients) {
+                        try {
+                            c.send(now);
+                        } catch (IOException ex) {
+                            c.fail(ex);
+                        }
+                    }
+                    if (now >= report) {
+                        second++;
+                        System.out.printf("t=%3ds connected=%,d prices=%,d/s acks=%,d/s in=%,d msg/s"
+                                + " ping p50 %.1f us p99 %.1f us, order p50 %.1f us p99 %.1f us%n", second, connected,
+                                prices - lastPrices, acks - lastAcks, received - lastReceived,
+                                pingRtt.valueAtPercentile(50) / 1e3, pingRtt.valueAtPercentile(99) / 1e3,
+                                orderRtt.valueAtPercentile(50) / 1e3, orderRtt.valueAtPercentile(99) / 1e3);
+                        lastPrices = prices;
+                        lastAcks = acks;
+                        lastReceived = received;
+                        report += 1_000_000_000L;
+                        if (second == warmup) {
+                            pingRtt.reset();
+                            orderRtt.reset();
+                        }
+                    }
+                }
+            } finally {
+                for (Client c : clients)
+                    c.close();
+                selector.close();
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.printf("connections: %,d connected, %,d failed%n", connected, failed);
+            System.out.printf("messages: %,d sent, %,d received (%,.0f/s), %,d prices, %,d acks (%,d rejected)%n",
+                    sent, received, received / elapsed, prices, acks, rejects);
+            for (LatencyHistogram h : new LatencyHistogram[] { pingRtt, orderRtt })
+                System.out.printf("%s round trip after warm-up: p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us (%,d)%n",
+                        h.getName(), h.valueAtPercentile(50) / 1e3, h.valueAtPercentile(99) / 1e3,
+                        h.valueAtPercentile(99.9) / 1e3, h.getMax() / 1e3, h.getCount());
+        }
+
+        private final class Client {
+            private final int index;
+            private final SocketChannel channel;
+            private final SelectionKey key;
+            private final ByteBuffer in = ByteBuffer.allocateDirect(MarketGateway.BUFFER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            private final ByteBuffer out = ByteBuffer.allocateDirect(Math.max(256, 5 * watch + 64))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            private int symbols = -1; // known after hello
+            private int first; // first watched symbol, the one orders are sent for
+            private long nextPing, nextOrder;
+            private boolean buy = true, closed;
+
+            Client(int index, long start) throws IOException {
+                this.index = index;
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                boolean done = channel.connect(address);
+                key = channel.register(selector, done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                if (done)
+                    connected++;
+                // spread the clients' sends over the interval
+                nextPing = start + (pingEvery == 0 ? 0 : pingEvery * index / clients.length);
+                nextOrder = start + (orderEvery == 0 ? 0 : orderEvery * index / clients.length);
+            }
+
+            void finishConnect() throws IOException {
+                if (channel.finishConnect()) {
+                    connected++;
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+
+            void read() throws IOException {
+                if (channel.read(in) < 0)
+                    throw new IOException("Gateway closed the connection");
+                in.flip();
+                long now = System.nanoTime();
+                while (in.hasRemaining()) {
+                    byte type = in.get(in.position());
+                    int body = MarketGateway.bodySize(type);
+                    if (body < 0)
+                        throw new IOException("Unknown message type " + type);
+                    if (in.remaining() < 1 + body)
+                        break;
+                    in.get();
+                    received++;
+                    switch (type) {
+                    case MarketGateway.HELLO:
+                        symbols = in.getInt();
+                        subscribe();
+                        break;
+                    case MarketGateway.PRICE:
+                        prices++;
+                        in.position(in.position() + body);
+                        break;
+                    case MarketGateway.ACK: {
+                        long ref = in.getLong();
+                        if (in.getLong() < 0)
+                            rejects++;
+                        acks++;
+                        orderRtt.record(now - ref);
+                        break;
+                    }
+                    case MarketGateway.PONG:
+                        pingRtt.record(now - in.getLong());
+                        break;
+                    default:
+                        in.position(in.position() + body);
+                        break;
+                    }
+                }
+                in.compact();
+            }
+
+            private void subscribe() throws IOException {
+                if (symbols == 0)
+                    return;
+                if (watch == MarketGateway.ALL) {
+                    out.put(MarketGateway.SUBSCRIBE).putInt(MarketGateway.ALL);
+                    sent++;
+                } else {
+                    first = (int) ((long) index * Math.max(1, watch) % symbols);
+                    for (int k = 0; k < Math.min(watch, symbols) && out.remaining() >= 5; k++) {
+                        out.put(MarketGateway.SUBSCRIBE).putInt((first + k) % symbols);
+                        sent++;
+                    }
+                }
+                flush();
+            }
+
+            // pings and orders that are due, if the previous ones have left room to queue them
+            void send(long now) throws IOException {
+                if (closed || symbols < 0)
+                    return;
+                boolean any = false;
+                if (pingEvery > 0 && now >= nextPing && out.remaining() >= 9) {
+                    out.put(MarketGateway.PING).putLong(now);
+                    nextPing += pingEvery;
+                    if (nextPing < now)
+                        nextPing = now + pingEvery;
+                    sent++;
+                    any = true;
+                }
+                if (orderEvery > 0 && symbols > 0 && now >= nextOrder && out.remaining() >= 26) {
+                    // a one-share market order, alternating sides
+                    out.put(MarketGateway.ORDER).putLong(now).putInt(first).put((byte) (buy ? 1 : 0)).putInt(1)
+                            .putLong(MatchingEngine.MARKET);
+                    buy = !buy;
+                    nextOrder += orderEvery;
+                    if (nextOrder < now)
+                        nextOrder = now + orderEvery;
+                    sent++;
+                    any = true;
+                }
+                if (any)
+                    flush();
+            }
+
+            void flush() throws IOException {
+                out.flip();
+                channel.write(out);
+                boolean pending = out.hasRemaining();
+                out.compact();
+                key.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+            }
+
+            void fail(IOException ex) {
+                if (closed)
+                    return;
+                if (symbols < 0)
+                    failed++;
+                System.err.println("connection " + index + ": " + ex.getMessage());
+                close();
+            }
+
+            void close() {
+                if (closed)
+                    return;
+                closed = true;
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // already gone
+                }
+            }
+        }
+    }
+
+    // Runs the simulation with no UI and prints throughput once a second.
+    // usage: --headless [--rate ticksPerSecond|max] [--seconds n] [--symbols n] [--parallelism n]
+    //                   [--replay tickFile [--speed multiplier|max]] [--accounts n [--positions k]]
+    //                   [--record tickFile] [--model uniform|factor [--factors k]] [--gateway port]
+    static class HeadlessRunner {
+        static void run(String[] args) throws IOException {
+            double rate = 0, speed = 0;
+            int seconds = 10, symbols = 0, parallelism = Integer.getInteger("market.parallelism", 1);
+            int accounts = 0, positions = 5, strategies = 0, watch = 5;
+            int factors = 4, gatewayPort = -1;
+            String replay = null, record = null, metrics = null, mailbox = "conflate", model = "uniform";
+            double metricsInterval = 1;
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                case "--rate":
+                    rate = args[i + 1].equals("max") ? 0 : Double.parseDouble(args[i + 1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--symbols":
+                    symbols = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--parallelism":
+                    parallelism = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--replay":
+                    replay = args[i + 1];
+                    break;
+                case "--speed":
+                    speed = args[i + 1].equals("max") ? 0 : Double.parseDouble(args[i + 1]);
+                    break;
+                case "--accounts":
+                    accounts = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--positions":
+                    positions = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--record":
+                    record = args[i + 1];
+                    break;
+                case "--metrics":
+                    metrics = args[i + 1];
+                    break;
+                case "--metrics-interval":
+                    metricsInterval = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--strategies":
+                    strategies = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--watch":
+                    watch = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--mailbox":
+                    mailbox = args[i + 1];
+                    break;
+                case "--model":
+                    model = args[i + 1];
+                    break;
+                case "--factors":
+                    factors = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--gateway":
+                    gatewayPort = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            Market market = symbols > 0 ? syntheticMarket(symbols) : new Market();
+            market.setParallelism(parallelism);
+            market.setPriceModel(PriceModel.of(model, factors, 7L));
+            Portfolio portfolio = new Portfolio(100000.0);
+            portfolio.attach(market);
+            SimulationEngine sim = new SimulationEngine(market, portfolio);
+            sim.setTickRate(rate);
+            ReplayFeed feed = null;
+            if (replay != null) {
+                feed = ReplayFeed.open(Paths.get(replay), market, speed);
+                sim.setDataSource(feed);
+            }
+            AccountStore store = null;
+            if (accounts > 0) {
+                store = newAccountStore(market, accounts, positions);
+                store.setParallelism(parallelism);
+                sim.setAccountStore(store);
+                System.out.printf("accounts: %,d in %d shards, %d positions each%n", accounts,
+                        store.getShardCount(), positions);
+            }
+            TickRecorder recorder = null;
+            PriceBus.Subscription recording = null;
+            if (record != null) {
+                recorder = new TickRecorder(Paths.get(record), market);
+                recording = sim.getPriceBus().subscribe("recorder", recorder, new BlockingWait(), true);
+            }
+            StrategyRunner runner = null;
+            PriceBus.Subscription strategyFeed = null;
+            if (strategies > 0) {
+                runner = newStrategyRunner(market, strategies, watch, StrategyRunner.policy(mailbox));
+                strategyFeed = sim.getPriceBus().subscribe("strategies", runner, new BlockingWait(), true);
+                System.out.printf("strategies: %,d watching %d symbols each, %s mailboxes, %s threads%n",
+                        strategies, watch, mailbox, runner.isVirtualThreads() ? "virtual" : "pooled");
+            }
+            MarketGateway gateway = null;
+            if (gatewayPort >= 0) {
+                gateway = new MarketGateway(sim, gatewayPort);
+                gateway.start();
+                System.out.printf("gateway: listening on port %d%n", gateway.getPort());
+            }
+            Thread dump = metrics == null ? null
+                    : Metrics.startDump(Paths.get(metrics), Math.max(1, Math.round(metricsInterval * 1000)));
+            System.out.printf("headless: %,d symbols, %s ticks/s, %d thread(s), %d s%n", market.size(),
+                    rate > 0 ? String.valueOf(rate) : "max", parallelism, seconds);
+            sim.start();
+            long last = 0, lastOrders = 0, lastUpdates = 0, lastIn = 0, lastOut = 0, lastWrites = 0;
+            for (int s = 1; s <= seconds && !sim.isSourceExhausted(); s++) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                long t = sim.getTickCount();
+                System.out.printf("t=%3ds ticks=%,d (%,d/s) value=%.2f%n", s, t, t - last,
+                        portfolio.getCash() + portfolio.getMarketValue(market));
+                if (feed != null)
+                    System.out.printf("       replayed %,d updates%n", feed.getUpdatesApplied());
+                if (runner != null) {
+                    long o = runner.getOrders(), u = runner.getUpdates();
+                    LatencyHistogram h = runner.getTickToOrder();
+                    System.out.printf("       strategies: %,d updates/s, %,d orders/s, tick-to-order p50 %.1f us,"
+                            + " p99 %.1f us%n", u - lastUpdates, o - lastOrders, h.valueAtPercentile(50) / 1e3,
+                            h.valueAtPercentile(99) / 1e3);
+                    lastOrders = o;
+                    lastUpdates = u;
+                }
+                if (gateway != null) {
+                    long in = gateway.getMessagesIn(), out = gateway.getMessagesOut(), w = gateway.getWrites();
+                    System.out.printf("       gateway: %,d connections, %,d msgs in/s, %,d msgs out/s in %,d writes,"
+                            + " %d buffers%n", gateway.getConnections(), in - lastIn, out - lastOut, w - lastWrites,
+                            gateway.getBuffersAllocated());
+                    lastIn = in;
+                    lastOut = out;
+                    lastWrites = w;
+                }
+                last = t;
+            }
+            sim.stop();
+            market.setParallelism(1);
+            if (gateway != null) {
+                gateway.close();
+                System.out.printf("gateway: %,d connections accepted, %,d msgs in, %,d msgs out, %,d orders,"
+                        + " %,d conflated%n", gateway.getAccepted(), gateway.getMessagesIn(), gateway.getMessagesOut(),
+                        gateway.getOrders(), gateway.getConflated());
+            }
+            if (runner != null) {
+                strategyFeed.close();
+                runner.close();
+                LatencyHistogram h = runner.getTickToOrder();
+                System.out.printf("strategies: %,d activations, %,d updates (%,d conflated, %,d dropped),"
+                        + " %,d orders, %,d rejected, %d failed%n", runner.getActivations(), runner.getUpdates(),
+                        runner.getConflated(), runner.getDropped(), runner.getOrders(), runner.getRejects(),
+                        runner.getFailures());
+                System.out.printf("tick-to-order: p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+                        h.valueAtPercentile(50) / 1e3, h.valueAtPercentile(99) / 1e3,
+                        h.valueAtPercentile(99.9) / 1e3, h.getMax() / 1e3);
+            }
+            for (LatencyHistogram h : new LatencyHistogram[] { Metrics.TICK, Metrics.STEP })
+                System.out.printf("%s: p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n", h.getName(),
+                        h.valueAtPercentile(50) / 1e3, h.valueAtPercentile(99) / 1e3,
+                        h.valueAtPercentile(99.9) / 1e3, h.getMax() / 1e3);
+            if (dump != null) {
+                dump.interrupt(); // writes a final dump
+                try {
+                    dump.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (recording != null) {
+                recording.close();
+                recorder.close();
+                System.out.printf("recorded %,d price events to %s%n", recording.getSequence() + 1, record);
+            }
+            sim.setAccountStore(null); // finishes the last valuation
+            if (feed != null) {
+                System.out.printf("replay %s: %,d updates, %,d out of order%n",
+                        sim.isSourceExhausted() ? "finished" : "stopped", feed.getUpdatesApplied(),
+                        feed.getOutOfOrder());
+                feed.close();
+            }
+            if (store != null) {
+                store.setParallelism(1);
+                for (int id : store.topByPnl(3))
+                    System.out.printf("account %,d: value %.2f, P&L %.2f%n", id, store.getValue(id),
+                            store.getPnl(id));
+                System.out.printf("%,d accounts hold %s%n", store.holdersOf(0).length, market.getTicker(0));
+            }
+        }
+
+        // the six default stocks plus synthetic S000006.. symbols priced 10..5000
+        private static Market syntheticMarket(int symbols) {
+            Market m = new Market(42L);
+            SplittableRandom r = new SplittableRandom(7L);
+            for (int i = m.size(); i < symbols; i++)
+                m.addStock(String.format("S%06d", i), "Synthetic " + i,
+                        Math.round((10.0 + r.nextDouble() * 4990.0) * 100.0) / 100.0);
+            return m;
+        }
+
+        // MomentumStrategy instances with 100,000 each, trading 10-share lots on 0.5% moves
+        private static StrategyRunner newStrategyRunner(Market market, int strategies, int watch, int policy) {
+            StrategyRunner runner = new StrategyRunner(market, policy, 64);
+            for (int i = 0; i < strategies; i++)
+                runner.add(new MomentumStrategy(i, watch, 0.005, 10), 100000.0);
+            return runner;
+        }
+
+        // accounts with a deterministic spread of random positions
+        private static AccountStore newAccountStore(Market market, int accounts, int positions) {
+            AccountStore store = new AccountStore(market, 64);
+            SplittableRandom rnd = new SplittableRandom(7);
+            for (int a = 0; a < accounts; a++) {
+                int id = store.createAccount(1000000.0);
+                for (int k = 0; k < positions; k++) {
+                    int sym = rnd.nextInt(market.size());
+                    store.buy(id, sym, 1 + rnd.nextInt(10), market.getPrice(sym));
+                }
+            }
+            return store;
+        }
+    }
+
+    // ---------------------------
+    // Market data sources
+    // ---------------------------
+    interface MarketDataSource {
+        // applies the next batch of price updates; false once the source has nothing more
+        boolean advance(Market market);
+    }
+
+    // The built-in uniform random walk
+    static class RandomWalkSource implements MarketDataSource {
+        public boolean advance(Market market) {
+            market.step();
+            return true;
+        }
+    }
+
+    // Replays a tick file through a read-only mapping, applying updates to the Market in
+    // timestamp-ordered batches (all ticks sharing a timestamp, or everything due on the replay
+    // clock). speed > 0 scales wall time (1 = real time, 60 = a minute per second); speed <= 0
+    // delivers one timestamp per advance, as fast as the caller ticks. Files are expected in
+    // timestamp order; a tick older than its predecessor joins the current batch and is counted.
+    // Tickers not yet listed are added to the Market when the feed opens or first sees them.
+    abstract static class ReplayFeed implements MarketDataSource, Closeable {
+        static final int WINDOW = 1 << 30; // mapped at most 1 GiB at a time
+
+        protected final Market market;
+        protected final FileChannel channel;
+        protected final long size;
+        private final double speed;
+        // the next tick, read ahead of time
+        protected long nextTs;
+        protected int nextId;
+        protected long nextTicks;
+        protected boolean hasNext;
+        private long startTs, startWall;
+        private boolean started;
+        private long lastTs = Long.MIN_VALUE;
+        private long applied, outOfOrder;
+
+        ReplayFeed(Path file, Market market, double speed) throws IOException {
+            this.market = market;
+            this.speed = speed;
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            size = channel.size();
+        }
+
+        // picks the format from the file's first bytes
+        static ReplayFeed open(Path file, Market market, double speed) throws IOException {
+            boolean binary = PortfolioIO.startsWith(file, BinaryTickFeed.MAGIC)
+                    || PortfolioIO.startsWith(file, BinaryTickFeed.LEGACY_MAGIC);
+            ReplayFeed f = binary ? new BinaryTickFeed(file, market, speed) : new CsvTickFeed(file, market, speed);
+            f.hasNext = f.readNext();
+            return f;
+        }
+
+        // fills nextTs/nextId/nextTicks; false at end of file
+        protected abstract boolean readNext() throws IOException;
+
+        public boolean advance(Market m) {
+            if (!hasNext)
+                return false;
+            long limit;
+            if (speed > 0) {
+                long now = System.nanoTime();
+                if (!started) {
+                    started = true;
+                    startTs = nextTs;
+                    startWall = now;
+                }
+                limit = startTs + (long) ((now - startWall) * speed);
+                if (nextTs > limit)
+                    return true; // nothing due yet
+            } else {
+                limit = nextTs;
+            }
+            try {
+                m.beginUpdate();
+                do {
+                    if (nextTs < lastTs)
+                        outOfOrder++;
+                    else
+                        lastTs = nextTs;
+                    if (nextId >= 0) {
+                        m.applyPriceTicks(nextId, nextTicks);
+                        applied++;
+                    }
+                    hasNext = readNext();
+                } while (hasNext && nextTs <= limit);
+                m.endUpdate();
+            } catch (IOException e) {
+                m.endUpdate();
+                throw new UncheckedIOException(e);
+            }
+            return hasNext;
+        }
+
+        public long getUpdatesApplied() {
+            return applied;
+        }
+
+        public long getOutOfOrder() {
+            return outOfOrder;
+        }
+
+        protected int symbolFor(String ticker) {
+            int id = market.idOf(ticker);
+            return id >= 0 ? id : market.addStock(ticker, ticker, 0.0);
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        // Offline conversion of a CSV tick file to the binary format
+        static void convertCsvToBinary(Path csv, Path out) throws IOException {
+            Map<String, Integer> symbols = new LinkedHashMap<>();
+            Path body = Files.createTempFile("ticks", ".body");
+            try {
+                try (BufferedReader br = Files.newBufferedReader(csv, StandardCharsets.UTF_8);
+                        DataOutputStream bo = new DataOutputStream(
+                                new BufferedOutputStream(Files.newOutputStream(body), 1 << 16))) {
+                    ByteBuffer rec = ByteBuffer.allocate(BinaryTickFeed.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        String[] parts = line.split(",");
+                        if (parts.length < 3 || parts[0].isEmpty() || !Character.isDigit(parts[0].trim().charAt(0)))
+                            continue; // header or blank
+                        String ticker = parts[1].trim().toUpperCase(Locale.ROOT);
+                        Integer idx = symbols.get(ticker);
+                        if (idx == null) {
+                            if (ticker.getBytes(StandardCharsets.UTF_8).length > 0xFFFF)
+                                throw new IOException("Ticker too long: " + ticker);
+                            symbols.put(ticker, idx = symbols.size());
+                        }
+                        rec.clear();
+                        rec.putLong(Long.parseLong(parts[0].trim())).putInt(idx)
+                                .putLong(MatchingEngine.toTicks(Double.parseDouble(parts[2].trim())));
+                        bo.write(rec.array());
+                    }
+                }
+                try (FileChannel ch = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING); FileChannel in = FileChannel.open(body)) {
+                    List<byte[]> names = new ArrayList<>(symbols.size());
+                    int headerSize = 12;
+                    for (String t : symbols.keySet()) {
+                        byte[] name = t.getBytes(StandardCharsets.UTF_8);
+                        names.add(name);
+                        headerSize += 2 + name.length;
+                    }
+                    int pad = -headerSize & 7; // records start 8-byte aligned
+                    ByteBuffer h = ByteBuffer.allocate(headerSize + pad).order(ByteOrder.LITTLE_ENDIAN);
+                    h.putInt(BinaryTickFeed.MAGIC).putInt(headerSize + pad).putInt(symbols.size());
+                    for (byte[] name : names)
+                        h.putShort((short) name.length).put(name);
+                    h.flip();
+                    while (h.hasRemaining())
+                        ch.write(h);
+                    long pos = 0, n = in.size();
+                    while (pos < n)
+                        pos += in.transferTo(pos, n - pos, ch);
+                }
+            } finally {
+                Files.deleteIfExists(body);
+            }
+        }
+    }
+
+    // Binary tick file, little-endian:
+    //   int magic, int recordsOffset, int symbolCount, symbolCount x (short length, UTF-8 ticker),
+    //   padding up to recordsOffset, then RECORD_SIZE-byte records:
+    //   long timestampNanos, int symbolIndex (into the file's table), long priceTicks
+    // Files with LEGACY_MAGIC hold ISO-8859-1 tickers and 16-byte records with an int price,
+    // which wrapped above 2^31 paise; they are still read.
+    static class BinaryTickFeed extends ReplayFeed {
+        static final int MAGIC = 0x4C545453; // "STTL"
+        static final int LEGACY_MAGIC = 0x4B545453; // "STTK"
+        static final int RECORD_SIZE = 20;
+        static final int LEGACY_RECORD_SIZE = 16;
+
+        private final boolean legacy;
+        private final int recordSize;
+        private final int[] remap; // file symbol index -> market id
+        private final long recordsOffset;
+        private MappedByteBuffer buf;
+        private long bufStart; // file offset of buf position 0
+        private long pos; // file offset of the next record
+
+        BinaryTickFeed(Path file, Market market, double speed) throws IOException {
+            super(file, market, speed);
+            ByteBuffer h = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(h, 0);
+            h.flip();
+            legacy = h.getInt() == LEGACY_MAGIC;
+            recordSize = legacy ? LEGACY_RECORD_SIZE : RECORD_SIZE;
+            recordsOffset = h.getInt();
+            int count = h.getInt();
+            ByteBuffer table = ByteBuffer.allocate((int) recordsOffset - 12).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(table, 12);
+            table.flip();
+            remap = new int[count];
+            byte[] name = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int len = table.getShort() & 0xFFFF;
+                if (len > name.length)
+                    name = new byte[len];
+                table.get(name, 0, len);
+                remap[i] = symbolFor(
+                        new String(name, 0, len, legacy ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8));
+            }
+            pos = recordsOffset;
+        }
+
+        protected boolean readNext() throws IOException {
+            if (pos + recordSize > size)
+                return false;
+            if (buf == null || pos + recordSize > bufStart + buf.capacity()) {
+                long windowBytes = Math.min(size - pos, WINDOW - WINDOW % recordSize);
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, windowBytes);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                bufStart = pos;
+            }
+            int p = (int) (pos - bufStart);
+            nextTs = buf.getLong(p);
+            int idx = buf.getInt(p + 8);
+            nextId = idx >= 0 && idx < remap.length ? remap[idx] : -1;
+            nextTicks = legacy ? buf.getInt(p + 12) : buf.getLong(p + 12);
+            pos += recordSize;
+            return true;
+        }
+    }
+
+    // CSV tick file: "timestampNanos,ticker,price" per line; lines not starting with a digit
+    // (a header) are skipped. Tickers resolve through a byte-keyed open-addressing table, so a
+    // String is only created the first time a ticker is seen.
+    static class CsvTickFeed extends ReplayFeed {
+        private MappedByteBuffer buf;
+        private long bufStart;
+        private int pos; // within buf
+        private int line = 1;
+        // ticker bytes -> market id
+        private int[] slotIds = new int[1024];
+        private byte[][] slotKeys = new byte[1024][];
+        private int symbols;
+
+        CsvTickFeed(Path file, Market market, double speed) throws IOException {
+            super(file, market, speed);
+            Arrays.fill(slotIds, -1);
+            mapAt(0);
+        }
+
+        private void mapAt(long offset) throws IOException {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW, size - offset));
+            bufStart = offset;
+            pos = 0;
+        }
+
+        protected boolean readNext() throws IOException {
+            while (true) {
+                int len = buf.capacity();
+                if (pos >= len) {
+                    if (bufStart + len >= size)
+                        return false;
+                    mapAt(bufStart + pos);
+                    continue;
+                }
+                int eol = pos;
+                while (eol < len && buf.get(eol) != '\n')
+                    eol++;
+                if (eol == len && bufStart + len < size) {
+                    if (pos == 0)
+                        throw new IOException("Line " + line + " is longer than the mapping window");
+                    mapAt(bufStart + pos); // partial line: remap from its start
+                    continue;
+                }
+                int from = pos, end = eol;
+                pos = eol + 1;
+                line++;
+                if (end > from && buf.get(end - 1) == '\r')
+                    end--;
+                byte first = from < end ? buf.get(from) : 0;
+                if (first < '0' || first > '9')
+                    continue; // header or blank line
+                int c1 = indexOf(',', from, end);
+                int c2 = c1 < 0 ? -1 : indexOf(',', c1 + 1, end);
+                if (c2 < 0)
+                    throw new IOException("Line " + (line - 1) + ": expected timestamp,ticker,price");
+                nextTs = parseLong(from, c1);
+                nextId = lookup(c1 + 1, c2);
+                int c3 = indexOf(',', c2 + 1, end);
+                nextTicks = MatchingEngine.toTicks(PortfolioIO.parseDouble(buf, c2 + 1, c3 < 0 ? end : c3, line - 1));
+                return true;
+            }
+        }
+
+        private int indexOf(char c, int from, int to) {
+            for (int i = from; i < to; i++)
+                if (buf.get(i) == c)
+                    return i;
+            return -1;
+        }
+
+        private long parseLong(int from, int to) throws IOException {
+            long v = 0;
+            for (int i = from; i < to; i++) {
+                int d = buf.get(i) - '0';
+                if (d < 0 || d > 9)
+                    throw new IOException("Line " + (line - 1) + ": bad timestamp");
+                v = v * 10 + d;
+            }
+            return v;
+        }
+
+        // upper-cased ticker bytes in [from, to) -> market id
+        private int lookup(int from, int to) {
+            while (from < to && buf.get(from) == ' ')
+                from++;
+            while (to > from && buf.get(to - 1) == ' ')
+                to--;
+            int h = 0;
+            for (int i = from; i < to; i++)
+                h = 31 * h + upper(buf.get(i));
+            int mask = slotIds.length - 1;
+            for (int s = h & mask;; s = (s + 1) & mask) {
+                byte[] key = slotKeys[s];
+                if (key == null)
+                    return insert(s, from, to);
+                if (key.length == to - from) {
+                    int i = 0;
+                    while (i < key.length && key[i] == upper(buf.get(from + i)))
+                        i++;
+                    if (i == key.length)
+                        return slotIds[s];
+                }
+            }
+        }
+
+        private int insert(int slot, int from, int to) {
+            byte[] key = new byte[to - from];
+            for (int i = 0; i < key.length; i++)
+                key[i] = upper(buf.get(from + i));
+            int id = symbolFor(new String(key, StandardCharsets.UTF_8));
+            slotKeys[slot] = key;
+            slotIds[slot] = id;
+            if (++symbols * 2 > slotIds.length)
+                rehash();
+            return id;
+        }
+
+        private void rehash() {
+            byte[][] oldKeys = slotKeys;
+            int[] oldIds = slotIds;
+            slotKeys = new byte[oldKeys.length * 2][];
+            slotIds = new int[oldIds.length * 2];
+            int mask = slotIds.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                byte[] key = oldKeys[i];
+                if (key == null)
+                    continue;
+                int h = 0;
+                for (byte b : key)
+                    h = 31 * h + b;
+                int s = h & mask;
+                while (slotKeys[s] != null)
+                    s = (s + 1) & mask;
+                slotKeys[s] = key;
+                slotIds[s] = oldIds[i];
+            }
+        }
+
+        private static byte upper(byte b) {
+            return b >= 'a' && b <= 'z' ? (byte) (b - 32) : b;
+        }
+    }
+
+    // ---------------------------
+    // Portfolio import/export
+    // ---------------------------
+
+    // CSV ("cash,<amount>" then "ticker,qty,avgPrice" rows, UTF-8) is parsed straight from a
+    // read-only mapping of the file: numbers are decoded from the bytes and only the ticker
+    // becomes a String. The binary snapshot is one little-endian block written and read in a
+    // single transfer:
+    //   int magic, int version, long journalRecord, long logStart, long cash, int count,
+    //   then count x (byte tickerLength, UTF-8 ticker, int qty, long cost)
+    // with cash and each holding's cost basis in paise. Version 2 stored cash and average prices
+    // as doubles, version 1 also one byte per ticker char. Snapshots from before this format
+    // (STS1, written big-endian by a DataOutputStream) are still read.
+    static class PortfolioIO {
+        static final int SNAPSHOT_MAGIC = 0x53545046; // "STPF"
+        static final int SNAPSHOT_VERSION = 3;
+        static final int LEGACY_SNAPSHOT_MAGIC = 0x53545331; // "STS1", big-endian
+        static final String SNAPSHOT_EXTENSION = ".snap";
+        private static final int MAX_WINDOW = 1 << 30; // CSV is mapped in windows of at most 1 GiB
+        private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+        // What a snapshot file holds; journalRecord/logStart are 0 outside the trade journal
+        static class Snapshot {
+            final long journalRecord;
+            final long logStart;
+            final long cash; // paise
+            final List<Holding> holdings;
+
+            Snapshot(long journalRecord, long logStart, long cash, List<Holding> holdings) {
+                this.journalRecord = journalRecord;
+                this.logStart = logStart;
+                this.cash = cash;
+                this.holdings = holdings;
+            }
+
+            Portfolio toPortfolio() {
+                Portfolio p = new Portfolio(MatchingEngine.toPrice(cash));
+                p.setCashTicks(cash);
+                for (Holding h : holdings)
+                    p.setHolding(h);
+                return p;
+            }
+        }
+
+        // picks the format from the file's first bytes
+        static Portfolio load(Path file) throws IOException {
+            return isSnapshot(file) ? readSnapshot(file).toPortfolio() : readCsv(file);
+        }
+
+        static boolean isSnapshot(Path file) throws IOException {
+            return startsWith(file, SNAPSHOT_MAGIC) || startsWith(file, Integer.reverseBytes(LEGACY_SNAPSHOT_MAGIC));
+        }
+
+        // true if the file begins with the given little-endian int
+        static boolean startsWith(Path file, int magic) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                while (b.hasRemaining() && ch.read(b) >= 0) {
+                }
+                return !b.hasRemaining() && b.getInt(0) == magic;
+            }
+        }
+
+        static Portfolio readCsv(Path file) throws IOException {
+            Portfolio loaded = new Portfolio(0.0);
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = ch.size();
+                long offset = 0;
+                int line = 1;
+                byte[] tickerBytes = new byte[64];
+                while (offset < size) {
+                    int len = (int) Math.min(MAX_WINDOW, size - offset);
+                    MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, offset, len);
+                    boolean last = offset + len == size;
+                    int pos = 0;
+                    while (pos < len) {
+                        int eol = pos;
+                        while (eol < len && b.get(eol) != '\n')
+                            eol++;
+                        if (eol == len && !last) {
+                            if (pos == 0)
+                                throw new IOException("Line " + line + " is longer than " + MAX_WINDOW + " bytes");
+                            break; // partial line: start the next window here
+                        }
+                        int end = eol;
+                        if (end > pos && b.get(end - 1) == '\r')
+                            end--;
+                        tickerBytes = parseCsvLine(b, pos, end, line, loaded, tickerBytes);
+                        pos = eol + 1;
+                        line++;
+                    }
+                    offset += pos;
+                }
+            }
+            return loaded;
+        }
+
+        // returns the (possibly grown) scratch array for ticker bytes
+        private static byte[] parseCsvLine(ByteBuffer b, int from, int to, int line, Portfolio into,
+                byte[] scratch) {
+            from = skipSpaces(b, from, to);
+            if (from == to)
+                return scratch;
+            int c1 = indexOf(b, ',', from, to);
+            if (c1 < 0)
+                throw new NumberFormatException("Line " + line + ": expected ticker,qty,avgPrice");
+            int keyEnd = trimEnd(b, from, c1);
+            if (keyEnd - from == 4 && (b.get(from) | 0x20) == 'c' && (b.get(from + 1) | 0x20) == 'a'
+                    && (b.get(from + 2) | 0x20) == 's' && (b.get(from + 3) | 0x20) == 'h') {
+                into.setCash(parseDouble(b, c1 + 1, to, line));
+                return scratch;
+            }
+            int c2 = indexOf(b, ',', c1 + 1, to);
+            if (c2 < 0)
+                throw new NumberFormatException("Line " + line + ": expected ticker,qty,avgPrice");
+            int c3 = indexOf(b, ',', c2 + 1, to);
+            int n = keyEnd - from;
+            if (n > scratch.length)
+                scratch = new byte[n * 2];
+            for (int i = 0; i < n; i++) {
+                byte ch = b.get(from + i);
+                scratch[i] = ch >= 'a' && ch <= 'z' ? (byte) (ch - 32) : ch;
+            }
+            String ticker = new String(scratch, 0, n, StandardCharsets.UTF_8); // only ASCII letters were upper-cased
+            int qty = parseInt(b, c1 + 1, c2, line);
+            double avg = parseDouble(b, c2 + 1, c3 < 0 ? to : c3, line);
+            into.setHolding(new Holding(ticker, qty, avg));
+            return scratch;
+        }
+
+        private static int indexOf(ByteBuffer b, char c, int from, int to) {
+            for (int i = from; i < to; i++)
+                if (b.get(i) == c)
+                    return i;
+            return -1;
+        }
+
+        private static int skipSpaces(ByteBuffer b, int from, int to) {
+            while (from < to && (b.get(from) == ' ' || b.get(from) == '\t'))
+                from++;
+            return from;
+        }
+
+        private static int trimEnd(ByteBuffer b, int from, int to) {
+            while (to > from && (b.get(to - 1) == ' ' || b.get(to - 1) == '\t'))
+                to--;
+            return to;
+        }
+
+        static int parseInt(ByteBuffer b, int from, int to, int line) {
+            from = skipSpaces(b, from, to);
+            to = trimEnd(b, from, to);
+            boolean neg = from < to && b.get(from) == '-';
+            if (neg || (from < to && b.get(from) == '+'))
+                from++;
+            if (from == to)
+                throw new NumberFormatException("Line " + line + ": missing integer");
+            long v = 0;
+            for (int i = from; i < to; i++) {
+                int d = b.get(i) - '0';
+                if (d < 0 || d > 9 || (v = v * 10 + d) > Integer.MAX_VALUE + 1L)
+                    throw new NumberFormatException("Line " + line + ": bad integer");
+            }
+            v = neg ? -v : v;
+            if (v > Integer.MAX_VALUE)
+                throw new NumberFormatException("Line " + line + ": bad integer");
+            return (int) v;
+        }
+
+        // Plain decimals whose digits fit in 2^53 with a power of ten up to 22 convert exactly
+        // (one correctly rounded multiply or divide); anything else goes to Double.parseDouble.
+        static double parseDouble(ByteBuffer b, int from, int to, int line) {
+            from = skipSpaces(b, from, to);
+            to = trimEnd(b, from, to);
+            int i = from;
+            boolean neg = i < to && b.get(i) == '-';
+            if (neg || (i < to && b.get(i) == '+'))
+                i++;
+            long mantissa = 0;
+            int digits = 0, scale = 0, exp = 0;
+            boolean any = false, dot = false;
+            for (; i < to; i++) {
+                byte c = b.get(i);
+                if (c >= '0' && c <= '9') {
+                    any = true;
+                    if (mantissa == 0 && c == '0') {
+                        if (dot)
+                            scale++;
+                        continue;
+                    }
+                    if (++digits > 18)
+                        return slowParse(b, from, to, line);
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (dot)
+                        scale++;
+                } else if (c == '.' && !dot) {
+                    dot = true;
+                } else if ((c == 'e' || c == 'E') && any) {
+                    try {
+                        exp = parseInt(b, i + 1, to, line);
+                    } catch (NumberFormatException e) {
+                        return slowParse(b, from, to, line);
+                    }
+                    break;
+                } else {
+                    return slowParse(b, from, to, line);
+                }
+            }
+            if (!any)
+                return slowParse(b, from, to, line);
+            int e10 = exp - scale;
+            double v;
+            if (mantissa == 0)
+                v = 0.0;
+            else if (mantissa < (1L << 53) && e10 >= -22 && e10 <= 22)
+                v = e10 >= 0 ? mantissa * POW10[e10] : mantissa / POW10[-e10];
+            else
+                return slowParse(b, from, to, line);
+            return neg ? -v : v;
+        }
+
+        private static double slowParse(ByteBuffer b, int from, int to, int line) {
+            byte[] text = new byte[to - from];
+            for (int i = 0; i < text.length; i++)
+                text[i] = b.get(from + i);
+            try {
+                return Double.parseDouble(new String(text, StandardCharsets.UTF_8));
+            } catch (NumberFormatException e) {
+                throw new NumberFormatException("Line " + line + ": bad number");
+            }
+        }
+
+        static void writeCsv(Path file, double cash, List<Holding> holdings) throws IOException {
+            try (Writer w = new BufferedWriter(
+                    new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+                StringBuilder sb = new StringBuilder(64);
+                sb.append("cash,").append(cash).append('\n');
+                w.append(sb);
+                for (Holding h : holdings) {
+                    sb.setLength(0);
+                    sb.append(h.getTicker()).append(',').append(h.getQty()).append(',').append(h.getAvgPrice())
+                            .append('\n');
+                    w.append(sb);
+                }
+            }
+        }
+
+        static void writeSnapshot(Path file, long cashTicks, List<Holding> holdings, long journalRecord,
+                long logStart) throws IOException {
+            byte[][] tickers = new byte[holdings.size()][];
+            int size = 36;
+            for (int i = 0; i < tickers.length; i++) {
+                tickers[i] = holdings.get(i).getTicker().getBytes(StandardCharsets.UTF_8);
+                if (tickers[i].length > 255)
+                    throw new IOException("Ticker too long for snapshot: " + holdings.get(i).getTicker());
+                size += 1 + tickers[i].length + 12;
+            }
+            ByteBuffer b = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+            b.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(journalRecord).putLong(logStart)
+                    .putLong(cashTicks).putInt(holdings.size());
+            for (int i = 0; i < tickers.length; i++) {
+                Holding h = holdings.get(i);
+                b.put((byte) tickers[i].length).put(tickers[i]).putInt(h.getQty()).putLong(h.getCost());
+            }
+            b.flip();
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (b.hasRemaining())
+                    ch.write(b);
+            }
+        }
+
+        static Snapshot readSnapshot(Path file) throws IOException {
+            if (startsWith(file, Integer.reverseBytes(LEGACY_SNAPSHOT_MAGIC)))
+                return readLegacySnapshot(file);
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = ch.size();
+                if (size > Integer.MAX_VALUE)
+                    throw new IOException(file + " is too large for a snapshot");
+                ByteBuffer b = ByteBuffer.allocateDirect((int) size).order(ByteOrder.LITTLE_ENDIAN);
+                while (b.hasRemaining() && ch.read(b) >= 0) {
+                }
+                b.flip();
+                try {
+                    if (b.getInt() != SNAPSHOT_MAGIC)
+                        throw new IOException(file + " is not a portfolio snapshot");
+                    int version = b.getInt();
+                    if (version > SNAPSHOT_VERSION)
+                        throw new IOException("Unsupported snapshot version " + version);
+                    long journalRecord = b.getLong();
+                    long logStart = b.getLong();
+                    long cash = version < 3 ? MatchingEngine.toTicks(b.getDouble()) : b.getLong();
+                    int n = b.getInt();
+                    List<Holding> holdings = new ArrayList<>(n);
+                    byte[] ticker = new byte[255];
+                    for (int i = 0; i < n; i++) {
+                        int len = b.get() & 0xFF;
+                        b.get(ticker, 0, len);
+                        String t = new String(ticker, 0, len,
+                                version == 1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+                        int qty = b.getInt();
+                        holdings.add(version < 3 ? new Holding(t, qty, b.getDouble())
+                                : Holding.ofCost(t, qty, b.getLong()));
+                    }
+                    return new Snapshot(journalRecord, logStart, cash, holdings);
+                } catch (java.nio.BufferUnderflowException e) {
+                    throw new IOException(file + " is truncated");
+                }
+            }
+        }
+
+        private static Snapshot readLegacySnapshot(Path file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                in.readInt();
+                long journalRecord = in.readLong();
+                long logStart = in.readLong();
+                long cash = MatchingEngine.toTicks(in.readDouble());
+                int n = in.readInt();
+                List<Holding> holdings = new ArrayList<>(Math.min(n, 1024));
+                for (int i = 0; i < n; i++)
+                    holdings.add(new Holding(in.readUTF(), in.readInt(), in.readDouble()));
+                return new Snapshot(journalRecord, logStart, cash, holdings);
+            } catch (EOFException e) {
+                throw new IOException(file + " is truncated");
+            }
+        }
+    }
+
+    // ---------------------------
+    // Table models / renderers
+    // ---------------------------
+
+    // Suggestions from the symbol index under a ticker field as the user types: Up/Down move,
+    // Enter or a click takes the ticker, Escape closes. The field keeps the keyboard focus.
+    class TickerCompleter implements DocumentListener {
+        private static final int MAX_SUGGESTIONS = 10;
+        private final JTextField field;
+        private final JPopupMenu popup = new JPopupMenu();
+        private final DefaultListModel<String> items = new DefaultListModel<>();
+        private final JList<String> list = new JList<>(items);
+        private final int[] ids = new int[MAX_SUGGESTIONS];
+        private boolean accepting; // the field is being set from a suggestion
+
+        TickerCompleter(JTextField field) {
+            this.field = field;
+            list.setFocusable(false);
+            list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            list.addMouseListener(new MouseAdapter() {
+                public void mouseClicked(MouseEvent e) {
+                    int i = list.locationToIndex(e.getPoint());
+                    if (i >= 0)
+                        accept(i);
+                }
+            });
+            popup.setFocusable(false);
+            popup.add(new JScrollPane(list));
+            field.getDocument().addDocumentListener(this);
+            field.addKeyListener(new KeyAdapter() {
+                public void keyPressed(KeyEvent e) {
+                    if (!popup.isVisible())
+                        return;
+                    int i = list.getSelectedIndex(), n = items.size();
+                    switch (e.getKeyCode()) {
+                    case KeyEvent.VK_DOWN:
+                        list.setSelectedIndex((i + 1) % n);
+                        break;
+                    case KeyEvent.VK_UP:
+                        list.setSelectedIndex((i + n - 1) % n);
+                        break;
+                    case KeyEvent.VK_ENTER:
+                        accept(Math.max(i, 0));
+                        break;
+                    case KeyEvent.VK_ESCAPE:
+                        popup.setVisible(false);
+                        break;
+                    default:
+                        return;
+                    }
+                    e.consume();
+                }
+            });
+            field.addFocusListener(new FocusAdapter() {
+                public void focusLost(FocusEvent e) {
+                    popup.setVisible(false);
+                }
+            });
+        }
+
+        public void insertUpdate(DocumentEvent e) {
+            suggest();
+        }
+
+        public void removeUpdate(DocumentEvent e) {
+            suggest();
+        }
+
+        public void changedUpdate(DocumentEvent e) {
+        }
+
+        private void suggest() {
+            String text = field.getText().trim();
+            int n = accepting || text.isEmpty() || !field.isShowing() ? 0
+                    : symbolIndex().search(text, ids, MAX_SUGGESTIONS);
+            // nothing to offer beyond what is already typed
+            if (n == 0 || n == 1 && market.getTicker(ids[0]).equalsIgnoreCase(text)) {
+                popup.setVisible(false);
+                return;
+            }
+            items.clear();
+            for (int i = 0; i < n; i++)
+                items.addElement(market.getTicker(ids[i]) + "  " + market.getName(ids[i]));
+            list.setVisibleRowCount(n);
+            list.setSelectedIndex(0);
+            if (popup.isVisible())
+                popup.pack();
+            else
+                popup.show(field, 0, field.getHeight());
+        }
+
+        private void accept(int i) {
+            popup.setVisible(false);
+            accepting = true;
+            try {
+                field.setText(market.getTicker(ids[i]));
+            } finally {
+                accepting = false;
+            }
+        }
+    }
+
+    // Prices come from a coalescing bus subscriber, everything else straight from the Market's
+    // columns. refresh() may be called from any thread; calls coalesce into one EDT post, which
+    // fires updates only for the rows whose symbols had price events since the last one.
+    class MarketTableModel extends AbstractTableModel {
+        private static final String[] BASE_COLUMNS = { "Ticker", "Name", "Price", "Change %" };
+        private static final String[] INDICATOR_COLUMNS = { "SMA", "EMA", "VWAP", "RSI", "BB Lower", "BB Upper",
+                "Volatility" };
+        private static final double BOLLINGER_K = 2.0;
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private volatile long postedAt;
+        private final CoalescingPriceView prices;
+        private String[] columns = BASE_COLUMNS;
+        private int rows; // symbols known to the table
+        private int[] view = new int[16]; // symbol ids of the rows while filtered
+        private int viewCount;
+        private String filter = "";
+
+        MarketTableModel(CoalescingPriceView prices) {
+            this.prices = prices;
+        }
+
+        public int getRowCount() {
+            return filter.isEmpty() ? rows : viewCount;
+        }
+
+        public int getSymbolId(int row) {
+            return filter.isEmpty() ? row : view[row];
+        }
+
+        // rows whose ticker or a word of the name starts with prefix, tickers first; "" shows all
+        public void setFilter(String prefix) {
+            filter = prefix;
+            if (prefix.isEmpty()) {
+                rows = market.size();
+            } else {
+                SymbolIndex index = symbolIndex();
+                if (view.length < index.size())
+                    view = new int[index.size()];
+                viewCount = index.search(prefix, view, view.length);
+            }
+            fireTableDataChanged();
+        }
+
+        // after the index was rebuilt
+        void refilter() {
+            if (!filter.isEmpty())
+                setFilter(filter);
+        }
+
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        public String getColumnName(int c) {
+            return columns[c];
+        }
+
+        public Class<?> getColumnClass(int c) {
+            return c < 2 ? String.class : Double.class;
+        }
+
+        // indicator columns after Change %, from the IndicatorEngine
+        public void setShowIndicators(boolean show) {
+            columns = show ? concat(BASE_COLUMNS, INDICATOR_COLUMNS) : BASE_COLUMNS;
+            fireTableStructureChanged();
+        }
+
+        private String[] concat(String[] a, String[] b) {
+            String[] c = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, c, a.length, b.length);
+            return c;
+        }
+
+        public Object getValueAt(int row, int c) {
+            int r = getSymbolId(row);
+            switch (c) {
+            case 0:
+                return market.getTicker(r);
+            case 1:
+                return market.getName(r);
+            case 2:
+                return prices.getPrice(r);
+            case 3:
+                return market.getChangePercent(r);
+            default:
+                return orNull(indicator(r, c));
+            }
+        }
+
+        private double indicator(int r, int c) {
+            switch (c) {
+            case 4:
+                return indicators.sma(r);
+            case 5:
+                return indicators.ema(r);
+            case 6:
+                return indicators.vwap(r);
+            case 7:
+                return indicators.rsi(r);
+            case 8:
+                return indicators.bollingerLower(r, BOLLINGER_K);
+            case 9:
+                return indicators.bollingerUpper(r, BOLLINGER_K);
+            default:
+                return indicators.volatility(r);
+            }
+        }
+
+        // undefined values render as empty cells
+        private Double orNull(double v) {
+            return Double.isNaN(v) ? null : v;
+        }
+
+        public void refresh() {
+            if (pending.compareAndSet(false, true)) {
+                postedAt = Metrics.now();
+                SwingUtilities.invokeLater(this::apply);
+            }
+        }
+
+        private void apply() {
+            Metrics.since(Metrics.EDT_LAG, postedAt);
+            pending.set(false);
+            int old = rows;
+            int n = market.size();
+            int[] ids = prices.takeUpdated();
+            if (!filter.isEmpty()) {
+                // symbols listed meanwhile show up once the index is rebuilt
+                if (n > old)
+                    symbolIndex();
+                rows = n;
+                if (viewCount > 0 && (ids == null || ids.length > 0))
+                    fireTableRowsUpdated(0, viewCount - 1);
+                return;
+            }
+            if (ids == null) {
+                if (old > 0)
+                    fireTableRowsUpdated(0, old - 1);
+            } else {
+                // one event per run of consecutive rows
+                for (int i = 0; i < ids.length;) {
+                    int start = ids[i], end = start;
+                    while (++i < ids.length && ids[i] == end + 1)
+                        end++;
+                    if (start < old)
+                        fireTableRowsUpdated(start, Math.min(end, old - 1));
+                }
+            }
+            if (n > old) {
+                rows = n;
+                fireTableRowsInserted(old, n - 1);
+            }
+        }
+    }
+
+    // Newest-first view over the portfolio's TransactionLog. Only the rows JTable asks for are
+    // read; refresh() coalesces into one EDT post that announces the rows appended since.
+    class TransactionTableModel extends AbstractTableModel {
+        private final String[] columns = { "Time", "Type", "Ticker", "Qty", "Price", "Value" };
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private volatile long postedAt;
+        private TransactionLog log;
+        private int rows;
+
+        public int getRowCount() {
+            return rows;
+        }
+
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        public String getColumnName(int c) {
+            return columns[c];
+        }
+
+        public Class<?> getColumnClass(int c) {
+            switch (c) {
+            case 0:
+                return Long.class;
+            case 3:
+                return Integer.class;
+            case 4:
+            case 5:
+                return Long.class;
+            default:
+                return String.class;
+            }
+        }
+
+        public Object getValueAt(int r, int c) {
+            int i = rows - 1 - r;
+            switch (c) {
+            case 0:
+                return log.getTime(i);
+            case 1:
+                return log.isBuy(i) ? "BUY" : "SELL";
+            case 2:
+                return log.getTicker(i);
+            case 3:
+                return log.getQty(i);
+            case 4:
+                return log.getPriceTicks(i);
+            default:
+                return log.getPriceTicks(i) * log.getQty(i);
+            }
+        }
+
+        public void refresh() {
+            if (pending.compareAndSet(false, true)) {
+                postedAt = Metrics.now();
+                SwingUtilities.invokeLater(this::apply);
+            }
+        }
+
+        private void apply() {
+            Metrics.since(Metrics.EDT_LAG, postedAt);
+            pending.set(false);
+            TransactionLog current = portfolio.getTransactionLog();
+            int n = current.size();
+            if (current != log) {
+                log = current;
+                rows = n;
+                fireTableDataChanged();
+            } else if (n > rows) {
+                int added = n - rows;
+                rows = n;
+                fireTableRowsInserted(0, added - 1);
+            }
+        }
+    }
+
+    // Formats paise as ₹1,234,567.89 behind an optional caption into one reusable char
+    // buffer, allocating nothing per call; the result is painted with Graphics.drawChars.
+    // Each renderer, label or panel owns its own, so no locking.
+    static final class MoneyFormat {
+        private final char[] chars;
+        private final int captionLength;
+        private int length;
+
+        MoneyFormat() {
+            this("");
+        }
+
+        MoneyFormat(String caption) {
+            captionLength = caption.length();
+            chars = new char[captionLength + 32];
+            caption.getChars(0, captionLength, chars, 0);
+            length = captionLength;
+        }
+
+        // returns the formatted length, caption included
+        int format(long ticks) {
+            return length = write(ticks, chars, captionLength);
+        }
+
+        char[] chars() {
+            return chars;
+        }
+
+        int length() {
+            return length;
+        }
+
+        // writes ticks from off; returns the end offset. Needs up to 28 chars.
+        static int write(long ticks, char[] out, int off) {
+            int p = off;
+            out[p++] = '₹';
+            if (ticks < 0) {
+                out[p++] = '-';
+                ticks = -ticks;
+            }
+            long rupees = ticks / 100;
+            int paise = (int) (ticks % 100);
+            int digits = 1;
+            for (long r = rupees; r >= 10; r /= 10)
+                digits++;
+            int end = p + digits + (digits - 1) / 3;
+            int q = end;
+            for (int n = 0; n < digits; n++) {
+                if (n > 0 && n % 3 == 0)
+                    out[--q] = ',';
+                out[--q] = (char) ('0' + rupees % 10);
+                rupees /= 10;
+            }
+            out[end] = '.';
+            out[end + 1] = (char) ('0' + paise / 10);
+            out[end + 2] = (char) ('0' + paise % 10);
+            return end + 3;
+        }
+
+        // for one-off messages
+        static String toString(long ticks) {
+            char[] buf = new char[28];
+            return new String(buf, 0, write(ticks, buf, 0));
+        }
+
+        // text antialiasing as the look and feel paints it
+        static void applyTextHints(Graphics g) {
+            Object hints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+            if (hints instanceof Map)
+                ((Graphics2D) g).addRenderingHints((Map<?, ?>) hints);
+        }
+    }
+
+    // A caption and an amount painted from a MoneyFormat buffer; set() repaints only when the
+    // amount changes
+    class MoneyLabel extends JComponent {
+        private final MoneyFormat text;
+        private long value = Long.MIN_VALUE;
+
+        MoneyLabel(String caption) {
+            text = new MoneyFormat(caption);
+            setFont(UIManager.getFont("Label.font"));
+            setForeground(UIManager.getColor("Label.foreground"));
+        }
+
+        void set(long ticks) {
+            if (ticks == value)
+                return;
+            value = ticks;
+            text.format(ticks);
+            repaint();
+        }
+
+        public Dimension getPreferredSize() {
+            if (isPreferredSizeSet())
+                return super.getPreferredSize();
+            FontMetrics fm = getFontMetrics(getFont());
+            return new Dimension(fm.charsWidth(text.chars(), 0, text.length()), fm.getHeight());
+        }
+
+        protected void paintComponent(Graphics g) {
+            FontMetrics fm = g.getFontMetrics();
+            MoneyFormat.applyTextHints(g);
+            g.setColor(getForeground());
+            g.drawChars(text.chars(), 0, text.length(), 0, (getHeight() - fm.getHeight()) / 2 + fm.getAscent());
+        }
+    }
+
+    class TimeRenderer extends DefaultTableCellRenderer {
+        protected void setValue(Object value) {
+            setText(value == null ? "" : TIME_FMT.format(Instant.ofEpochSecond(0, (Long) value)));
+        }
+    }
+
+    // Cell values stay numeric in the model (Long paise, or Double rupees) and are formatted
+    // into the label text, so tooltips, accessibility and clipboard copies see the amount
+    class MoneyRenderer extends DefaultTableCellRenderer {
+        protected void setValue(Object value) {
+            setText(value == null ? ""
+                    : MoneyFormat.toString(value instanceof Long ? (Long) value
+                            : MatchingEngine.toTicks(((Number) value).doubleValue())));
+        }
+    }
+
+    class DecimalRenderer extends DefaultTableCellRenderer {
+        private final DecimalFormat fmt = new DecimalFormat("0.0");
+
+        protected void setValue(Object value) {
+            setText(value == null ? "" : fmt.format(((Number) value).doubleValue()));
+        }
+    }
+
+    class PercentRenderer extends DefaultTableCellRenderer {
+        private final DecimalFormat pctFmt = new DecimalFormat("0.00'%'");
+
+        protected void setValue(Object value) {
+            setText(value == null ? "" : pctFmt.format(((Number) value).doubleValue() * 100));
+        }
+    }
+
+    // Live portfolio value chart over the history buffer's window. Samples are folded into
+    // pixel columns (min, max, first and last value) as they arrive and the line is kept in a
+    // cached image: a new sample redraws only its own column, a new column scrolls the image,
+    // and only a resize or a change of value range rebuilds it from the columns with a single
+    // drawPolyline of at most four points per column. Axis labels are formatted per range.
+    class DrawingPanel extends JPanel {
+        private static final int LEFT = 40, RIGHT = 10, TOP = 10, BOTTOM = 20;
+        private DoubleRingBuffer source;
+        private long consumed; // samples of source folded in, in source.getAddedCount() terms
+        private int sourceClears;
+        private int columns = 1, perColumn = 1; // columns across the window, samples per column
+        private long firstColumn, lastColumn = -1; // absolute column numbers of tracked data
+        private double[] colMin = new double[1], colMax = new double[1], colFirst = new double[1],
+                colLast = new double[1]; // ring by column % columns
+        private BufferedImage plot;
+        private int plotW, plotH;
+        private double lo, hi; // value range of the plot
+        private final MoneyFormat[] labels = { new MoneyFormat(), new MoneyFormat(), new MoneyFormat(),
+                new MoneyFormat(), new MoneyFormat() };
+        private double labelledLast = Double.NaN;
+        private final MoneyFormat lastLabel = new MoneyFormat("Latest: ");
+        private int[] xs = new int[0], ys = new int[0];
+
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            DoubleRingBuffer hist = portfolio.getHistory();
+            int w = getWidth() - LEFT - RIGHT, h = getHeight() - TOP - BOTTOM;
+            if (w < 2 || h < 2)
+                return;
+            double last;
+            long fromColumn, fromStart;
+            boolean rebuild;
+            synchronized (hist) {
+                if (hist.isEmpty()) {
+                    source = null;
+                    g.drawString("No history recorded yet.", 10, 20);
+                    return;
+                }
+                rebuild = hist != source || w != plotW || h != plotH || hist.getClearCount() != sourceClears;
+                if (rebuild)
+                    reset(hist, w, h);
+                fromColumn = lastColumn;
+                fromStart = startColumn();
+                ingest(hist);
+                last = hist.last();
+            }
+            if (updateRange())
+                rebuild = true;
+            if (rebuild || lastColumn - fromColumn >= columns / 2)
+                redrawAll();
+            else
+                redrawFrom(fromColumn, fromStart);
+
+            g.drawImage(plot, LEFT, TOP, null);
+            g.setColor(Color.BLACK);
+            for (int i = 0; i < labels.length; i++)
+                g.drawChars(labels[i].chars(), 0, labels[i].length(), 4, TOP + i * plotH / 4 + 4);
+            if (last != labelledLast) {
+                labelledLast = last;
+                lastLabel.format(MatchingEngine.toTicks(last));
+            }
+            g.drawChars(lastLabel.chars(), 0, lastLabel.length(), getWidth() - 150, 18);
+        }
+
+        // starts tracking hist from the samples it still holds
+        private void reset(DoubleRingBuffer hist, int w, int h) {
+            source = hist;
+            sourceClears = hist.getClearCount();
+            plotW = w;
+            plotH = h;
+            int cap = hist.capacity();
+            columns = Math.min(cap, plotW + 1); // one column per pixel once the window is wide enough
+            perColumn = (cap + columns - 1) / columns;
+            colMin = new double[columns];
+            colMax = new double[columns];
+            colFirst = new double[columns];
+            colLast = new double[columns];
+            consumed = hist.getAddedCount() - hist.size();
+            firstColumn = consumed / perColumn;
+            lastColumn = firstColumn - 1;
+            plot = new BufferedImage(plotW + 1, plotH + 1, BufferedImage.TYPE_INT_RGB);
+            lo = hi = Double.NaN;
+        }
+
+        // folds the samples added since the last frame into their columns
+        private void ingest(DoubleRingBuffer hist) {
+            long added = hist.getAddedCount();
+            int size = hist.size();
+            if (added - consumed > size) {
+                consumed = added - size; // older ones already dropped out of the buffer
+                firstColumn = consumed / perColumn;
+                lastColumn = firstColumn - 1;
+            }
+            for (long s = consumed; s < added; s++) {
+                double v = hist.get((int) (s - (added - size)));
+                long c = s / perColumn;
+                int k = (int) (c % columns);
+                if (c != lastColumn) {
+                    lastColumn = c;
+                    colMin[k] = colMax[k] = colFirst[k] = v;
+                } else {
+                    if (v < colMin[k])
+                        colMin[k] = v;
+                    if (v > colMax[k])
+                        colMax[k] = v;
+                }
+                colLast[k] = v;
+            }
+            consumed = added;
+        }
+
+        private long startColumn() {
+            return Math.max(firstColumn, lastColumn - columns + 1);
+        }
+
+        // true if the visible data left the current range or shrank well inside it
+        private boolean updateRange() {
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for (long c = startColumn(); c <= lastColumn; c++) {
+                int k = (int) (c % columns);
+                min = Math.min(min, colMin[k]);
+                max = Math.max(max, colMax[k]);
+            }
+            if (!Double.isNaN(lo) && min >= lo && max <= hi && (max - min) * 2 >= hi - lo)
+                return false;
+            double pad = Math.max((max - min) * 0.1, 1.0);
+            lo = min - pad;
+            hi = max + pad;
+            for (int i = 0; i < labels.length; i++)
+                labels[i].format(MatchingEngine.toTicks(hi - i * (hi - lo) / 4.0));
+            return true;
+        }
+
+        private int xOf(long column) {
+            return columns == 1 ? 0 : (int) ((column - startColumn()) * plotW / (columns - 1));
+        }
+
+        private int yOf(double v) {
+            return (int) ((hi - v) / (hi - lo) * plotH);
+        }
+
+        private void redrawAll() {
+            Graphics2D g = plot.createGraphics();
+            clearStrip(g, 0, plotW);
+            g.setColor(Color.BLUE);
+            int n = 0;
+            int points = (int) (lastColumn - startColumn() + 1) * 4;
+            if (xs.length < points) {
+                xs = new int[points];
+                ys = new int[points];
+            }
+            for (long c = startColumn(); c <= lastColumn; c++)
+                n = addColumn(c, n);
+            g.drawPolyline(xs, ys, n);
+            g.dispose();
+        }
+
+        // Columns after fromColumn are new and fromColumn itself may have grown; everything
+        // left of it is already drawn, shifted if the window start moved from fromStart
+        private void redrawFrom(long fromColumn, long fromStart) {
+            long start = startColumn();
+            if (start != fromStart && (columns < 2 || plotW % (columns - 1) != 0)) {
+                redrawAll(); // columns are not a whole number of pixels apart
+                return;
+            }
+            Graphics2D g = plot.createGraphics();
+            if (start != fromStart) {
+                int dx = (int) (start - fromStart) * (plotW / (columns - 1));
+                g.copyArea(dx, 0, plotW + 1 - dx, plotH + 1, -dx, 0);
+            }
+            long c0 = Math.max(start, fromColumn);
+            int n = 0, x0 = 0;
+            if (c0 > start) {
+                x0 = xOf(c0 - 1) + 1;
+                n = addPoint(x0 - 1, colLast[(int) ((c0 - 1) % columns)], 0); // joins the drawn line
+            }
+            clearStrip(g, x0, plotW);
+            g.setClip(x0, 0, plotW + 1 - x0, plotH + 1);
+            g.setColor(Color.BLUE);
+            int points = n + (int) (lastColumn - c0 + 1) * 4;
+            if (xs.length < points) {
+                xs = Arrays.copyOf(xs, points);
+                ys = Arrays.copyOf(ys, points);
+            }
+            for (long c = c0; c <= lastColumn; c++)
+                n = addColumn(c, n);
+            g.drawPolyline(xs, ys, n);
+            g.dispose();
+        }
+
+        // first, min, max, last of one column: min/max downsampling of its samples
+        private int addColumn(long c, int n) {
+            int k = (int) (c % columns);
+            int x = xOf(c);
+            n = addPoint(x, colFirst[k], n);
+            boolean rising = colLast[k] >= colFirst[k];
+            n = addPoint(x, rising ? colMin[k] : colMax[k], n);
+            n = addPoint(x, rising ? colMax[k] : colMin[k], n);
+            return addPoint(x, colLast[k], n);
+        }
+
+        private int addPoint(int x, double v, int n) {
+            xs[n] = x;
+            ys[n] = yOf(v);
+            return n + 1;
+        }
+
+        // background and the horizontal grid lines over x in [from, to]
+        private void clearStrip(Graphics2D g, int from, int to) {
+            if (from > to)
+                return;
+            g.setColor(getBackground());
+            g.fillRect(from, 0, to - from + 1, plotH + 1);
+            g.setColor(Color.LIGHT_GRAY);
+            for (int i = 0; i < 5; i++) {
+                int y = i * plotH / 4;
+                g.drawLine(from, y, to, y);
+            }
+        }
+    }
+
+    // Percentiles of the hot-path histograms in microseconds plus the running counters;
+    // refreshed by the display timer while the tab is showing
+    class DiagnosticsPanel extends JPanel {
+        private final String[] cols = { "Timing", "Count", "p50 µs", "p99 µs", "p99.9 µs", "Max µs" };
+        private final long[][] values = new long[Metrics.HISTOGRAMS.length][5];
+        private final JLabel counters = new JLabel();
+        private final AbstractTableModel model = new AbstractTableModel() {
+            public int getRowCount() {
+                return values.length;
+            }
+
+            public int getColumnCount() {
+                return cols.length;
+            }
+
+            public String getColumnName(int c) {
+                return cols[c];
+            }
+
+            public Class<?> getColumnClass(int c) {
+                return c == 0 ? String.class : c == 1 ? Long.class : Double.class;
+            }
+
+            public Object getValueAt(int r, int c) {
+                if (c == 0)
+                    return Metrics.HISTOGRAMS[r].getName();
+                if (c == 1)
+                    return values[r][0];
+                return values[r][c - 1] / 1000.0;
+            }
+        };
+
+        DiagnosticsPanel() {
+            super(new BorderLayout());
+            JTable table = new JTable(model);
+            for (int c = 2; c < cols.length; c++)
+                table.getColumnModel().getColumn(c).setCellRenderer(new DecimalRenderer());
+            JButton reset = new JButton("Reset");
+            reset.addActionListener(e -> {
+                Metrics.reset();
+                refresh();
+            });
+            JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 2));
+            top.add(counters);
+            top.add(reset);
+            add(top, BorderLayout.NORTH);
+            add(new JScrollPane(table), BorderLayout.CENTER);
+        }
+
+        void refresh() {
+            for (int i = 0; i < values.length; i++) {
+                LatencyHistogram h = Metrics.HISTOGRAMS[i];
+                long[] row = values[i];
+                row[0] = h.getCount();
+                row[1] = h.valueAtPercentile(50);
+                row[2] = h.valueAtPercentile(99);
+                row[3] = h.valueAtPercentile(99.9);
+                row[4] = h.getMax();
+            }
+            model.fireTableRowsUpdated(0, values.length - 1);
+            counters.setText("Ticks: " + Metrics.TICKS.sum() + "   Trades: " + Metrics.TRADES.sum()
+                    + "   Dropped frames: " + Metrics.DROPPED_FRAMES.sum());
+        }
+    }
+
+    // Monte Carlo VaR of the current holdings. A SwingWorker runs the simulation off the EDT
+    // and publishes each interim Result, so the figures and the P&L histogram sharpen while it
+    // runs; Run turns into Cancel meanwhile.
+    class RiskPanel extends JPanel {
+        private final Color BODY = new Color(70, 110, 200), LOSS_TAIL = new Color(200, 60, 60);
+        private final JTextField pathsField = new JTextField("1000000", 8);
+        private final JTextField horizonField = new JTextField("20", 4);
+        private final JComboBox<String> confidenceBox = new JComboBox<>(new String[] { "95%", "99%", "99.9%" });
+        private final JComboBox<String> modelBox = new JComboBox<>(new String[] { "Market model", "Normal 1%" });
+        private final JButton runButton = new JButton("Run");
+        private final JProgressBar progress = new JProgressBar(0, 100);
+        private final JLabel summary = new JLabel("Simulates the P&L of the current holdings.");
+        private final JPanel histogram = new JPanel() {
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                paintHistogram(g, getWidth(), getHeight());
+            }
+        };
+        private SwingWorker<MonteCarloVaR.Result, MonteCarloVaR.Result> worker;
+        private MonteCarloVaR calc;
+        private MonteCarloVaR.Result result;
+
+        RiskPanel() {
+            super(new BorderLayout());
+            JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 2));
+            controls.add(new JLabel("Paths:"));
+            controls.add(pathsField);
+            controls.add(new JLabel("Ticks ahead:"));
+            controls.add(horizonField);
+            confidenceBox.setSelectedIndex(1);
+            controls.add(confidenceBox);
+            controls.add(modelBox);
+            controls.add(runButton);
+            controls.add(progress);
+            progress.setPreferredSize(new Dimension(80, progress.getPreferredSize().height));
+            runButton.addActionListener(e -> {
+                if (worker != null)
+                    calc.cancel();
+                else
+                    start();
+            });
+            add(controls, BorderLayout.NORTH);
+            add(histogram, BorderLayout.CENTER);
+            add(summary, BorderLayout.SOUTH);
+        }
+
+        private void start() {
+            int paths, horizon;
+            try {
+                paths = Integer.parseInt(pathsField.getText().trim());
+                horizon = Integer.parseInt(horizonField.getText().trim());
+                if (paths <= 0 || horizon <= 0)
+                    throw new NumberFormatException();
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Enter positive whole numbers of paths and ticks", "Error",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            double confidence = new double[] { 0.95, 0.99, 0.999 }[confidenceBox.getSelectedIndex()];
+            long seed = System.nanoTime();
+            calc = modelBox.getSelectedIndex() == 0 ? MonteCarloVaR.of(portfolio, market, horizon, seed)
+                    : MonteCarloVaR.of(portfolio, market, MonteCarloVaR.normal(0, 0.01), horizon, seed);
+            if (calc.getPositionCount() == 0) {
+                summary.setText("No holdings to simulate.");
+                return;
+            }
+            runButton.setText("Cancel");
+            progress.setValue(0);
+            summary.setText("Simulating...");
+            worker = new SwingWorker<MonteCarloVaR.Result, MonteCarloVaR.Result>() {
+                protected MonteCarloVaR.Result doInBackground() {
+                    return calc.run(paths, confidence, ForkJoinPool.commonPool(), this::publish);
+                }
+
+                protected void process(List<MonteCarloVaR.Result> interim) {
+                    show(interim.get(interim.size() - 1));
+                }
+
+                protected void done() {
+                    try {
+                        show(get());
+                    } catch (Exception ex) {
+                        summary.setText("Simulation failed: " + ex.getMessage());
+                    }
+                    worker = null;
+                    runButton.setText("Run");
+                }
+            };
+            worker.execute();
+        }
+
+        private void show(MonteCarloVaR.Result r) {
+            if (r == null)
+                return;
+            result = r;
+            progress.setValue((int) (100L * r.paths / r.totalPaths));
+            summary.setText(String.format("%s%,d paths: VaR %s, expected shortfall %s, mean P&L %s at %.1f%%",
+                    r.isComplete() ? "" : "so far ", r.paths, money(r.valueAtRisk), money(r.expectedShortfall),
+                    money(r.meanPnl), r.confidence * 100));
+            histogram.repaint();
+        }
+
+        private String money(double v) {
+            return MoneyFormat.toString(MatchingEngine.toTicks(v));
+        }
+
+        // P&L distribution with the VaR threshold marked
+        private void paintHistogram(Graphics g, int w, int h) {
+            MonteCarloVaR.Result r = result;
+            if (r == null || w < 20 || h < 20)
+                return;
+            int bins = r.getBinCount(), max = 1;
+            for (int i = 0; i < bins; i++)
+                max = Math.max(max, r.getBin(i));
+            int left = 10, plotW = w - 2 * left, plotH = h - 10;
+            for (int i = 0; i < bins; i++) {
+                int x0 = left + i * plotW / bins, x1 = left + (i + 1) * plotW / bins;
+                int bh = (int) ((long) r.getBin(i) * (plotH - 10) / max);
+                double binLow = r.minPnl + i * (r.maxPnl - r.minPnl) / bins;
+                g.setColor(binLow < -r.valueAtRisk ? LOSS_TAIL : BODY);
+                g.fillRect(x0, plotH - bh, Math.max(1, x1 - x0 - 1), bh);
+            }
+            if (r.maxPnl > r.minPnl) {
+                int x = left + (int) ((-r.valueAtRisk - r.minPnl) / (r.maxPnl - r.minPnl) * plotW);
+                g.setColor(Color.BLACK);
+                g.drawLine(x, 0, x, plotH);
+                g.drawString("VaR", x + 3, 12);
+            }
+        }
+    }
+
+    // Candles for one symbol and timeframe, read from the BarAggregator each paint into a
+    // reused BarSeries; traded volume is drawn underneath
+    class CandlestickPanel extends JPanel {
+        private static final int BAR_WIDTH = 6, LEFT = 70, RIGHT = 10, TOP = 24, BOTTOM = 8;
+        private int symbolId, timeframe;
+        private BarSeries series;
+        private final MoneyFormat hiLabel = new MoneyFormat(), loLabel = new MoneyFormat();
+
+        void setSymbol(int symbolId) {
+            this.symbolId = symbolId;
+            repaint();
+        }
+
+        void setTimeframe(int timeframe) {
+            this.timeframe = timeframe;
+            repaint();
+        }
+
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            if (symbolId >= market.size())
+                return;
+            int w = getWidth() - LEFT - RIGHT, h = getHeight() - TOP - BOTTOM;
+            String title = market.getTicker(symbolId) + " " + bars.getTimeframeName(timeframe);
+            g.setColor(Color.BLACK);
+            g.drawString(title, LEFT, 16);
+            int n = Math.min(bars.getDepth(), w / BAR_WIDTH);
+            if (n <= 0 || h < 20)
+                return;
+            series = bars.lastBars(symbolId, timeframe, n, series);
+            int count = series.size();
+            if (count == 0) {
+                g.drawString("No bars yet.", LEFT, TOP + 16);
+                return;
+            }
+            double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+            long maxVolume = 0;
+            for (int k = 0; k < count; k++) {
+                lo = Math.min(lo, series.low[k]);
+                hi = Math.max(hi, series.high[k]);
+                maxVolume = Math.max(maxVolume, series.volume[k]);
+            }
+            if (hi - lo < 1e-9)
+                hi = lo + 1.0;
+            int priceH = h * 4 / 5, volumeTop = TOP + priceH + 4, volumeH = h - priceH - 4;
+            hiLabel.format(MatchingEngine.toTicks(hi));
+            g.drawChars(hiLabel.chars(), 0, hiLabel.length(), 4, TOP + 10);
+            loLabel.format(MatchingEngine.toTicks(lo));
+            g.drawChars(loLabel.chars(), 0, loLabel.length(), 4, TOP + priceH);
+            for (int k = 0; k < count; k++) {
+                int x = LEFT + (n - count + k) * BAR_WIDTH; // newest bar at the right edge
+                int yHigh = TOP + (int) ((hi - series.high[k]) / (hi - lo) * priceH);
+                int yLow = TOP + (int) ((hi - series.low[k]) / (hi - lo) * priceH);
+                int yOpen = TOP + (int) ((hi - series.open[k]) / (hi - lo) * priceH);
+                int yClose = TOP + (int) ((hi - series.close[k]) / (hi - lo) * priceH);
+                boolean up = series.close[k] >= series.open[k];
+                g.setColor(up ? new Color(0, 140, 0) : new Color(200, 0, 0));
+                g.drawLine(x + BAR_WIDTH / 2 - 1, yHigh, x + BAR_WIDTH / 2 - 1, yLow);
+                g.fillRect(x, Math.min(yOpen, yClose), BAR_WIDTH - 2, Math.max(1, Math.abs(yClose - yOpen)));
+                if (maxVolume > 0 && series.volume[k] > 0) {
+                    int vh = Math.max(1, (int) (series.volume[k] * volumeH / maxVolume));
+                    g.setColor(Color.GRAY);
+                    g.fillRect(x, volumeTop + volumeH - vh, BAR_WIDTH - 2, vh);
+                }
+            }
+        }
+    }
+
+    // Shutdown hook
+    public void close() {
+        if (gateway != null)
+            gateway.close();
+        stopMarketUpdates();
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                System.err.println("Failed to close trade journal: " + ex.getMessage());
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            System.setProperty("java.awt.headless", "true");
+            try {
+                HeadlessRunner.run(args);
+            } catch (IOException ex) {
+                System.err.println("Headless run failed: " + ex.getMessage());
+            }
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--convert-ticks")) {
+            try {
+                ReplayFeed.convertCsvToBinary(Paths.get(args[1]), Paths.get(args[2]));
+            } catch (IOException ex) {
+                System.err.println("Conversion failed: " + ex.getMessage());
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--gateway-load")) {
+            try {
+                GatewayLoadGenerator.run(args);
+            } catch (IOException ex) {
+                System.err.println("Load test failed: " + ex.getMessage());
+            }
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            StockTradingPlatform app = new StockTradingPlatform();
+            app.setVisible(true);
+            app.addWindowListener(new WindowAdapter() {
+                public void windowClosing(WindowEvent e) {
+                    app.close();
+                }
+            });
+        });
+    }
+}
\ No newline at end of file
@@ -0,0 +1,111 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import stocktrading.StockTradingPlatform.AccountStore;
+import stocktrading.StockTradingPlatform.Market;
+
+class AccountStoreTest {
+    private final Market market = new Market(1L);
+    private final int tcs = market.idOf("TCS"), infy = market.idOf("INFY");
+
+    @Test
+    void tradesMoveCashAndPositions() {
+        AccountStore store = new AccountStore(market, 4);
+        int a = store.createAccount(10_000);
+        int b = store.createAccount(10_000);
+        store.buy(a, tcs, 10, 100);
+        store.buy(a, tcs, 5, 100);
+        store.sell(a, tcs, 3, 110);
+        assertEquals(10_000 - 1500 + 330, store.getCash(a), 1e-9);
+        assertEquals(12, store.getQty(a, tcs));
+        assertEquals(0, store.getQty(b, tcs));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    void rejectsBadTradesAndUnknownAccounts() {
+        AccountStore store = new AccountStore(market, 4);
+        int a = store.createAccount(1_000);
+        assertThrows(IllegalArgumentException.class, () -> store.buy(a, tcs, 11, 100));
+        assertThrows(IllegalArgumentException.class, () -> store.sell(a, tcs, 1, 100));
+        assertThrows(IllegalArgumentException.class, () -> store.buy(a, tcs, 0, 100));
+        assertThrows(IllegalArgumentException.class, () -> store.getCash(a + 1));
+        assertThrows(IllegalArgumentException.class, () -> store.buy(-1, tcs, 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new AccountStore(market, 0));
+        assertEquals(1_000, store.getCash(a), 1e-9);
+    }
+
+    @Test
+    void findsHoldersAndRanksByPnl() {
+        AccountStore store = new AccountStore(market, 2);
+        for (int i = 0; i < 5; i++)
+            store.createAccount(100_000);
+        store.buy(1, tcs, 10, 1000);
+        store.buy(3, tcs, 1, 1000);
+        store.buy(4, infy, 2, 1000);
+        store.sell(3, tcs, 1, 1000);
+        assertArrayEquals(new int[] { 1 }, store.holdersOf("TCS"));
+        assertArrayEquals(new int[] { 4 }, store.holdersOf(infy));
+        assertArrayEquals(new int[0], store.holdersOf("NOPE"));
+
+        market.setPrice(tcs, 2000); // not published to the store: valuation ignores it
+        store.mark(tcs, 1100); // account 1 gains 1,000
+        store.mark(infy, 900); // account 4 loses 200
+        store.valueAll();
+        assertEquals(1_000, store.getPnl(1), 1e-9);
+        assertEquals(-200, store.getPnl(4), 1e-9);
+        assertEquals(1, store.topByPnl(2)[0]); // the rest tie at 0 bar account 4
+        assertEquals(4, store.topByPnl(5)[4]);
+        assertEquals(5, store.topByPnl(10).length);
+    }
+
+    @Test
+    void valuesListingsMarkedAfterCreation() {
+        AccountStore store = new AccountStore(market, 1);
+        int acme = market.addStock("ACME", "Acme", 0);
+        int a = store.createAccount(1_000);
+        store.buy(a, acme, 10, 5);
+        store.valueAll();
+        assertEquals(950, store.getValue(a), 1e-9); // unmarked: valued at 0
+        store.mark(acme, 7);
+        store.valueAll();
+        assertEquals(1_020, store.getValue(a), 1e-9);
+    }
+
+    @Test
+    void concurrentOpensAndTradesStayConsistent() throws Exception {
+        AccountStore store = new AccountStore(market, 8);
+        store.setParallelism(4);
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] done = new Future<?>[4];
+            for (int t = 0; t < done.length; t++) {
+                done[t] = exec.submit(() -> {
+                    for (int i = 0; i < 1_000; i++) {
+                        int id = store.createAccount(1_000);
+                        store.buy(id, tcs, 1, 10);
+                        store.sell(id, tcs, 1, 12);
+                    }
+                });
+            }
+            for (Future<?> f : done)
+                f.get(30, TimeUnit.SECONDS);
+        } finally {
+            exec.shutdown();
+            store.setParallelism(1);
+        }
+        assertEquals(4_000, store.size());
+        store.valueAll();
+        for (int id = 0; id < store.size(); id++)
+            assertEquals(1_002, store.getCash(id), 1e-9);
+        assertEquals(0, store.holdersOf(tcs).length);
+    }
+}
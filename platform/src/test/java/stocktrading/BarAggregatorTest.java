@@ -0,0 +1,58 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import stocktrading.StockTradingPlatform.BarAggregator;
+import stocktrading.StockTradingPlatform.BarSeries;
+
+class BarAggregatorTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void buildsBarsPerPeriodAndKeepsDepth() {
+        BarAggregator bars = new BarAggregator("1s,1m", 3);
+        for (int s = 0; s < 5; s++) {
+            bars.onPrice(0, 0, s * SECOND, 7, 100 + s, false);
+            bars.onPrice(0, 0, s * SECOND + SECOND / 2, 7, 90 + s, false);
+        }
+        BarSeries b = bars.lastBars(7, 0, 10, null);
+        assertEquals(3, b.size()); // depth
+        assertEquals(2 * SECOND, b.start[0]);
+        assertEquals(102, b.open[0]);
+        assertEquals(102, b.high[0]);
+        assertEquals(92, b.low[0]);
+        assertEquals(94, b.close[2]);
+        BarSeries m = bars.lastBars(7, 1, 10, null);
+        assertEquals(1, m.size());
+        assertEquals(104, m.high[0]);
+        assertEquals(90, m.low[0]);
+    }
+
+    @Test
+    void allocatesOnlyActiveSymbols() {
+        BarAggregator bars = new BarAggregator("1s", 500);
+        bars.onPrice(0, 0, 0, 5_000_000, 10, false);
+        bars.onPrice(0, 0, 0, 3, 10, false);
+        assertEquals(2, bars.getActiveSymbols());
+        assertEquals(0, bars.lastBars(4, 0, 5, null).size());
+        assertEquals(0, bars.lastBars(10_000_000, 0, 5, null).size());
+        assertThrows(IllegalArgumentException.class, () -> new BarAggregator("1s,1m", Integer.MAX_VALUE));
+    }
+
+    @Test
+    void fillsAddVolumeToTheirBar() {
+        BarAggregator bars = new BarAggregator("1s", 10);
+        bars.onPrice(0, 0, 0, 1, 50, false);
+        bars.onTrade(1, true, 30, 50, SECOND / 4);
+        bars.onTrade(1, false, 12, 51, SECOND / 2);
+        bars.onTrade(2, true, 5, 20, SECOND); // no price yet: the fill opens the bar
+        BarSeries b = bars.lastBars(1, 0, 5, null);
+        assertEquals(1, b.size());
+        assertEquals(42, b.volume[0]);
+        BarSeries c = bars.lastBars(2, 0, 5, null);
+        assertEquals(5, c.volume[0]);
+        assertEquals(20, c.open[0]);
+    }
+}
@@ -0,0 +1,75 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import stocktrading.StockTradingPlatform.IndicatorEngine;
+
+class IndicatorEngineTest {
+    private static void feed(IndicatorEngine e, int id, double... prices) {
+        for (int i = 0; i < prices.length; i++)
+            e.onPrice(i, 0, 0, id, prices[i], i == prices.length - 1);
+    }
+
+    @Test
+    void priceIndicatorsOverTheWindow() {
+        IndicatorEngine e = new IndicatorEngine(4, 2);
+        assertTrue(Double.isNaN(e.sma(0)));
+        feed(e, 0, 10, 12, 11, 13);
+        assertTrue(Double.isNaN(e.volatility(0))); // needs window + 1 prices
+        feed(e, 0, 14);
+        assertEquals((12 + 11 + 13 + 14) / 4.0, e.sma(0), 1e-12);
+        double ema = 10;
+        for (double p : new double[] { 12, 11, 13, 14 })
+            ema += 0.4 * (p - ema);
+        assertEquals(ema, e.ema(0), 1e-12);
+        assertTrue(e.bollingerLower(0, 2) < e.sma(0) && e.sma(0) < e.bollingerUpper(0, 2));
+        assertTrue(e.rsi(0) > 50);
+        assertTrue(e.volatility(0) > 0);
+        assertTrue(Double.isNaN(e.sma(1_000_000)));
+    }
+
+    @Test
+    void vwapFromFillsOnly() {
+        IndicatorEngine e = new IndicatorEngine(4, 2);
+        assertTrue(Double.isNaN(e.vwap(3)));
+        e.onTrade(3, true, 10, 100, 0);
+        e.onTrade(3, false, 30, 104, 0);
+        assertEquals((1000 + 3120) / 40.0, e.vwap(3), 1e-12);
+        assertTrue(Double.isNaN(e.ema(3)));
+    }
+
+    @Test
+    void readersSeeConsistentColumnsWhileTheyGrow() throws InterruptedException {
+        IndicatorEngine e = new IndicatorEngine(8, 4);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (!done.get())
+                    for (int id = 0; id < 4096; id += 7) {
+                        e.sma(id);
+                        e.rsi(id);
+                        e.bollingerUpper(id, 2);
+                        e.volatility(id);
+                        e.vwap(id);
+                    }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        reader.start();
+        for (int id = 0; id < 4096; id++) {
+            e.onPrice(id, 0, 0, id, 100 + id % 10, true);
+            e.onTrade(id, true, 1, 100, 0);
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+        assertEquals(100 + 4095 % 10, e.ema(4095));
+    }
+}
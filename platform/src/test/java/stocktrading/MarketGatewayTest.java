@@ -0,0 +1,67 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+import org.junit.jupiter.api.Test;
+
+import stocktrading.StockTradingPlatform.Market;
+import stocktrading.StockTradingPlatform.MarketGateway;
+import stocktrading.StockTradingPlatform.MatchingEngine;
+import stocktrading.StockTradingPlatform.Portfolio;
+import stocktrading.StockTradingPlatform.SimulationEngine;
+
+class MarketGatewayTest {
+    private static ByteBuffer receive(SocketChannel ch, int size) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (in.hasRemaining())
+            if (ch.read(in) < 0)
+                throw new IOException("Gateway closed the connection");
+        return in.flip();
+    }
+
+    private static void send(SocketChannel ch, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining())
+            ch.write(out);
+    }
+
+    @Test
+    void ordersAreAckedInArrivalOrder() throws IOException {
+        Market market = new Market(3L);
+        Portfolio portfolio = new Portfolio(1e7);
+        portfolio.attach(market);
+        MarketGateway gateway = new MarketGateway(new SimulationEngine(market, portfolio), 0);
+        gateway.start();
+        try (SocketChannel ch = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                gateway.getPort()))) {
+            assertEquals(MarketGateway.HELLO, receive(ch, 5).get());
+            ByteBuffer out = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+            for (long ref = 1; ref <= 5; ref++)
+                out.put(MarketGateway.ORDER).putLong(ref).putInt(ref == 3 ? -1 : 0).put((byte) 1).putInt(1)
+                        .putLong(MatchingEngine.MARKET);
+            send(ch, out);
+
+            ByteBuffer acks = receive(ch, 5 * 17);
+            for (long ref = 1; ref <= 5; ref++) {
+                assertEquals(MarketGateway.ACK, acks.get());
+                assertEquals(ref, acks.getLong());
+                long result = acks.getLong();
+                if (ref == 3)
+                    assertEquals(MatchingEngine.REJECTED, result); // unknown symbol
+                else
+                    assertTrue(result >= 0, "order " + ref);
+            }
+            assertEquals(5, gateway.getOrders());
+            assertEquals(4, portfolio.getHoldings().get(0).getQty());
+        } finally {
+            gateway.close();
+        }
+    }
+}
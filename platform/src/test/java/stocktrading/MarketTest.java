@@ -0,0 +1,42 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import stocktrading.StockTradingPlatform.Market;
+
+class MarketTest {
+    private static Market market(int symbols, int threads) {
+        Market m = new Market(42L);
+        for (int i = m.size(); i < symbols; i++)
+            m.addStock("S" + i, "Synthetic " + i, 10 + i % 4990);
+        m.setParallelism(threads);
+        return m;
+    }
+
+    @Test
+    void stepIsDeterministicAcrossParallelism() {
+        Market serial = market(3 * Market.SHARD_SIZE + 17, 1);
+        Market parallel = market(3 * Market.SHARD_SIZE + 17, 4);
+        try {
+            for (int t = 0; t < 20; t++) {
+                serial.step();
+                parallel.step();
+            }
+            for (int id = 0; id < serial.size(); id++)
+                assertEquals(serial.getPrice(id), parallel.getPrice(id), "symbol " + id);
+        } finally {
+            parallel.setParallelism(1);
+        }
+    }
+
+    @Test
+    void addStockResetsAKnownTicker() {
+        Market m = new Market(1L);
+        int id = m.idOf("TCS");
+        assertEquals(id, m.addStock("TCS", "Tata Consultancy", 100.0));
+        assertEquals(100.0, m.getPrice(id));
+        assertEquals(-1, m.idOf("NOPE"));
+    }
+}
@@ -0,0 +1,134 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import stocktrading.StockTradingPlatform.MatchingEngine;
+
+class MatchingEngineTest {
+    private static final int SYMBOL = 3;
+    private final List<long[]> fills = new ArrayList<>(); // maker id, qty, price
+    private MatchingEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        engine = new MatchingEngine(64, (takerId, makerId, symbolId, takerBuy, qty, priceTicks, takerOwner,
+                makerOwner) -> fills.add(new long[] { makerId, qty, priceTicks }));
+        engine.openBook(SYMBOL, 10_000); // band 8,000..12,000
+    }
+
+    @Test
+    void fillsBestPriceFirstThenTimePriority() {
+        long late = engine.submit(SYMBOL, false, 10, 10_010, 1);
+        long first = engine.submit(SYMBOL, false, 10, 10_020, 1);
+        long second = engine.submit(SYMBOL, false, 10, 10_020, 2);
+        long cheap = engine.submit(SYMBOL, false, 10, 10_005, 1);
+        assertEquals(10_005, engine.bestAsk(SYMBOL));
+
+        engine.submit(SYMBOL, true, 35, 10_020, 9);
+        assertEquals(4, fills.size());
+        assertArrayEquals(new long[] { cheap, 10, 10_005 }, fills.get(0));
+        assertArrayEquals(new long[] { late, 10, 10_010 }, fills.get(1));
+        assertArrayEquals(new long[] { first, 10, 10_020 }, fills.get(2));
+        assertArrayEquals(new long[] { second, 5, 10_020 }, fills.get(3));
+        assertEquals(5, engine.remaining(second));
+    }
+
+    @Test
+    void partialFillRestsTheRemainder() {
+        long ask = engine.submit(SYMBOL, false, 4, 10_000, 1);
+        long bid = engine.submit(SYMBOL, true, 10, 10_000, 2);
+        assertEquals(0, engine.remaining(ask));
+        assertEquals(6, engine.remaining(bid));
+        assertEquals(10_000, engine.bestBid(SYMBOL));
+        assertEquals(MatchingEngine.REJECTED, engine.bestAsk(SYMBOL));
+    }
+
+    @Test
+    void marketAndImmediateOrCancelOrdersNeverRest() {
+        engine.submit(SYMBOL, false, 5, 10_000, 1);
+        long market = engine.submit(SYMBOL, true, 8, MatchingEngine.MARKET, 2);
+        assertEquals(0, engine.remaining(market));
+        long ioc = engine.submit(SYMBOL, true, 8, 10_000, 2, true);
+        assertEquals(0, engine.remaining(ioc));
+        assertEquals(MatchingEngine.REJECTED, engine.bestBid(SYMBOL));
+        assertEquals(1, fills.size());
+    }
+
+    @Test
+    void cancelRemovesTheOrderOnce() {
+        long bid = engine.submit(SYMBOL, true, 10, 9_990, 1);
+        long better = engine.submit(SYMBOL, true, 10, 9_995, 1);
+        assertTrue(engine.cancel(better));
+        assertFalse(engine.cancel(better));
+        assertEquals(9_990, engine.bestBid(SYMBOL));
+        assertEquals(1, engine.cancelAll(1));
+        assertEquals(0, engine.remaining(bid));
+        assertEquals(MatchingEngine.REJECTED, engine.bestBid(SYMBOL));
+        engine.submit(SYMBOL, false, 10, 9_000, 2);
+        assertTrue(fills.isEmpty());
+    }
+
+    @Test
+    void rejectsPricesOutsideTheBandAndUnknownBooks() {
+        assertEquals(MatchingEngine.REJECTED, engine.submit(SYMBOL, true, 1, 7_999, 1));
+        assertEquals(MatchingEngine.REJECTED, engine.submit(SYMBOL, false, 1, 12_001, 1));
+        assertNotEquals(MatchingEngine.REJECTED, engine.submit(SYMBOL, false, 1, 12_000, 1));
+        assertEquals(MatchingEngine.REJECTED, engine.submit(SYMBOL + 1, true, 1, 10_000, 1));
+        assertEquals(MatchingEngine.REJECTED, engine.submit(SYMBOL, true, 0, 10_000, 1));
+    }
+
+    @Test
+    void rejectsOnceThePoolIsExhausted() {
+        for (int i = 0; i < 64; i++)
+            assertNotEquals(MatchingEngine.REJECTED, engine.submit(SYMBOL, true, 1, 9_000, 1));
+        assertEquals(MatchingEngine.REJECTED, engine.submit(SYMBOL, true, 1, 9_000, 1));
+    }
+
+    @Test
+    void recenterFollowsThePriceAndKeepsRestingOrders() {
+        assertFalse(engine.recenter(SYMBOL, 10_900)); // within half the band
+        long low = engine.submit(SYMBOL, true, 10, 8_500, 1);
+        long first = engine.submit(SYMBOL, false, 10, 11_000, 1);
+        long second = engine.submit(SYMBOL, false, 10, 11_000, 2);
+
+        assertTrue(engine.recenter(SYMBOL, 15_000));
+        assertEquals(8_500, engine.lowestPrice(SYMBOL)); // widened to keep the bid
+        assertEquals(18_000, engine.highestPrice(SYMBOL));
+        assertEquals(8_500, engine.bestBid(SYMBOL));
+        assertEquals(11_000, engine.bestAsk(SYMBOL));
+        assertNotEquals(MatchingEngine.REJECTED, engine.submit(SYMBOL, false, 1, 17_500, 3));
+
+        engine.submit(SYMBOL, true, 15, 11_000, 9);
+        assertEquals(first, fills.get(0)[0]);
+        assertEquals(second, fills.get(1)[0]);
+        assertEquals(5, engine.remaining(second));
+        assertTrue(engine.cancel(low));
+        assertEquals(MatchingEngine.REJECTED, engine.bestBid(SYMBOL));
+    }
+
+    @Test
+    void emptySidesAndEmptyBooksRecenterCleanly() {
+        long ask = engine.submit(SYMBOL, false, 5, 10_100, 1);
+        engine.submit(SYMBOL, true, 5, 10_100, 2);
+        assertEquals(0, engine.remaining(ask));
+        assertEquals(MatchingEngine.REJECTED, engine.bestAsk(SYMBOL));
+
+        assertTrue(engine.recenter(SYMBOL, 15_000)); // nothing resting: the book reuses its arrays
+        assertEquals(12_000, engine.lowestPrice(SYMBOL));
+        assertEquals(MatchingEngine.REJECTED, engine.bestBid(SYMBOL));
+        assertEquals(MatchingEngine.REJECTED, engine.submit(SYMBOL, true, 1, 11_999, 1));
+        long bid = engine.submit(SYMBOL, true, 3, 14_990, 1);
+        assertEquals(14_990, engine.bestBid(SYMBOL));
+        assertTrue(engine.recenter(SYMBOL, 9_000));
+        assertEquals(14_990, engine.bestBid(SYMBOL));
+        engine.submit(SYMBOL, false, 3, MatchingEngine.MARKET, 2);
+        assertEquals(bid, fills.get(1)[0]);
+        assertEquals(MatchingEngine.REJECTED, engine.bestBid(SYMBOL));
+    }
+}
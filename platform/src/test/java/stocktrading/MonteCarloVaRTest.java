@@ -0,0 +1,69 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+import stocktrading.StockTradingPlatform.FactorModel;
+import stocktrading.StockTradingPlatform.Holding;
+import stocktrading.StockTradingPlatform.Market;
+import stocktrading.StockTradingPlatform.MonteCarloVaR;
+import stocktrading.StockTradingPlatform.Portfolio;
+
+class MonteCarloVaRTest {
+    private static Market market(FactorModel model) {
+        Market m = new Market(5L);
+        m.setPriceModel(model);
+        return m;
+    }
+
+    private static Portfolio holding(String ticker, int qty) {
+        Portfolio p = new Portfolio(0);
+        p.setHolding(new Holding(ticker, qty, 100.0));
+        return p;
+    }
+
+    @Test
+    void pathsFollowTheMarketsPriceModel() {
+        FactorModel model = new FactorModel(2, 3L);
+        Market m = market(model);
+        int tcs = m.idOf("TCS");
+        model.setVolatility(tcs, 0); // a symbol that cannot move
+        model.setDrift(tcs, 0);
+        MonteCarloVaR.Result flat = MonteCarloVaR.of(holding("TCS", 100), m, 20, 1L).run(20_000, 0.99,
+                ForkJoinPool.commonPool(), null);
+        assertEquals(0, flat.valueAtRisk, 1e-9);
+        assertEquals(0, flat.maxPnl, 1e-9);
+
+        MonteCarloVaR.Result walk = MonteCarloVaR.of(holding("TCS", 100), m, MonteCarloVaR.UNIFORM_WALK, 20, 1L)
+                .run(20_000, 0.99, ForkJoinPool.commonPool(), null);
+        assertTrue(walk.valueAtRisk > 0);
+    }
+
+    @Test
+    void simulationLeavesTheLiveModelAlone() {
+        Market simulated = market(new FactorModel(3, 11L));
+        Market untouched = market(new FactorModel(3, 11L));
+        simulated.step();
+        untouched.step();
+
+        MonteCarloVaR calc = MonteCarloVaR.of(holding("INFY", 50), simulated, 10, 7L);
+        double var = calc.run(30_000, 0.95, ForkJoinPool.commonPool(), null).valueAtRisk;
+        assertTrue(var > 0);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            assertEquals(var, calc.run(30_000, 0.95, pool, null).valueAtRisk); // same seed, other thread count
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int t = 0; t < 5; t++) {
+            simulated.step();
+            untouched.step();
+        }
+        for (int id = 0; id < simulated.size(); id++)
+            assertEquals(untouched.getPrice(id), simulated.getPrice(id), "symbol " + id);
+    }
+}
@@ -0,0 +1,131 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import stocktrading.StockTradingPlatform.Holding;
+import stocktrading.StockTradingPlatform.Portfolio;
+import stocktrading.StockTradingPlatform.PortfolioIO;
+
+class PortfolioIOTest {
+    private static final List<Holding> HOLDINGS = List.of(new Holding("TCS", 12, 3600.5),
+            new Holding("MÜNCHENRÜCK", 3, 250.25), new Holding("टाटा", 7, 99.99));
+
+    @TempDir
+    Path dir;
+
+    private static void assertHoldings(Portfolio p) {
+        assertEquals(HOLDINGS.size(), p.getHoldings().size());
+        for (Holding want : HOLDINGS) {
+            Holding got = p.getHoldings().stream().filter(h -> h.getTicker().equals(want.getTicker())).findFirst()
+                    .orElseThrow(() -> new AssertionError("missing " + want.getTicker()));
+            assertEquals(want.getQty(), got.getQty());
+            assertEquals(want.getAvgPrice(), got.getAvgPrice(), 1e-9);
+        }
+    }
+
+    @Test
+    void csvRoundTripKeepsUnicodeTickers() throws IOException {
+        Path file = dir.resolve("p.csv");
+        PortfolioIO.writeCsv(file, 1234.56, HOLDINGS);
+        assertFalse(PortfolioIO.isSnapshot(file));
+        Portfolio p = PortfolioIO.load(file);
+        assertEquals(1234.56, p.getCash(), 1e-9);
+        assertHoldings(p);
+    }
+
+    @Test
+    void csvParsesPaddingCrLfAndExponents() throws IOException {
+        Path file = dir.resolve("p.csv");
+        Files.write(file, "CASH, 1.5e3\r\n tcs , 4 , 10.25 \r\n\r\ninfy,2,0.1\n".getBytes(StandardCharsets.UTF_8));
+        Portfolio p = PortfolioIO.readCsv(file);
+        assertEquals(1500.0, p.getCash(), 1e-9);
+        assertEquals(2, p.getHoldings().size());
+        assertThrows(NumberFormatException.class, () -> {
+            Files.write(file, "TCS,x,1\n".getBytes(StandardCharsets.UTF_8));
+            PortfolioIO.readCsv(file);
+        });
+    }
+
+    @Test
+    void snapshotRoundTrip() throws IOException {
+        Path file = dir.resolve("p.snap");
+        PortfolioIO.writeSnapshot(file, 123456, HOLDINGS, 42, 7);
+        assertTrue(PortfolioIO.isSnapshot(file));
+        PortfolioIO.Snapshot snap = PortfolioIO.readSnapshot(file);
+        assertEquals(42, snap.journalRecord);
+        assertEquals(7, snap.logStart);
+        Portfolio p = snap.toPortfolio();
+        assertEquals(1234.56, p.getCash(), 1e-9);
+        assertHoldings(p);
+    }
+
+    @Test
+    void snapshotKeepsCostInPaise() throws IOException {
+        Path file = dir.resolve("p.snap");
+        Holding h = new Holding("TCS", 0, 0);
+        h.addQtyTicks(3, 1); // 1 paisa each
+        h.addQtyTicks(4, 2);
+        PortfolioIO.writeSnapshot(file, 7, List.of(h), 0, 0);
+        Portfolio p = PortfolioIO.readSnapshot(file).toPortfolio();
+        assertEquals(7, p.getCashTicks());
+        assertEquals(11, p.getHoldings().get(0).getCost());
+    }
+
+    @Test
+    void readsVersion2Snapshots() throws IOException {
+        Path file = dir.resolve("v2.snap");
+        byte[] tcs = "TCS".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(PortfolioIO.SNAPSHOT_MAGIC).putInt(2).putLong(42).putLong(7).putDouble(1234.56).putInt(1);
+        b.put((byte) tcs.length).put(tcs).putInt(12).putDouble(3600.5);
+        Files.write(file, Arrays.copyOf(b.array(), b.position()));
+        PortfolioIO.Snapshot snap = PortfolioIO.readSnapshot(file);
+        assertEquals(42, snap.journalRecord);
+        Portfolio p = snap.toPortfolio();
+        assertEquals(123456, p.getCashTicks());
+        assertEquals(12 * 360050, p.getHoldings().get(0).getCost());
+    }
+
+    @Test
+    void readsLegacySnapshots() throws IOException {
+        Path file = dir.resolve("old.snap");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            out.writeInt(PortfolioIO.LEGACY_SNAPSHOT_MAGIC);
+            out.writeLong(42);
+            out.writeLong(7);
+            out.writeDouble(1234.56);
+            out.writeInt(HOLDINGS.size());
+            for (Holding h : HOLDINGS) {
+                out.writeUTF(h.getTicker());
+                out.writeInt(h.getQty());
+                out.writeDouble(h.getAvgPrice());
+            }
+        }
+        assertTrue(PortfolioIO.isSnapshot(file));
+        PortfolioIO.Snapshot snap = PortfolioIO.readSnapshot(file);
+        assertEquals(42, snap.journalRecord);
+        assertHoldings(PortfolioIO.load(file));
+    }
+
+    @Test
+    void rejectsTruncatedSnapshots() throws IOException {
+        Path file = dir.resolve("p.snap");
+        PortfolioIO.writeSnapshot(file, 100, HOLDINGS, 0, 0);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+        assertThrows(IOException.class, () -> PortfolioIO.readSnapshot(file));
+    }
+}
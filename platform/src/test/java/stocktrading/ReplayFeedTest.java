@@ -0,0 +1,80 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import stocktrading.StockTradingPlatform.BinaryTickFeed;
+import stocktrading.StockTradingPlatform.Market;
+import stocktrading.StockTradingPlatform.ReplayFeed;
+
+class ReplayFeedTest {
+    private static final String TICKS = "timestamp,ticker,price\n1,tcs,3601.5\n1,MÜNCHEN,12.25\n2,BIG,30000000.01\n";
+
+    @TempDir
+    Path dir;
+
+    // replays every batch, returns the batches seen
+    private static int drain(ReplayFeed feed, Market m) {
+        int batches = 0;
+        boolean more = true;
+        while (more) {
+            more = feed.advance(m);
+            batches++;
+        }
+        return batches;
+    }
+
+    private static void assertReplayed(Path file, boolean listedOnOpen) throws IOException {
+        Market m = new Market(1L);
+        try (ReplayFeed feed = ReplayFeed.open(file, m, 0)) {
+            assertEquals(listedOnOpen, m.idOf("BIG") >= 0);
+            assertEquals(2, drain(feed, m));
+            assertEquals(3, feed.getUpdatesApplied());
+        }
+        assertEquals(360_150, m.getPriceTicks(m.idOf("TCS")));
+        assertEquals(1_225, m.getPriceTicks(m.idOf("MÜNCHEN")));
+        assertEquals(3_000_000_001L, m.getPriceTicks(m.idOf("BIG")));
+    }
+
+    @Test
+    void replaysCsv() throws IOException {
+        Path csv = dir.resolve("ticks.csv");
+        Files.write(csv, TICKS.getBytes(StandardCharsets.UTF_8));
+        assertReplayed(csv, false); // listed as the feed reaches them
+    }
+
+    @Test
+    void binaryKeepsPricesAbove2To31Paise() throws IOException {
+        Path csv = dir.resolve("ticks.csv"), bin = dir.resolve("ticks.bin");
+        Files.write(csv, TICKS.getBytes(StandardCharsets.UTF_8));
+        ReplayFeed.convertCsvToBinary(csv, bin);
+        assertTrue(StockTradingPlatform.PortfolioIO.startsWith(bin, BinaryTickFeed.MAGIC));
+        assertReplayed(bin, true); // from the file's symbol table
+    }
+
+    @Test
+    void readsLegacyBinaryFiles() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(16 + 3 * BinaryTickFeed.LEGACY_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(BinaryTickFeed.LEGACY_MAGIC).putInt(16).putInt(1).putShort((short) 2).put("AB".getBytes());
+        b.putLong(1).putInt(0).putInt(12_345);
+        b.putLong(2).putInt(0).putInt(12_346);
+        b.putLong(3).putInt(5).putInt(1); // unknown symbol index: skipped
+        Path bin = dir.resolve("old.bin");
+        Files.write(bin, b.array());
+        Market m = new Market(1L);
+        try (ReplayFeed feed = ReplayFeed.open(bin, m, 0)) {
+            assertEquals(3, drain(feed, m));
+            assertEquals(2, feed.getUpdatesApplied());
+        }
+        assertEquals(12_346, m.getPriceTicks(m.idOf("AB")));
+    }
+}
@@ -0,0 +1,110 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import stocktrading.StockTradingPlatform.Holding;
+import stocktrading.StockTradingPlatform.Market;
+import stocktrading.StockTradingPlatform.Portfolio;
+import stocktrading.StockTradingPlatform.RiskGate;
+
+class RiskGateTest {
+    private final Market market = new Market(1L);
+    private final int tcs = market.idOf("TCS");
+
+    private RiskGate gate(double cash, Holding... holdings) {
+        Portfolio p = new Portfolio(cash);
+        for (Holding h : holdings)
+            p.setHolding(h);
+        RiskGate g = new RiskGate();
+        g.reset(p, market);
+        return g;
+    }
+
+    @Test
+    void rejectsOrderSizeAndNotional() {
+        RiskGate g = gate(1_000_000);
+        g.setMaxOrderQty(100);
+        g.setMaxNotional(5_000);
+        assertEquals(RiskGate.REJECT_ORDER_SIZE, g.reserveBuy(tcs, 101, 100));
+        assertEquals(RiskGate.REJECT_NOTIONAL, g.reserveBuy(tcs, 51, 10_000)); // 5,100.00
+        assertEquals(RiskGate.OK, g.reserveBuy(tcs, 50, 10_000));
+        assertEquals(RiskGate.REJECT_NOTIONAL, g.reserveSell(tcs, 51, 10_000));
+        for (long code : new long[] { RiskGate.REJECT_ORDER_SIZE, RiskGate.REJECT_NOTIONAL,
+                RiskGate.REJECT_POSITION, RiskGate.REJECT_CASH, RiskGate.REJECT_HOLDINGS })
+            assertNotNull(RiskGate.describe(code));
+    }
+
+    @Test
+    void reservesCashAndReturnsTheUnusedPart() {
+        RiskGate g = gate(1_000);
+        assertEquals(RiskGate.OK, g.reserveBuy(tcs, 5, 10_000)); // 500.00 reserved
+        assertEquals(500, g.getAvailableCash(), 1e-9);
+        assertEquals(RiskGate.REJECT_CASH, g.reserveBuy(tcs, 6, 10_000));
+        assertEquals(5, g.getExposure(tcs), "a failed reservation backs out its exposure");
+        g.fillBuy(tcs, 3, 10_000, 9_000); // filled 3 at 90.00: 30.00 back
+        g.releaseBuy(tcs, 2, 10_000); // the rest lapses
+        assertEquals(730, g.getAvailableCash(), 1e-9);
+        assertEquals(3, g.getExposure(tcs));
+        assertEquals(3, g.getSellable(tcs));
+    }
+
+    @Test
+    void sellsNeedHoldingsAndCreditTheFillPrice() {
+        RiskGate g = gate(0, new Holding("TCS", 10, 3000));
+        assertEquals(RiskGate.REJECT_HOLDINGS, g.reserveSell(tcs, 11, 300_000));
+        assertEquals(RiskGate.OK, g.reserveSell(tcs, 4, 300_000));
+        assertEquals(RiskGate.REJECT_HOLDINGS, g.reserveSell(tcs, 7, 300_000));
+        g.fillSell(tcs, 3, 310_000);
+        g.releaseSell(tcs, 1);
+        assertEquals(9_300, g.getAvailableCash(), 1e-9);
+        assertEquals(7, g.getSellable(tcs));
+        assertEquals(7, g.getExposure(tcs));
+    }
+
+    @Test
+    void positionLimitCountsOpenBuys() {
+        RiskGate g = gate(1_000_000, new Holding("TCS", 8, 1));
+        g.setDefaultPositionLimit(20);
+        g.setPositionLimit(tcs, 10);
+        assertEquals(RiskGate.OK, g.reserveBuy(tcs, 2, 100));
+        assertEquals(RiskGate.REJECT_POSITION, g.reserveBuy(tcs, 1, 100));
+        g.setPositionLimit(tcs, 0); // back to the default of 20
+        assertEquals(RiskGate.OK, g.reserveBuy(tcs, 10, 100));
+        assertEquals(RiskGate.REJECT_POSITION, g.reserveBuy(tcs, 1, 100));
+        int far = 3 * 4096 + 5; // a symbol in a counter block not yet allocated
+        assertEquals(0, g.getExposure(far));
+        assertEquals(RiskGate.OK, g.reserveBuy(far, 1, 100));
+    }
+
+    @Test
+    void concurrentReservationsNeverOverspend() throws Exception {
+        RiskGate g = gate(1_000); // room for exactly 100 one-share orders at 10.00
+        AtomicInteger accepted = new AtomicInteger();
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        try {
+            Future<?>[] done = new Future<?>[8];
+            for (int t = 0; t < done.length; t++) {
+                done[t] = exec.submit(() -> {
+                    for (int i = 0; i < 1_000; i++)
+                        if (g.reserveBuy(tcs, 1, 1_000) == RiskGate.OK)
+                            accepted.incrementAndGet();
+                });
+            }
+            for (Future<?> f : done)
+                f.get(30, TimeUnit.SECONDS);
+        } finally {
+            exec.shutdown();
+        }
+        assertEquals(100, accepted.get());
+        assertEquals(0, g.getAvailableCash(), 1e-9);
+        assertEquals(100, g.getExposure(tcs));
+    }
+}
@@ -0,0 +1,92 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import stocktrading.StockTradingPlatform.Holding;
+import stocktrading.StockTradingPlatform.Market;
+import stocktrading.StockTradingPlatform.RiskGate;
+import stocktrading.StockTradingPlatform.Strategy;
+import stocktrading.StockTradingPlatform.StrategyRunner;
+
+class StrategyRunnerTest {
+    private final Market market = new Market(1L);
+    private final int tcs = market.idOf("TCS");
+    private final StrategyRunner runner = new StrategyRunner(market, StrategyRunner.CONFLATE, 8);
+
+    // places one order per price update: qty > 0 buys, < 0 sells
+    private static final class Scripted implements Strategy {
+        final int symbol;
+        int qty;
+        final List<Long> results = new ArrayList<>();
+        final List<Long> fills = new ArrayList<>();
+
+        Scripted(int symbol) {
+            this.symbol = symbol;
+        }
+
+        public int[] symbols(Market market) {
+            return new int[] { symbol };
+        }
+
+        public void onPrices(StrategyRunner.Context ctx, int count) {
+            results.add(qty > 0 ? ctx.buy(symbol, qty) : ctx.sell(symbol, -qty));
+        }
+
+        public void onFill(StrategyRunner.Context ctx, int symbolId, boolean buy, int qty, long priceTicks) {
+            fills.add(priceTicks * (buy ? qty : -qty));
+        }
+    }
+
+    @AfterEach
+    void close() {
+        runner.close();
+    }
+
+    private void publish() {
+        runner.onPrice(0, 0, 0, tcs, market.getPrice(tcs), true);
+        assertTrue(runner.awaitIdle(5_000_000_000L));
+    }
+
+    @Test
+    void ordersFillFromTheBookAndSettleIntoTheStrategyPortfolio() {
+        Scripted s = new Scripted(tcs);
+        StrategyRunner.Context ctx = runner.add(s, 1_000_000);
+        long px = market.getPriceTicks(tcs);
+        s.qty = 10;
+        publish();
+        s.qty = -4;
+        publish();
+        assertEquals(List.of(px, px - 1), s.results); // lifted the house ask, hit the house bid
+        assertEquals(List.of(10 * px, -4 * (px - 1)), s.fills);
+        Holding h = ctx.getPortfolio().getHoldings().get(0);
+        assertEquals(6, h.getQty());
+        assertEquals(100_000_000 - 10 * px + 4 * (px - 1), ctx.getPortfolio().getCashTicks());
+        assertEquals(6, ctx.getRiskGate().getExposure(tcs));
+        assertEquals(2, runner.getOrders());
+    }
+
+    @Test
+    void riskGateRejectsBeforeTheBook() {
+        Scripted s = new Scripted(tcs);
+        StrategyRunner.Context ctx = runner.add(s, 100);
+        s.qty = 1_000; // far more than 100 rupees buys
+        publish();
+        ctx.getRiskGate().setPositionLimit(tcs, 5);
+        ctx.getPortfolio().setCash(1_000_000);
+        ctx.getRiskGate().reset(ctx.getPortfolio(), market);
+        s.qty = 6;
+        publish();
+        s.qty = -1; // nothing held
+        publish();
+        assertEquals(List.of(RiskGate.REJECT_CASH, RiskGate.REJECT_POSITION, RiskGate.REJECT_HOLDINGS), s.results);
+        assertTrue(s.fills.isEmpty());
+        assertTrue(ctx.getPortfolio().getHoldings().isEmpty());
+        assertEquals(3, runner.getRejects());
+    }
+}
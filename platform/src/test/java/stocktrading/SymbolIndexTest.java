@@ -0,0 +1,71 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import stocktrading.StockTradingPlatform.Market;
+import stocktrading.StockTradingPlatform.SymbolIndex;
+
+class SymbolIndexTest {
+    private static int[] search(SymbolIndex index, String prefix, int limit) {
+        int[] out = new int[limit];
+        return Arrays.copyOf(out, index.search(prefix, out, limit));
+    }
+
+    // tickers starting with prefix in ticker order, then name words in word order, each id once
+    private static int[] scan(Market m, String prefix) {
+        String p = prefix.toUpperCase(Locale.ROOT);
+        List<String> tickers = new ArrayList<>(), words = new ArrayList<>();
+        for (int id = 0; id < m.size(); id++) {
+            String t = m.getTicker(id).toUpperCase(Locale.ROOT);
+            if (t.startsWith(p))
+                tickers.add(t + '\0' + (char) id);
+            for (String w : m.getName(id).split("\\s+"))
+                if (!w.isEmpty() && w.toUpperCase(Locale.ROOT).startsWith(p))
+                    words.add(w.toUpperCase(Locale.ROOT) + '\0' + (char) id);
+        }
+        tickers.sort(null);
+        words.sort(null);
+        Set<Integer> ids = new LinkedHashSet<>();
+        for (String k : tickers)
+            ids.add((int) k.charAt(k.length() - 1));
+        for (String k : words)
+            ids.add((int) k.charAt(k.length() - 1));
+        return ids.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Test
+    void matchesTickersThenNameWords() {
+        Market m = new Market(1L);
+        int beta = m.addStock("ZQB", "Beta Quartz Works", 10);
+        int alpha = m.addStock("ZQA", "Alpha  Quartz", 10);
+        int other = m.addStock("QZX", "Zq Holdings", 10);
+        SymbolIndex index = new SymbolIndex(m);
+        assertEquals(m.size(), index.size());
+
+        assertArrayEquals(new int[] { alpha, beta, other }, search(index, "zq", 10));
+        assertArrayEquals(new int[] { other, beta, alpha }, search(index, "Q", 10)); // ticker, then "Quartz" by id
+        assertArrayEquals(new int[] { alpha }, search(index, "zqa", 10));
+        assertArrayEquals(new int[] { alpha, beta }, search(index, "zq", 2));
+        assertEquals(0, search(index, "ZQAB", 10).length);
+        for (String prefix : new String[] { "", "A", "t", "INF", "Ba", "ltd", "q" })
+            assertArrayEquals(scan(m, prefix), search(index, prefix, m.size()), prefix);
+    }
+
+    @Test
+    void keepsTheSymbolsListedAtBuildTime() {
+        Market m = new Market(1L);
+        SymbolIndex index = new SymbolIndex(m);
+        m.addStock("ZZNEW", "Listed Later", 10);
+        assertEquals(0, search(index, "ZZN", 10).length);
+        assertEquals(m.size() - 1, index.size());
+    }
+}
@@ -0,0 +1,120 @@
+package stocktrading;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import stocktrading.StockTradingPlatform.Holding;
+import stocktrading.StockTradingPlatform.Market;
+import stocktrading.StockTradingPlatform.Portfolio;
+import stocktrading.StockTradingPlatform.TradeJournal;
+
+class TradeJournalTest {
+    @TempDir
+    Path dir;
+
+    private static Map<String, Integer> positions(Portfolio p) {
+        Map<String, Integer> m = new HashMap<>();
+        for (Holding h : p.getHoldings())
+            m.put(h.getTicker(), h.getQty());
+        return m;
+    }
+
+    @Test
+    void recoversTradesAcrossChunks() throws IOException {
+        Portfolio p;
+        try (TradeJournal journal = new TradeJournal(dir, 8)) {
+            p = journal.recover(new Market(1), 100_000);
+            for (int i = 0; i < 30; i++)
+                p.buy(i % 2 == 0 ? "TCS" : "INFY", 2, 100.25);
+            p.sell("TCS", 5, 101.5);
+        }
+        try (TradeJournal journal = new TradeJournal(dir, 8)) {
+            assertEquals(31, journal.getRecordCount());
+            Portfolio r = journal.recover(new Market(1), 100_000);
+            assertEquals(p.getCashTicks(), r.getCashTicks());
+            assertEquals(Map.of("TCS", 25, "INFY", 30), positions(r));
+        }
+    }
+
+    @Test
+    void recoveryDoesNotDependOnTheMarketListing() throws IOException {
+        try (TradeJournal journal = new TradeJournal(dir)) {
+            Portfolio p = journal.recover(new Market(1), 100_000);
+            p.buy("INFY", 3, 1450);
+            p.buy("ACME", 4, 10); // not listed when traded
+        }
+        Market other = new Market(1);
+        other.addStock("ACME", "Acme", 10); // listed after the default symbols, ids shifted
+        try (TradeJournal journal = new TradeJournal(dir)) {
+            Portfolio r = journal.recover(other, 100_000);
+            assertEquals(Map.of("INFY", 3, "ACME", 4), positions(r));
+            assertEquals(3 * 1450 * 100 + 4 * 10 * 100, r.getMarketValueTicks(other));
+        }
+    }
+
+    @Test
+    void snapshotAndTailKeepExactPaise() throws IOException {
+        Portfolio p;
+        try (TradeJournal journal = new TradeJournal(dir)) {
+            p = journal.recover(new Market(1), 1000);
+            p.buy("TCS", 3, 0.01);
+            p.sell("TCS", 1, 0.07);
+            p.snapshotTo(journal, false);
+            p.buy("TCS", 7, 0.29);
+        }
+        try (TradeJournal journal = new TradeJournal(dir)) {
+            Portfolio r = journal.recover(new Market(1), 0);
+            assertEquals(p.getCashTicks(), r.getCashTicks());
+            assertEquals(p.getHoldings().get(0).getCost(), r.getHoldings().get(0).getCost());
+            assertEquals(3, r.getTransactionLog().size());
+        }
+    }
+
+    @Test
+    void appendsDoNotWaitForTheFlusher() throws IOException {
+        try (TradeJournal journal = new TradeJournal(dir)) {
+            for (int i = 0; i < TradeJournal.GROUP_COMMIT_RECORDS * 4; i++)
+                journal.append(i, "TCS", true, 1, 100);
+            assertEquals(TradeJournal.GROUP_COMMIT_RECORDS * 4, journal.getRecordCount());
+            journal.commit();
+            assertEquals(journal.getRecordCount(), journal.getCommittedCount());
+        }
+    }
+
+    @Test
+    void snapshotWaitsForTheRecordsItCovers() throws IOException, InterruptedException {
+        Path snapshot = dir.resolve("portfolio.snapshot");
+        try (TradeJournal journal = new TradeJournal(dir)) {
+            journal.append(0, "TCS", true, 1, 100);
+            journal.commit();
+            journal.scheduleSnapshot(journal.getCommittedCount() + 2, 0, List.of());
+            Thread.sleep(TradeJournal.GROUP_COMMIT_MILLIS * 4); // several flusher cycles
+            assertFalse(Files.exists(snapshot));
+
+            journal.append(1, "TCS", true, 1, 100);
+            journal.append(2, "TCS", true, 1, 100);
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (!Files.exists(snapshot) && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            assertTrue(Files.exists(snapshot));
+            assertTrue(journal.getCommittedCount() >= 3);
+        }
+    }
+
+    @Test
+    void rejectsAFileThatIsNotAJournal() throws IOException {
+        Files.write(dir.resolve("trades.journal"), new byte[128]);
+        Files.write(dir.resolve("trades.journal"), "not a journal".getBytes(), StandardOpenOption.WRITE);
+        assertThrows(IOException.class, () -> new TradeJournal(dir));
+    }
+}